@@ -0,0 +1,149 @@
+/*********************************************************************
+
+    Admission control: limits the rate at which packets are accepted
+    from each peer, and from all peers together.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Each source address has a token bucket, refilled by default at PEER_RATE
+ * packets a second up to PEER_BURST, and a packet is admitted only if it
+ * can take a token.  Packets that pass their own bucket must then also
+ * pass a global one, so many peers together cannot go over GLOBAL_RATE.  A
+ * peer over its own limit is turned away before it touches the global
+ * bucket, so one noisy peer cannot use up the allowance of the others.
+ *
+ * PEER_BURST is enough for a message of the most fragments at once.
+ *
+ * The buckets of at most MAX_PEERS addresses are kept, the least recently
+ * heard from forgotten first; a forgotten peer starts again with a full
+ * bucket.
+ *
+ * Only the receive thread uses admission control, so it is not
+ * synchronized.
+ */
+public class AdmissionControl {
+
+	public static final int ADMITTED = 0;
+	public static final int PEER_LIMITED = 1;
+	public static final int GLOBAL_LIMITED = 2;
+
+	private static final double PEER_RATE = 50;
+	private static final double PEER_BURST = 100;
+
+	private static final double GLOBAL_RATE = 500;
+	private static final double GLOBAL_BURST = 1000;
+
+	private static final int MAX_PEERS = 1024;
+
+	private static final class Bucket {
+		final double rate;
+		final double burst;
+		double tokens;
+		long updated;
+
+		Bucket(double rate, double burst, long now) {
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.updated = now;
+		}
+
+		boolean take(long now) {
+			if (now > updated) {
+				tokens = Math.min(burst, tokens + (now - updated) * rate / 1000);
+				updated = now;
+			}
+			if (tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
+		}
+	}
+
+	private final LinkedHashMap<InetAddress, Bucket> peers = new LinkedHashMap<InetAddress, Bucket>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, Bucket> eldest) {
+			return size() > MAX_PEERS;
+		}
+	};
+
+	private final double peerRate;
+	private final double peerBurst;
+
+	private final Bucket global;
+
+	private long admitted;
+	private long peerLimited;
+	private long globalLimited;
+
+	public AdmissionControl() {
+		this(PEER_RATE, PEER_BURST, GLOBAL_RATE, GLOBAL_BURST);
+	}
+
+	/*
+	 * Limits other than the defaults, in packets a second and packets at
+	 * once; for load tests.
+	 */
+	public AdmissionControl(double peerRate, double peerBurst, double globalRate,
+			double globalBurst) {
+		this.peerRate = peerRate;
+		this.peerBurst = peerBurst;
+		this.global = new Bucket(globalRate, globalBurst, System.currentTimeMillis());
+	}
+
+	/*
+	 * Whether to accept a packet from source: ADMITTED, or why not.
+	 */
+	public int admit(InetAddress source) {
+		return admit(source, System.currentTimeMillis());
+	}
+
+	int admit(InetAddress source, long now) {
+		Bucket bucket = peers.get(source);
+		if (bucket == null) {
+			bucket = new Bucket(peerRate, peerBurst, now);
+			peers.put(source, bucket);
+		}
+		if (!bucket.take(now)) {
+			peerLimited++;
+			return PEER_LIMITED;
+		}
+		if (!global.take(now)) {
+			globalLimited++;
+			return GLOBAL_LIMITED;
+		}
+		admitted++;
+		return ADMITTED;
+	}
+
+	public long getAdmitted() {
+		return admitted;
+	}
+
+	/*
+	 * Packets dropped because their peer was over its own limit.
+	 */
+	public long getPeerLimited() {
+		return peerLimited;
+	}
+
+	/*
+	 * Packets dropped because all peers together were over the limit.
+	 */
+	public long getGlobalLimited() {
+		return globalLimited;
+	}
+
+}
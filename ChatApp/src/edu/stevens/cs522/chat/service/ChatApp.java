@@ -8,26 +8,18 @@
 
 package edu.stevens.cs522.chat.service;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 import edu.stevens.cs522.chat.service.ChatContent;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
@@ -47,16 +39,27 @@ public class ChatApp extends FragmentActivity
 implements LoaderManager.LoaderCallbacks<Cursor> {
 	
 	final static public String TAG = ChatApp.class.getCanonicalName();
-	Receiver updater;	
 	/*
 	 * Adapter for displaying received messages.
 	 */
 	//CursorAdapter messageAdapter;
 	SimpleCursorAdapter messageAdapter = null;
-	private DatagramPacket sendPacket = null;
 	
 	private static final int URL_LOADER = 0;
 	private static final int LOADER_ID = 0;	
+
+	/*
+	 * Least time between reloads of the message list.  Messages saved in the
+	 * meantime are shown together in the next reload, so the list is updated
+	 * at a bounded rate however fast messages arrive.
+	 */
+	private static final long UPDATE_THROTTLE = 100;
+
+	/*
+	 * Preference: send messages reliably (acknowledged, and resent until
+	 * they are).
+	 */
+	public static final String PREF_RELIABLE = "reliable_delivery";
 	private ListView msgList;
 	
 	// The callbacks through which we will interact with the LoaderManager.
@@ -85,6 +88,7 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
                 IBinder service) {
             // We've bound to LocalService, cast the IBinder and get LocalService instance
         	serviceBinder = ((ChatService.ChatBinder) service).getService();
+        	serviceBinder.clearNotifications();
         }
 
         public void onServiceDisconnected(ComponentName arg0) {
@@ -113,7 +117,7 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 		/*
 		 * TODO: Messages content provider should be linked to the listview
 		 * named "msgList" in the UI:
-		 * 1. Build a cursor that projects Messages content.  See makeMessageCursor().
+		 * 1. Build a cursor that projects Messages content.  See onCreateLoader().
 		 * 2. Use a SimpleCursorAdapter to adapt this cursor for msgList listview.
 		 * 3. Use messages_row layout for the list of messages
 		 */
@@ -158,49 +162,17 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 	}
 	
 	/*
-	 * TODO: Since the content provider for messages received is now updated on a background
-	 * thread, it sends a broadcast to the UI to tell it to update the cursor.  The UI
-	 * should register a broadcast receiver that will change the cursor for the messages adapter.
+	 * The message list is kept up to date by the loader, which reloads it in
+	 * the background whenever the messages content provider changes.
 	 */
-	
-	@Override
-	protected void onPause() {
-	   unregisterReceiver(updater);
-	   super.onPause();
-	}
 	 
 	@Override
 	protected void onResume() {
-	   this.updater = new Receiver();
-	   registerReceiver(
-	         this.updater, 
-	         new IntentFilter(
-	        		 ChatService.NEW_MESSAGE_BROADCAST));
-	               //ConnectivityManager.CONNECTIVITY_ACTION));
+	   if (serviceBinder != null) {
+		   serviceBinder.clearNotifications();
+	   }
 	   super.onResume();
 	}
-	
-	/*
-	 * End Todo
-	 */
-
-	
-	protected Cursor makeMessageCursor () {
-		/*
-		 * TODO: managedQuery is deprecated, use CursorLoader instead!
-		 */
-		String[] projection = 
-				new String[] { ChatContent.Messages._ID,
-							   ChatContent.Messages.SENDER, 
-							   ChatContent.Messages.MESSAGE };
-/*		Cursor c = managedQuery(ChatContent.Messages.CONTENT_URI, 
-				projection,
-				null, null, null);*/
-		ContentResolver cr = getContentResolver();
-		Cursor c = cr.query(ChatContent.Messages.CONTENT_URI,
-		        projection, null, null, null);		
-		return c;
-	}
 
 	/*
 	 * On click listener for the send button
@@ -212,96 +184,62 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 	};
 
 	/*
-	 * Send the message in the msg EditText
+	 * Send the message in the msg EditText.  The message is queued with the
+	 * service, which sends it on its own thread, so the UI never waits on the
+	 * network (or on resolving the destination host).
 	 */
 	private void postMessage() {
-		try {
-			/*
-			 * On the emulator, which does not support WIFI stack, we'll send to
-			 * (an AVD alias for) the host loopback interface, with the server
-			 * port on the host redirected to the server port on the server AVD.
-			 */
-			InetAddress targetAddr = InetAddress.getByName(destHost.getText().toString());
-
-			int targetPort = Integer.parseInt(destPort.getText().toString());
-			
-			String theNewMessage = msg.getText().toString();
-			
-			this.sendMessage(targetAddr, targetPort, theNewMessage);
-		} catch (UnknownHostException e) {
-			Log.e(TAG, "Unknown host exception: " + e.getMessage());
-		} catch (IOException e) {
-			Log.e(TAG, "IO exception: " + e.getMessage());
+		if (serviceBinder == null) {
+			Log.e(TAG, "Chat service not bound, message not sent.");
+			return;
 		}
 
-		msg.setText("");
-	}	
-
-	/*
-	 * Send a UDP packet
-	 */
-	public void sendMessage(InetAddress destAddr, int destPort, String msg)
-			throws IOException {
-
 		/*
-		 * Append client info to the front of the message.
+		 * On the emulator, which does not support WIFI stack, we'll send to
+		 * (an AVD alias for) the host loopback interface, with the server
+		 * port on the host redirected to the server port on the server AVD.
 		 */
-		String sender = getString(R.string.user_name);
-		String latitude = getString(R.string.latitude);
-		String longitude = getString(R.string.longitude);
-		String line = sender + ":" + latitude + ":" + longitude + ":" + msg;
-		byte[] sendData = line.getBytes();
-
-		this.sendPacket = new DatagramPacket(sendData,
-				sendData.length, destAddr, destPort);
-
-		Thread thread = new Thread(null, doBackgroundThreadProcessing, "Background");
-		thread.start();
-		
-		
-		//serviceBinder.send(sendPacket);
+		String targetHost = destHost.getText().toString();
+		int targetPort;
 		try {
-			thread.join();
-		} catch (InterruptedException e) {
-			Log.i(TAG, "Background thread interrupted");
+			targetPort = Integer.parseInt(destPort.getText().toString());
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "Invalid port: " + destPort.getText());
+			return;
 		}
-
-		Log.i(TAG, "Sent packet: " + msg);
 		
+		String theNewMessage = msg.getText().toString();
+		
+		boolean reliable = PreferenceManager.getDefaultSharedPreferences(this)
+				.getBoolean(PREF_RELIABLE, false);
+		serviceBinder.enqueue(targetHost, targetPort, theNewMessage, reliable, sendCallback);
+
+		msg.setText("");
+	}	
 
-	}
-	
 	/*
-	 * To handle NetworkOnMainThreadException
+	 * Send the message in the msg EditText to every peer we have heard from.
 	 */
-	
-	//Initialize a handler on main thread.
-	private Handler handler = new Handler();
-	private Runnable doBackgroundThreadProcessing = new Runnable()
-	{
-		public void run()
-		{
-			backgroundThreadProcessing();
+	private void postMessageToAll() {
+		if (serviceBinder == null) {
+			Log.e(TAG, "Chat service not bound, message not sent.");
+			return;
 		}
-	};
-	// Do processing in the background.
-	private void backgroundThreadProcessing()
-	{
-		serviceBinder.send(sendPacket);
-		handler.post(doUpdateGUI);
+		serviceBinder.broadcast(msg.getText().toString(), null, null, sendCallback);
+		msg.setText("");
 	}
-	// Runnable that executes GUI update 
-	private Runnable doUpdateGUI = new Runnable()
-	{
-		public void run()
-		{
-			updateGUI();
+
+	/*
+	 * Called on one of the service's threads once a message has been sent
+	 * (or, if sent reliably, acknowledged).
+	 */
+	private final SendQueue.Callback sendCallback = new SendQueue.Callback() {
+		public void onComplete(Exception error) {
+			if (error != null) {
+				Log.e(TAG, "Message not sent: " + error.getMessage());
+			}
 		}
 	};
-	private void updateGUI()
-	{
-		((EditText) findViewById(R.id.message_text)).setText(null);
-	}	
 
 	@Override
 	public void onDestroy() {
@@ -311,7 +249,7 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 
 	/*
 	 * Options menu includes an option to list all peers from whom we have
-	 * received communication.
+	 * received communication, and one to show the service's statistics.
 	 */
 
 	@Override
@@ -322,6 +260,18 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		menu.findItem(R.id.show_toasts).setChecked(
+				prefs.getBoolean(NotificationAggregator.PREF_SHOW_TOASTS, true));
+		menu.findItem(R.id.reliable_delivery).setChecked(
+				prefs.getBoolean(PREF_RELIABLE, false));
+		return true;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		super.onOptionsItemSelected(item);
@@ -332,12 +282,31 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 			i = new Intent(this, ShowPeers.class);
 			startActivity(i);
 			return true;
+		case (R.id.send_all):
+			postMessageToAll();
+			return true;
+		case (R.id.show_stats):
+			startActivity(new Intent(this, ShowStats.class));
+			return true;
+		case (R.id.show_toasts):
+			boolean showToasts = !item.isChecked();
+			item.setChecked(showToasts);
+			PreferenceManager.getDefaultSharedPreferences(this).edit()
+					.putBoolean(NotificationAggregator.PREF_SHOW_TOASTS, showToasts)
+					.apply();
+			return true;
+		case (R.id.reliable_delivery):
+			boolean reliable = !item.isChecked();
+			item.setChecked(reliable);
+			PreferenceManager.getDefaultSharedPreferences(this).edit()
+					.putBoolean(PREF_RELIABLE, reliable)
+					.apply();
+			return true;
 		}
 		return false;
 	}
 
 	public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-		// TODO Auto-generated method stub
 		String[] projection = 
 				new String[] { ChatContent.Messages._ID,
 							   ChatContent.Messages.SENDER, 
@@ -346,32 +315,25 @@ implements LoaderManager.LoaderCallbacks<Cursor> {
 		(LOADER_ID)
 		{
 		case URL_LOADER:
-			return new CursorLoader(this, ChatContent.Messages.CONTENT_URI, projection, null, null, null);
+			CursorLoader loader = new CursorLoader(this, ChatContent.Messages.CONTENT_URI,
+					projection, null, null, null);
+			loader.setUpdateThrottle(UPDATE_THROTTLE);
+			return loader;
 		default:
 			return null;		//An invalid id was passed in
 		}
 	}
 
+	/*
+	 * The loader owns its cursors and closes them itself, so they are swapped
+	 * into the adapter rather than changed (which would close the old one).
+	 */
 	public void onLoadFinished(Loader<Cursor> arg0, Cursor arg1) {
-		messageAdapter.changeCursor(arg1);
+		messageAdapter.swapCursor(arg1);
 	}
 
 	public void onLoaderReset(Loader<Cursor> arg0) {
-		messageAdapter.changeCursor(null);
-	}
-	
-	public class Receiver extends BroadcastReceiver {
-	 
-	@Override 
-	public void onReceive(Context context, Intent intent) {
-	      // react to the event
-		String action = intent.getAction();
-	       if(action.equalsIgnoreCase(ChatService.NEW_MESSAGE_BROADCAST)){  
-	   		messageAdapter.changeCursor(makeMessageCursor());
-			//LoaderManager lm = getSupportLoaderManager();
-		     //lm.restartLoader(LOADER_ID, null, mCallbacks);	    	   
-	       }
-	   }
+		messageAdapter.swapCursor(null);
 	}
 
 }
@@ -46,6 +46,73 @@ public class ChatContent {
 
 	
 		public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+		/*
+		 * Query parameters that select a window of messages.  A query returns
+		 * at most LIMIT messages (by default, the message_retention resource),
+		 * with ids less than BEFORE and greater than AFTER if given.  Without
+		 * AFTER, the window is the newest messages that qualify; with AFTER, the
+		 * oldest, so AFTER pages forward from a known id.  OFFSET skips that
+		 * many qualifying messages first.  The sort order (DEFAULT_SORT_ORDER
+		 * or DESCENDING_SORT_ORDER) only decides the order the window is
+		 * returned in.
+		 *
+		 * The only selection supported is SENDER_SELECTION, for the messages
+		 * from one sender.
+		 */
+		public static final String BEFORE = "before";
+		public static final String AFTER = "after";
+		public static final String LIMIT = "limit";
+		public static final String OFFSET = "offset";
+
+		public static final String DESCENDING_SORT_ORDER = "_id DESC";
+
+		public static final String SENDER_SELECTION = "sender = ?";
+
+		public static final Uri historyUri(long beforeId, int limit) {
+			return CONTENT_URI.buildUpon()
+					.appendQueryParameter(BEFORE, Long.toString(beforeId))
+					.appendQueryParameter(LIMIT, Integer.toString(limit))
+					.build();
+		}
+
+		public static final Uri afterUri(long afterId, int limit) {
+			return CONTENT_URI.buildUpon()
+					.appendQueryParameter(AFTER, Long.toString(afterId))
+					.appendQueryParameter(LIMIT, Integer.toString(limit))
+					.build();
+		}
+
+		/*
+		 * Full-text search: SEARCH_URI with the words to look for in the QUERY
+		 * parameter returns the messages whose sender or text contain all of
+		 * them, best match first, paged with LIMIT and OFFSET.  Results have
+		 * the columns _ID, SENDER, MESSAGE and RANK (higher is better).
+		 */
+		public static final String SEARCH_PATH = "search";
+		public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, SEARCH_PATH);
+		public static final String QUERY = "q";
+		public static final String RANK = "rank";
+
+		public static final Uri searchUri(String query, int offset, int limit) {
+			return SEARCH_URI.buildUpon()
+					.appendQueryParameter(QUERY, query)
+					.appendQueryParameter(OFFSET, Integer.toString(offset))
+					.appendQueryParameter(LIMIT, Integer.toString(limit))
+					.build();
+		}
+
+		public static final long getId(Cursor c) {
+			return c.getLong(c.getColumnIndexOrThrow(_ID));
+		}
+
+		public static final String getSender(Cursor c) {
+			return c.getString(c.getColumnIndexOrThrow(SENDER));
+		}
+
+		public static final String getMessage(Cursor c) {
+			return c.getString(c.getColumnIndexOrThrow(MESSAGE));
+		}
 	
 		/*
 		 * Sender name.
@@ -84,6 +151,14 @@ public class ChatContent {
 
 	
 		public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+		/*
+		 * Insert (or bulkInsert) on UPSERT_URI adds a peer, or updates the
+		 * existing row if a peer with the same host and port is already known.
+		 * A bulkInsert is done in a single transaction.
+		 */
+		public static final String UPSERT_PATH = "upsert";
+		public static final Uri UPSERT_URI = Uri.withAppendedPath(CONTENT_URI, UPSERT_PATH);
 	
 		/*
 		 * Peer user name
@@ -94,6 +169,12 @@ public class ChatContent {
 		 * Host (IP address) for that peer's chat program (obtained from messages sent)
 		 */
 		public static final String HOST = "host";
+
+		/*
+		 * DNS name for HOST, if any, for display.  Filled in some time after the
+		 * peer is first added, since it needs a reverse lookup; null until then.
+		 */
+		public static final String HOSTNAME = "hostname";
 	
 		/*
 		 * UDP port number for that peer's chat program (obtained from messages sent)
@@ -109,6 +190,38 @@ public class ChatContent {
 		 * longitude coordinate
 		 */
 		public static final String LONGITUDE = "longitude";
+
+		/*
+		 * Messages from the peer, this run of the service, whose one-way
+		 * latency was measured (see LatencyTracker).  This column and the
+		 * four after it are null if there were none.  They are not stored,
+		 * but filled in when the peers are queried, and a change in them is
+		 * not notified.
+		 */
+		public static final String LATENCY_SAMPLES = "latency_samples";
+
+		/*
+		 * Estimated ms by which our clock is ahead of the peer's
+		 */
+		public static final String CLOCK_OFFSET = "clock_offset";
+
+		/*
+		 * Upper bounds, in ms, on the median and 99th percentile one-way delay
+		 */
+		public static final String LATENCY = "latency";
+		public static final String LATENCY_P99 = "latency_p99";
+
+		/*
+		 * Smoothed jitter (RFC 3550), in ms
+		 */
+		public static final String JITTER = "jitter";
+
+		/*
+		 * Columns computed at query time rather than stored.
+		 */
+		public static final String[] LATENCY_COLUMNS = {
+			LATENCY_SAMPLES, CLOCK_OFFSET, LATENCY, LATENCY_P99, JITTER
+		};
 		
 		public static final String getName(Cursor c) {
 			return c.getString(c.getColumnIndexOrThrow(NAME));
@@ -118,6 +231,10 @@ public class ChatContent {
 			return c.getString(c.getColumnIndexOrThrow(HOST));
 		}
 
+		public static final String getHostName(Cursor c) {
+			return c.getString(c.getColumnIndexOrThrow(HOSTNAME));
+		}
+
 		public static final int getPort(Cursor c) {
 			return c.getInt(c.getColumnIndexOrThrow(PORT));
 		}
@@ -129,5 +246,25 @@ public class ChatContent {
 		public static final double getLongitude(Cursor c) {
 			return c.getDouble(c.getColumnIndexOrThrow(LONGITUDE));
 		}
+
+		public static final long getLatencySamples(Cursor c) {
+			return c.getLong(c.getColumnIndexOrThrow(LATENCY_SAMPLES));
+		}
+
+		public static final long getClockOffset(Cursor c) {
+			return c.getLong(c.getColumnIndexOrThrow(CLOCK_OFFSET));
+		}
+
+		public static final double getLatency(Cursor c) {
+			return c.getDouble(c.getColumnIndexOrThrow(LATENCY));
+		}
+
+		public static final double getLatencyP99(Cursor c) {
+			return c.getDouble(c.getColumnIndexOrThrow(LATENCY_P99));
+		}
+
+		public static final double getJitter(Cursor c) {
+			return c.getDouble(c.getColumnIndexOrThrow(JITTER));
+		}
 	}
 }
@@ -12,81 +12,271 @@
 package edu.stevens.cs522.chat.service;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.stevens.cs522.chat.service.ChatContent;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.SQLException;
-import android.os.AsyncTask;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
-import android.widget.Toast;
 
 public class ChatService extends Service implements IChatService {
 
 	/*
-	 * The chat service uses a background thread to receive messages sent by
-	 * other devices, so the main UI thread does not block while waiting for a
-	 * message. The content providers for messages and peer info are updated. A
+	 * The chat service uses a background thread (the receive engine) to receive
+	 * messages sent by other devices, so the main UI thread does not block while
+	 * waiting for a message. The content providers for messages and peer info are updated. A
 	 * notification is placed in the UI, and may be used to bring the chat app
-	 * to the foreground to see the messages that have been received.
+	 * to the foreground to see the messages that have been received.  A burst
+	 * of messages is summarized in one notification, updated at a bounded rate.
 	 */
 
-	public static final String NEW_MESSAGE_BROADCAST = "edu.stevens.cs522.chat.NewMessageBroadcast";
+	private NotificationAggregator notifications;
 
-	private Notification newMessageNotification;
-	public static final int NOTIFICATION_ID = 1;
+	/*
+	 * Channel for communication with other instances.  Packets are received
+	 * on the receive engine's own thread; other threads may send on it.
+	 */
+	private DatagramChannel appChannel;
+
+	private ReceiveEngine receiveEngine;
+
+	/*
+	 * Messages to send, queued by the UI and sent on the queue's own thread.
+	 */
+	private SendQueue sendQueue;
+
+	/*
+	 * If the multicast_group resource names a group, a message for all peers
+	 * is sent once, to the group, rather than to each peer in turn; and we
+	 * join the group so that we receive other peers' messages to it.  The
+	 * membership socket is never read: joining on any socket is enough for
+	 * group packets to our port to arrive on appChannel.
+	 */
+	private InetSocketAddress multicastGroup;
+	private MulticastSocket multicastMembership;
+	private WifiManager.MulticastLock multicastLock;
+
+	/*
+	 * Our own addresses, so that our own messages to the group, which are
+	 * looped back to us, are not taken for messages from a peer.
+	 */
+	private final HashSet<InetAddress> localAddresses = new HashSet<InetAddress>();
+	private int appPort;
+
+	/*
+	 * Used to act, on the main thread, on events from the background threads.
+	 */
+	private Handler mainHandler;
 
 	/*
-	 * Socket for communication with other instances.
+	 * Turns the packets read by the receive engine into messages for
+	 * receiveSink to save: rate limits on packets from each peer and from all
+	 * of them (so a flood cannot swamp the provider, the notifications or the
+	 * UI), the reliable transport, dropping duplicates, reassembling
+	 * fragments, and decoding.
 	 */
-	private DatagramSocket appSocket;
+	private ReceivePipeline receivePipeline;
+
+	/*
+	 * Counts of packets and messages, and times taken to handle them, shown
+	 * on the statistics screen.  Latency from each peer goes to the shared
+	 * tracker, which PeerInfoProvider reads too.
+	 */
+	private final Metrics metrics = new Metrics(LatencyTracker.getShared());
+
+	/*
+	 * Nothing is logged for each packet: only every LOG_SAMPLE_INTERVALth
+	 * packet dropped by admission control, found malformed or lost to an
+	 * error, and (at debug level) a summary after every
+	 * LOG_SAMPLE_INTERVALth message received.
+	 */
+	private static final int LOG_SAMPLE_INTERVAL = 256;
 
 	@Override
 	public void onCreate() {
-		int icon = R.drawable.ic_launcher;
-		String tickerText = "New message received";
-		long when = System.currentTimeMillis();
+		mainHandler = new Handler(Looper.getMainLooper());
+		notifications = new NotificationAggregator(this, mainHandler);
+
+		getContentResolver().registerContentObserver(ChatContent.Peers.CONTENT_URI,
+				true, peerObserver);
+		reloadPeerCache();
 
-		newMessageNotification = new Notification(icon, tickerText, when);
-		
 		try {
-			appSocket = new DatagramSocket(Integer.parseInt(getString(R.string.app_port)));
+			appPort = Integer.parseInt(getString(R.string.app_port));
+			receiveEngine = new ReceiveEngine(receiveListener, WireFormat.MAX_DATAGRAM_SIZE);
+			appChannel = receiveEngine.bind(appPort);
+			joinMulticastGroup(getString(R.string.multicast_group));
+			sendQueue = new SendQueue(appChannel, metrics, getString(R.string.user_name),
+					Double.parseDouble(getString(R.string.latitude)),
+					Double.parseDouble(getString(R.string.longitude)));
+			receivePipeline = new ReceivePipeline(sendQueue.getTransport(),
+					sendQueue.getPeerVersions(), new AdmissionControl(), metrics, receiveSink);
+			receiveEngine.start();
+			sendQueue.start();
 		} catch (IOException e) {
 			Log.e(ChatApp.TAG, "Cannot create socket."+e);
 		}
 	}
 	
-	public void send(DatagramPacket p) {
+	public Future<Void> enqueue(String host, int port, String message,
+			SendQueue.Callback callback) {
+		return sendQueue.enqueue(host, port, message, callback);
+	}
+
+	public Future<Void> enqueue(String host, int port, String message,
+			boolean reliable, SendQueue.Callback callback) {
+		return sendQueue.enqueue(host, port, message, reliable, callback);
+	}
+
+	public void setReliable(String host, int port, boolean reliable) {
+		sendQueue.setReliable(host, port, reliable);
+	}
+
+	/*
+	 * Send a message to every peer in the peers table that matches selection
+	 * (all of them if selection is null): to the multicast group if there is
+	 * one, else to each peer, encoding the message just once.  Broadcasts
+	 * are always sent best-effort.
+	 */
+	public Future<Void> broadcast(String message, final String selection,
+			final String[] selectionArgs, SendQueue.Callback callback) {
+		if (multicastGroup != null && selection == null) {
+			return sendQueue.enqueue(new SendQueue.Targets() {
+				public List<InetSocketAddress> getTargets() {
+					return Collections.singletonList(multicastGroup);
+				}
+			}, message, callback);
+		}
+		return sendQueue.enqueue(new SendQueue.Targets() {
+			public List<InetSocketAddress> getTargets() {
+				return loadPeerAddresses(selection, selectionArgs);
+			}
+		}, message, callback);
+	}
+
+	/*
+	 * Called on the sender thread, so querying the provider does not hold up
+	 * the UI.
+	 */
+	private List<InetSocketAddress> loadPeerAddresses(String selection,
+			String[] selectionArgs) {
+		ArrayList<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		String[] projection = new String[] { ChatContent.Peers.HOST,
+											 ChatContent.Peers.PORT };
+		Cursor c = getContentResolver().query(ChatContent.Peers.CONTENT_URI,
+				projection, selection, selectionArgs, null);
+		if (c == null) {
+			return targets;
+		}
+		try {
+			while (c.moveToNext()) {
+				/*
+				 * Hosts are numeric addresses, so this does no lookup.
+				 */
+				targets.add(new InetSocketAddress(ChatContent.Peers.getHost(c),
+						ChatContent.Peers.getPort(c)));
+			}
+		} finally {
+			c.close();
+		}
+		return targets;
+	}
+
+	private void joinMulticastGroup(String group) {
+		if (group.length() == 0) {
+			return;
+		}
 		try {
-			Log.i(ChatApp.TAG, "Sending a message.");
-			appSocket.send(p);
+			InetAddress groupAddress = InetAddress.getByName(group);
+			WifiManager wifi = (WifiManager) getSystemService(WIFI_SERVICE);
+			if (wifi != null) {
+				/*
+				 * Otherwise the Wi-Fi driver may filter out multicast packets.
+				 */
+				multicastLock = wifi.createMulticastLock(ChatApp.TAG);
+				multicastLock.setReferenceCounted(false);
+				multicastLock.acquire();
+			}
+			multicastMembership = new MulticastSocket();
+			multicastMembership.joinGroup(groupAddress);
+
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				localAddresses.addAll(Collections.list(interfaces.nextElement().getInetAddresses()));
+			}
+			multicastGroup = new InetSocketAddress(groupAddress, appPort);
+			Log.i(ChatApp.TAG, "Joined multicast group " + group);
 		} catch (IOException e) {
-			Log.e(ChatApp.TAG, "Cannot send packet."+e);
+			Log.w(ChatApp.TAG, "Cannot join multicast group " + group + ": " + e);
+			leaveMulticastGroup();
 		}
 	}
 
+	private void leaveMulticastGroup() {
+		multicastGroup = null;
+		if (multicastMembership != null) {
+			multicastMembership.close();
+			multicastMembership = null;
+		}
+		if (multicastLock != null) {
+			multicastLock.release();
+			multicastLock = null;
+		}
+	}
+
+	public void clearNotifications() {
+		notifications.clear();
+	}
+
+	public Metrics.Snapshot getStats() {
+		return metrics.snapshot();
+	}
+
 	@Override
 	public void onDestroy() {
-		appSocket.close();
+		if (sendQueue != null) {
+			sendQueue.stop();
+		}
+		if (receiveEngine != null) {
+			receiveEngine.stop();
+		}
+		leaveMulticastGroup();
+		getContentResolver().unregisterContentObserver(peerObserver);
+		hostNameResolver.shutdown();
+		notifications.shutdown();
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.i(ChatApp.TAG, "Started Chat service, running task for receiving messages.");
-		ReceiveMessageTask recvTask = new ReceiveMessageTask();
-		recvTask.execute((Void[]) null);
+		/*
+		 * The receive engine is started once, in onCreate, however many times
+		 * the service is started.
+		 */
+		Log.i(ChatApp.TAG, "Started Chat service.");
 		return START_STICKY;
 	}
 	
@@ -108,175 +298,424 @@ public class ChatService extends Service implements IChatService {
 	}
 
 	/*
-	 * The description of the logic that is performed on a background thread.
+	 * Packets read on the receive engine thread go through the receive
+	 * pipeline, but for our own messages to the multicast group: from our
+	 * address and port, and with the id of a message we sent.  The id tells
+	 * them from the messages of another instance on this host and port.
 	 */
-	private class ReceiveMessageTask extends AsyncTask<Void, MessageInfo, Void> {
-		@Override
-		protected Void doInBackground(Void... params) {
+	private final ReceiveEngine.Listener receiveListener = new ReceiveEngine.Listener() {
+
+		public void onPacket(DatagramChannel channel, ByteBuffer packet,
+				InetSocketAddress source) {
+			if (multicastGroup != null && source.getPort() == appPort
+					&& localAddresses.contains(source.getAddress())
+					&& sendQueue.isOwnDatagram(packet)) {
+				/*
+				 * Our own message to the group.
+				 */
+				return;
+			}
+			receivePipeline.onPacket(channel, packet, source);
+		}
 
-			/*
-			 * Main background loop: receiving and saving messages.
-			 * "publishProgress" calls back to the UI loop to notify the user
-			 * when a message is received.
-			 */
+		public void onPacketsDrained() {
+			receivePipeline.onPacketsDrained();
+		}
 
-			try {
-				while (true) {
-					MessageInfo msg = nextMessage();
-					addReceivedMessage(msg);
-					addSender(msg);
-					publishProgress(msg);
-				}
-			} catch (IOException e) {
-				Log.e(ChatApp.TAG, "Problem receiving a message: " + e);
-			}
-			return ((Void) null);
+		public void onFailure(IOException e) {
+			receivePipeline.onFailure(e);
 		}
 
-		@Override
-		protected void onProgressUpdate(MessageInfo... values) {
-			/*
-			 * Progress update for UI thread: The notification is given a
-			 * "pending intent," so that if the user selects the notification,
-			 * that pending intent is used to launch the main UI (ChatApp).
-			 */
-			String svcName = Context.NOTIFICATION_SERVICE;
-			NotificationManager notificationManager;
-			notificationManager = (NotificationManager) getSystemService(svcName);
+		public void onError(RuntimeException e) {
+			receivePipeline.onError(e);
+		}
+	};
 
-			Context context = getApplicationContext();
-			String expandedText = values[0].getMessage();
-			String expandedTitle = "M:" + values[0].getSender();
-			Intent startActivityIntent = new Intent(ChatService.this,
-					ChatApp.class);
-			PendingIntent launchIntent = PendingIntent.getActivity(context, 0,
-					startActivityIntent, 0);
+	/*
+	 * The logic that is performed on the receive engine thread: saving
+	 * messages.  Messages are saved in a batch once every packet that was
+	 * ready has been read, and the user is then notified.
+	 */
+	private final ReceivePipeline.Sink receiveSink = new ReceivePipeline.Sink() {
+
+		public boolean onMessage(MessageInfo message) {
+			if (pendingMessages.size() >= MAX_BATCH_SIZE) {
+				/*
+				 * Messages that could not be saved fill the batch: try them
+				 * again, and drop this one if there is still no room.
+				 */
+				saveReceivedMessages();
+				if (pendingMessages.size() >= MAX_BATCH_SIZE) {
+					return false;
+				}
+			}
+			if (metrics.get(Metrics.MESSAGES_RECEIVED) % LOG_SAMPLE_INTERVAL == 1) {
+				Log.d(ChatApp.TAG, "Received " + metrics.get(Metrics.MESSAGES_RECEIVED)
+						+ " messages in " + metrics.get(Metrics.PACKETS_RECEIVED) + " packets, "
+						+ metrics.get(Metrics.DUPLICATES) + " duplicates");
+			}
+			pendingReceivedAt[pendingMessages.size()] = System.nanoTime();
+			addReceivedMessage(message);
+			if (pendingMessages.size() >= MAX_BATCH_SIZE) {
+				saveReceivedMessages();
+			}
+			return true;
+		}
 
-			newMessageNotification.setLatestEventInfo(context, expandedTitle,
-					expandedText, launchIntent);
-			newMessageNotification.when = java.lang.System.currentTimeMillis();
+		public void onRateLimited(InetSocketAddress source, int reason) {
+			long peerLimited = metrics.get(Metrics.PEER_LIMITED);
+			long globalLimited = metrics.get(Metrics.GLOBAL_LIMITED);
+			if ((peerLimited + globalLimited) % LOG_SAMPLE_INTERVAL == 1) {
+				Log.w(ChatApp.TAG, "Dropping packets over the rate limit"
+						+ (reason == AdmissionControl.PEER_LIMITED ? " from " + source : "")
+						+ ": " + peerLimited + " over peer limits, "
+						+ globalLimited + " over the global limit");
+			}
+		}
 
-			notificationManager.notify(NOTIFICATION_ID, newMessageNotification);
+		public void onMalformed(InetSocketAddress source) {
+			long malformed = metrics.get(Metrics.MALFORMED);
+			if (malformed % LOG_SAMPLE_INTERVAL == 1) {
+				Log.w(ChatApp.TAG, "Dropped malformed packet from " + source
+						+ " (" + malformed + " so far)");
+			}
+		}
 
-			Toast.makeText(context, expandedTitle, Toast.LENGTH_SHORT).show();
+		public boolean onPacketsDrained() {
+			if (!pendingMessages.isEmpty() || !pendingPeers.isEmpty()) {
+				saveReceivedMessages();
+			}
+			return pendingMessages.isEmpty();
 		}
 
-		@Override
-		protected void onPostExecute(Void result) {
+		public void onFailure(IOException e) {
 			/*
 			 * If an exception is raised during message receipt, then stop the
-			 * background thread.
+			 * service.
 			 */
-			stopSelf();
+			Log.e(ChatApp.TAG, "Problem receiving a message: " + e);
+			mainHandler.post(new Runnable() {
+				public void run() {
+					stopSelf();
+				}
+			});
 		}
-	}
 
-	private MessageInfo nextMessage() throws IOException {
-		byte[] receiveData = new byte[1024];
-		
-		Log.i(ChatApp.TAG, "Waiting for a message.");
+		public void onError(RuntimeException e) {
+			long errors = metrics.get(Metrics.RECEIVE_ERRORS);
+			if (errors % LOG_SAMPLE_INTERVAL == 1) {
+				Log.e(ChatApp.TAG, "Error handling a received packet (" + errors
+						+ " so far)", e);
+			}
+		}
+	};
 
-		DatagramPacket receivePacket = new DatagramPacket(receiveData,
-				receiveData.length);
+	/*
+	 * Save the batch and notify the user of the messages saved, and record
+	 * how long each took from being decoded to being notified.  Messages
+	 * that could not be saved stay in the batch, to be tried again.
+	 */
+	private void saveReceivedMessages() {
+		ContentValues[] saved = commitReceivedMessages();
+		if (saved.length == 0) {
+			return;
+		}
+		notifyReceived(saved);
+		long now = System.nanoTime();
+		for (int i = 0; i < saved.length; i++) {
+			metrics.record(Metrics.DELIVERY, now - pendingReceivedAt[i]);
+		}
+		System.arraycopy(pendingReceivedAt, saved.length, pendingReceivedAt, 0,
+				pendingMessages.size());
+	}
 
-		appSocket.receive(receivePacket);
-		Log.i(ChatApp.TAG, "Received a packet.");
+	private void notifyReceived(ContentValues[] messages) {
+		long start = System.nanoTime();
+		for (ContentValues values : messages) {
+			notifications.add(values.getAsString(ChatContent.Messages.SENDER),
+					values.getAsString(ChatContent.Messages.MESSAGE));
+		}
+		metrics.record(Metrics.NOTIFICATION, System.nanoTime() - start);
+	}
+	
+	/*
+	 * Received messages are saved in batches: a batch is committed once every
+	 * packet that was ready has been read, or once it holds MAX_BATCH_SIZE
+	 * messages, whichever comes first.
+	 */
+	private static final int MAX_BATCH_SIZE = 64;
 
-		InetAddress sourceIPAddress = receivePacket.getAddress();
-		Log.d(ChatApp.TAG, "Source IP Address: " + sourceIPAddress);
+	private final ArrayList<ContentValues> pendingMessages = new ArrayList<ContentValues>();
 
-		String msgContents[] = new String(receivePacket.getData(), 0,
-				receivePacket.getLength()).split(":");
-		String name = msgContents[0];
-		InetAddress host = receivePacket.getAddress();
-		int port = receivePacket.getPort();
-		double latitude = Double.parseDouble(msgContents[1]);
-		double longitude = Double.parseDouble(msgContents[2]);
-		String message = msgContents[3];
+	/*
+	 * When each message in the batch was decoded (System.nanoTime()).
+	 */
+	private final long[] pendingReceivedAt = new long[MAX_BATCH_SIZE];
 
-		Log.i(ChatApp.TAG, "Received from " + name + ": " + message);
-		return new MessageInfo(name, host, port, latitude, longitude, message);
+	/*
+	 * Latest information for each sender in the batch, keyed by "host:port".
+	 */
+	private final LinkedHashMap<String, ContentValues> pendingPeers = new LinkedHashMap<String, ContentValues>();
 
-	}
-	
-	private Intent msgUpdateBroadcast = new Intent(NEW_MESSAGE_BROADCAST);
+	/*
+	 * Addresses of senders in the batch due to be looked up, once their rows
+	 * have been written.
+	 */
+	private final HashSet<String> pendingLookups = new HashSet<String>();
 
 	public void addReceivedMessage(MessageInfo msg) {
 		/*
-		 * Add sender and message to the content provider for received messages.
+		 * Add the message, and its sender, to the batch to be saved.
 		 */
 		ContentValues values = new ContentValues();
 		values.put(ChatContent.Messages.SENDER, msg.getSender());
 		values.put(ChatContent.Messages.MESSAGE, msg.getMessage());
-		ContentResolver cr = getContentResolver();
-		cr.insert(ChatContent.Messages.CONTENT_URI, values);
-		
-		/*
-		 * Logic for updating the Messages cursor is done on the UI thread.
-		 */
-		sendBroadcast(msgUpdateBroadcast);
+		pendingMessages.add(values);
+		addSender(msg);
 	}
 
 	public void addSender(MessageInfo msg) {
-
 		/*
-		 * TODO: Add sender information to content provider for peers
-		 * information, if we have not already heard from them. If repeat
-		 * message, update location information.
+		 * Add sender information to the batch for the peers content provider,
+		 * if we have not already heard from them or their location has changed.
+		 * The peer cache answers this without a database query.
 		 */
+		PeerCache peerCache = this.peerCache;
+		String host = msg.getSrcAddr();
+		if (hostNameResolver.isDue(host)) {
+			pendingLookups.add(host);
+		}
+		boolean known = peerCache.get(host, msg.getSrcPort()) != null;
+		if (!peerCache.update(msg.getSender(), host, msg.getSrcPort(),
+				msg.getLatitude(), msg.getLongitude())) {
+			/*
+			 * Already known, and nothing has changed.
+			 */
+			return;
+		}
+		ContentValues values = new ContentValues();
+		values.put(ChatContent.Peers.NAME, msg.getSender());
+		values.put(ChatContent.Peers.HOST, host);
+		values.put(ChatContent.Peers.PORT, msg.getSrcPort());
+		values.put(ChatContent.Peers.LATITUDE, msg.getLatitude());
+		values.put(ChatContent.Peers.LONGITUDE, msg.getLongitude());
+		if (!known) {
+			/*
+			 * A host name already looked up is saved with the new row.
+			 */
+			String hostName = hostNameResolver.getCachedName(host);
+			if (hostName != null) {
+				values.put(ChatContent.Peers.HOSTNAME, hostName);
+			}
+		}
+		pendingPeers.put(host + ":" + msg.getSrcPort(), values);
+	}
+
+	/*
+	 * Peers we have heard from, loaded from the peers content provider when
+	 * the service starts and written through to it as senders are added.
+	 * If the peers table is changed by anyone else, a new cache is loaded
+	 * on the resolver thread, so the receive thread never waits on the
+	 * query, and swapped in when ready; until then the old one is used.
+	 * Anything the receive thread adds to the old cache meanwhile may be
+	 * missing from the new one, which costs at most another upsert of the
+	 * same values.
+	 */
+	private volatile PeerCache peerCache = new PeerCache();
+
+	/*
+	 * Whether a reload is queued and not yet started, so a run of changes
+	 * queues one reload.  Cleared as the reload starts, so a change made
+	 * during its query queues another.
+	 */
+	private final AtomicBoolean peerCacheReloadQueued = new AtomicBoolean();
+
+	private void reloadPeerCache() {
+		if (peerCacheReloadQueued.compareAndSet(false, true)
+				&& !hostNameResolver.execute(peerCacheLoader)) {
+			peerCacheReloadQueued.set(false);
+		}
+	}
+
+	private final Runnable peerCacheLoader = new Runnable() {
+		public void run() {
+			peerCacheReloadQueued.set(false);
+			try {
+				PeerCache loaded = loadPeerCache();
+				if (loaded != null) {
+					peerCache = loaded;
+				}
+			} catch (SQLException e) {
+				Log.e(ChatApp.TAG, "Failed to load peers: " + e);
+			}
+		}
+	};
+
+	/*
+	 * Number of change notifications still to come for our own writes to the
+	 * peers table (the provider sends one per bulkInsert).  These do not make
+	 * the cache stale.  The count is raised before each write, since the
+	 * notification may arrive before the write returns, and lowered again
+	 * if the write fails, as there is then no notification.
+	 */
+	private final AtomicInteger ownPeerChanges = new AtomicInteger();
+
+	private final ContentObserver peerObserver = new ContentObserver(null) {
+		@Override
+		public void onChange(boolean selfChange) {
+			int pending;
+			do {
+				pending = ownPeerChanges.get();
+				if (pending == 0) {
+					reloadPeerCache();
+					return;
+				}
+			} while (!ownPeerChanges.compareAndSet(pending, pending - 1));
+		}
+	};
+
+	/*
+	 * One of our own writes to the peers table failed, so no notification
+	 * will come for it.  The count is not lowered past 0, in case another
+	 * change has taken its place meanwhile; the cache is reloaded anyway.
+	 */
+	private void ownPeerChangeFailed() {
+		int pending;
+		do {
+			pending = ownPeerChanges.get();
+		} while (pending > 0 && !ownPeerChanges.compareAndSet(pending, pending - 1));
+		reloadPeerCache();
+	}
+
+	/*
+	 * Host names are looked up in the background, and saved in the peers
+	 * table when they arrive, if new or changed.  A peer is looked up when
+	 * first heard from, and again when heard from once its name has
+	 * expired from the resolver's cache (sooner if the lookup failed), so a
+	 * name that has changed is picked up.  The row is updated by address,
+	 * so lookups wait until the batch that adds the row is written.
+	 */
+	private final HostNameResolver hostNameResolver = new HostNameResolver(
+			new HostNameResolver.Listener() {
+				public void onResolved(String address, String hostName) {
+					if (hostName == null) {
+						return;
+					}
+					ContentValues values = new ContentValues();
+					values.put(ChatContent.Peers.HOSTNAME, hostName);
+					ownPeerChanges.incrementAndGet();
+					try {
+						getContentResolver().update(ChatContent.Peers.CONTENT_URI, values,
+								ChatContent.Peers.HOST + " = ?", new String[] { address });
+					} catch (SQLException e) {
+						ownPeerChangeFailed();
+						Log.e(ChatApp.TAG, "Failed to save host name: " + e);
+					}
+				}
+			});
+
+	/*
+	 * The peers in the provider, or null if it cannot be queried.
+	 */
+	private PeerCache loadPeerCache() {
+		String[] projection = 
+				new String[] { ChatContent.Peers.NAME,
+							   ChatContent.Peers.HOST,
+							   ChatContent.Peers.PORT,
+							   ChatContent.Peers.LATITUDE,
+							   ChatContent.Peers.LONGITUDE };
+		Cursor c = getContentResolver().query(ChatContent.Peers.CONTENT_URI,
+				projection, null, null, null);
+		if (c == null) {
+			return null;
+		}
+		PeerCache loaded = new PeerCache();
+		try {
+			while (c.moveToNext()) {
+				loaded.update(ChatContent.Peers.getName(c),
+						ChatContent.Peers.getHost(c),
+						ChatContent.Peers.getPort(c),
+						ChatContent.Peers.getLatitude(c),
+						ChatContent.Peers.getLongitude(c));
+			}
+		} finally {
+			c.close();
+		}
+		return loaded;
+	}
+
+	/*
+	 * Whether the last attempt to save messages failed, so a run of
+	 * failures is logged once, when it starts, and once when it ends.
+	 */
+	private boolean saveFailing;
+
+	/*
+	 * Save the batch: one bulk insert for the messages (and so one change
+	 * notification to the UI), one transaction for the peers.  Host names
+	 * due are looked up once the peers' rows are there.  Returns the
+	 * messages that were saved, which are taken off the batch; the provider
+	 * saves messages in order, so any it could not save are those at the
+	 * end, and they are left in the batch.  Peers are taken off the batch
+	 * whether or not they could be saved, as the next message from each
+	 * brings its row up to date again.
+	 */
+	private ContentValues[] commitReceivedMessages() {
+		ContentValues[] messages = pendingMessages.toArray(new ContentValues[pendingMessages.size()]);
+		ContentValues[] peers = pendingPeers.values().toArray(new ContentValues[pendingPeers.size()]);
+		String[] lookups = pendingLookups.toArray(new String[pendingLookups.size()]);
+		pendingPeers.clear();
+		pendingLookups.clear();
+
 		ContentResolver cr = getContentResolver();
-		try
-		{
-			String tmpQry = ChatContent.Peers.HOST + " = ?" + " AND " + ChatContent.Peers.PORT  + " = ?" ;	//+"\" AND "+ChatContent.Peers.PORT+"=\""+msg.getSrcPort()+"\"";			
-			
-			String[] projection = 
-					new String[] { ChatContent.Peers._ID,
-								   ChatContent.Peers.NAME,
-								   ChatContent.Peers.HOST,
-								   ChatContent.Peers.PORT,
-								   ChatContent.Peers.LATITUDE,
-								   ChatContent.Peers.LONGITUDE};
-			String[] selectArg = { "", "" };
-			selectArg[0] = msg.getSrcAddr();
-			selectArg[1] = Integer.toString(msg.getSrcPort());
-			Cursor msgCursor = cr.query(ChatContent.Peers.CONTENT_URI,
-			        projection, tmpQry, selectArg, null);
-			
-			if (msgCursor.getCount() == 0)
-			{
-				ContentValues values = new ContentValues();
-				values.put(ChatContent.Peers.NAME, msg.getSender());
-				values.put(ChatContent.Peers.HOST, msg.getSrcAddr());
-				values.put(ChatContent.Peers.PORT, msg.getSrcPort());
-				values.put(ChatContent.Peers.LATITUDE, msg.getLatitude());
-				values.put(ChatContent.Peers.LONGITUDE, msg.getLongitude());		
-				cr.insert(ChatContent.Peers.CONTENT_URI, values);
+		int saved = 0;
+		if (messages.length > 0) {
+			SQLException failure = null;
+			long start = System.nanoTime();
+			try {
+				saved = cr.bulkInsert(ChatContent.Messages.CONTENT_URI, messages);
+			} catch (SQLException e) {
+				failure = e;
 			}
-			else 
-			{
-				if (msgCursor.moveToFirst())
-				{
-					int ID = msgCursor.getInt(0);
-					ContentValues values1 = new ContentValues();			
-					values1.put(ChatContent.Peers.LATITUDE, msg.getLatitude());
-					values1.put(ChatContent.Peers.LONGITUDE, msg.getLongitude());		
-					values1.put(ChatContent.Peers.HOST, msg.getSrcAddr());
-					values1.put(ChatContent.Peers.PORT, msg.getSrcPort());			
-					cr.update(ChatContent.Peers.CONTENT_URI, values1, ChatContent.Peers._ID+"="+ID, null);
+			metrics.record(Metrics.PROVIDER_INSERT, System.nanoTime() - start);
+			if (saved < messages.length) {
+				if (!saveFailing) {
+					Log.e(ChatApp.TAG, "Failed to save " + (messages.length - saved)
+							+ " messages, will try again"
+							+ (failure != null ? ": " + failure : ""));
 				}
+				saveFailing = true;
+			} else if (saveFailing) {
+				Log.i(ChatApp.TAG, "Saving messages again");
+				saveFailing = false;
 			}
+			pendingMessages.subList(0, saved).clear();
 		}
-		catch(SQLException ex)
-		{
-			throw ex;
+		if (peers.length > 0) {
+			ownPeerChanges.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				cr.bulkInsert(ChatContent.Peers.UPSERT_URI, peers);
+			} catch (SQLException e) {
+				ownPeerChangeFailed();
+				Log.e(ChatApp.TAG, "Failed to save peers: " + e);
+				/*
+				 * Not looked up: the rows may not be there.  They are due
+				 * again when the peers are next heard from.
+				 */
+				lookups = new String[0];
+			}
+			metrics.record(Metrics.PEER_UPSERT, System.nanoTime() - start);
 		}
-		catch(Exception ex)
-		{
-			Log.e("ChatServer", ex.getMessage());
+		for (String host : lookups) {
+			hostNameResolver.resolve(host);
 		}
-		/*
-		 * End Todo
-		 */
+		if (saved == messages.length) {
+			return messages;
+		}
+		ContentValues[] done = new ContentValues[saved];
+		System.arraycopy(messages, 0, done, 0, saved);
+		return done;
 	}
 
 }
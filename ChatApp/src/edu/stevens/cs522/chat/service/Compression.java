@@ -0,0 +1,123 @@
+/*********************************************************************
+
+    Compression of message bodies: deflate, primed with a dictionary of
+    text common in chat, using pooled Deflaters and Inflaters.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Bodies are raw deflate streams (no zlib header or checksum, which would
+ * cost ten bytes a datagram), compressed with DICTIONARY preset, so even a
+ * short message can refer back to words it does not itself repeat.  Both
+ * ends must use the same dictionary: changing it means a new VERSION of the
+ * wire format.
+ *
+ * A Deflater or Inflater holds native memory and takes a while to set up,
+ * so they are kept in small pools rather than created for each message.
+ * Each obtained must be passed back to recycle().
+ */
+public final class Compression {
+
+	/*
+	 * Bodies shorter than this are sent as they are: the saving would be a
+	 * few bytes at best.
+	 */
+	public static final int THRESHOLD = 128;
+
+	private static final int MAX_POOLED = 4;
+
+	/*
+	 * Deflate looks for matches anywhere in the dictionary, but the shortest
+	 * back references reach only the end of it, so the commonest text comes
+	 * last.
+	 */
+	private static final byte[] DICTIONARY = (
+			"http://www. .com .org .edu https:// "
+			+ "Stevens Institute of Technology Hoboken "
+			+ "Monday Tuesday Wednesday Thursday Friday Saturday Sunday "
+			+ "tomorrow tonight yesterday morning afternoon evening weekend "
+			+ "assignment homework project lecture class exam midterm final "
+			+ "question answer problem please thanks thank you sorry "
+			+ "meeting library lunch dinner coffee "
+			+ "about after again also always because before being could "
+			+ "does doing going have just know like make maybe need never "
+			+ "really right should some still that their them then there "
+			+ "these they thing think this time want well were what when "
+			+ "where which while will with would your "
+			+ "I'm I'll don't can't didn't it's that's what's let's "
+			+ "OK okay yes yeah hello hey see you later lol "
+			+ "the and to of a in is it for on are be at"
+			).getBytes(Charset.forName("UTF-8"));
+
+	private static final ArrayList<Deflater> deflaters = new ArrayList<Deflater>();
+	private static final ArrayList<Inflater> inflaters = new ArrayList<Inflater>();
+
+	private Compression() {
+	}
+
+	/*
+	 * A Deflater ready to compress one body.
+	 */
+	public static Deflater obtainDeflater() {
+		Deflater deflater = null;
+		synchronized (deflaters) {
+			if (!deflaters.isEmpty()) {
+				deflater = deflaters.remove(deflaters.size() - 1);
+			}
+		}
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		deflater.setDictionary(DICTIONARY);
+		return deflater;
+	}
+
+	public static void recycle(Deflater deflater) {
+		deflater.reset();
+		synchronized (deflaters) {
+			if (deflaters.size() < MAX_POOLED) {
+				deflaters.add(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	/*
+	 * An Inflater ready to decompress one body.
+	 */
+	public static Inflater obtainInflater() {
+		Inflater inflater = null;
+		synchronized (inflaters) {
+			if (!inflaters.isEmpty()) {
+				inflater = inflaters.remove(inflaters.size() - 1);
+			}
+		}
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		inflater.setDictionary(DICTIONARY);
+		return inflater;
+	}
+
+	public static void recycle(Inflater inflater) {
+		inflater.reset();
+		synchronized (inflaters) {
+			if (inflaters.size() < MAX_POOLED) {
+				inflaters.add(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+
+}
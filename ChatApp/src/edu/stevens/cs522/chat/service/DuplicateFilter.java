@@ -0,0 +1,130 @@
+/*********************************************************************
+
+    Duplicate filter: recognizes copies of messages already received,
+    by the message ids their senders give them.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * For each peer, the filter keeps the highest message id received and a
+ * bitmap of which of the WINDOW ids up to it have been received, so each
+ * check is a lookup and a few bit operations, in a fixed amount of memory
+ * per peer.  An id further back than the window is too old to tell, and is
+ * taken to be new: a sender numbers the messages to all its peers from one
+ * counter, so a message resent to us may well be that far behind what it
+ * has sent since, and losing it would be worse than showing a copy.  (The
+ * reliable transport drops copies of the datagrams it has delivered, so
+ * only copies made by the network get through this way.)  An id very much
+ * further back means the peer has restarted, and the window starts again
+ * from it.
+ *
+ * The filter remembers at most MAX_PEERS peers, forgetting the least
+ * recently heard from.
+ *
+ * Only the receive thread uses a filter, so it is not synchronized.
+ */
+public class DuplicateFilter {
+
+	private static final int WINDOW = 64;
+
+	private static final int RESYNC_DISTANCE = 1 << 16;
+
+	private static final int MAX_PEERS = 1024;
+
+	private static final class Window {
+		int highest;
+
+		/*
+		 * Bit i is set once id highest - i has been received.
+		 */
+		long received;
+
+		Window(int id) {
+			highest = id;
+			received = 1;
+		}
+	}
+
+	private final LinkedHashMap<InetSocketAddress, Window> peers = new LinkedHashMap<InetSocketAddress, Window>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Window> eldest) {
+			return size() > MAX_PEERS;
+		}
+	};
+
+	private int duplicates;
+
+	/*
+	 * Whether the message with this id from source has been accepted
+	 * already.  Nothing is recorded.
+	 */
+	public boolean isDuplicate(InetSocketAddress source, int messageId) {
+		Window window = peers.get(source);
+		if (window == null) {
+			return false;
+		}
+		int distance = difference(window.highest, messageId);
+		if (distance < 0 || distance > RESYNC_DISTANCE) {
+			return false;
+		}
+		return distance < WINDOW && (window.received & (1L << distance)) != 0;
+	}
+
+	/*
+	 * Record the message with this id from source.  Returns false if it is a
+	 * copy of one accepted already.
+	 */
+	public boolean accept(InetSocketAddress source, int messageId) {
+		Window window = peers.get(source);
+		if (window == null) {
+			peers.put(source, new Window(messageId));
+			return true;
+		}
+		int distance = difference(window.highest, messageId);
+		if (distance < 0) {
+			window.received = -distance < WINDOW ? window.received << -distance | 1 : 1;
+			window.highest = messageId;
+			return true;
+		}
+		if (distance > RESYNC_DISTANCE) {
+			window.highest = messageId;
+			window.received = 1;
+			return true;
+		}
+		if (distance >= WINDOW) {
+			return true;
+		}
+		long bit = 1L << distance;
+		if ((window.received & bit) != 0) {
+			duplicates++;
+			return false;
+		}
+		window.received |= bit;
+		return true;
+	}
+
+	/*
+	 * Number of copies dropped by accept().
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	/*
+	 * a - b, for 31-bit ids that wrap around.
+	 */
+	private static int difference(int a, int b) {
+		return ((a - b) << 1) >> 1;
+	}
+
+}
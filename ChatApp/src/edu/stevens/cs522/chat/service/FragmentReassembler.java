@@ -0,0 +1,278 @@
+/*********************************************************************
+
+    Fragment reassembler: collects the fragments of messages too long
+    for one datagram, and hands back each message once it is complete.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Each fragment is copied, on arrival, straight to its place in a buffer
+ * for the whole message, so a completed message is decoded from that buffer
+ * with no further copying.  The buffers are pooled, in power-of-two sizes.
+ *
+ * Memory is bounded: a message not completed within TIMEOUT is dropped, and
+ * if a new message would take the partly received messages over
+ * MAX_PENDING_BYTES or MAX_PENDING_MESSAGES, the oldest are dropped to make
+ * room.  A flood of fragments that are never completed can only displace
+ * other partial messages, never grow the heap.
+ *
+ * Only the receive thread uses a reassembler, so it is not synchronized.
+ */
+public class FragmentReassembler {
+
+	private static final long TIMEOUT = 10 * 1000;
+
+	private static final int MAX_PENDING_BYTES = 256 * 1024;
+	private static final int MAX_PENDING_MESSAGES = 64;
+
+	/*
+	 * Buffer sizes are powers of two from MIN_BUFFER_SIZE up.
+	 */
+	private static final int MIN_BUFFER_SHIFT = 10;
+	private static final int SIZE_CLASSES = 32 - Integer.numberOfLeadingZeros(
+			WireFormat.MAX_MESSAGE_SIZE - 1) - MIN_BUFFER_SHIFT + 1;
+
+	private static final class Key {
+		InetAddress address;
+		int port;
+		int messageId;
+
+		Key(InetAddress address, int port, int messageId) {
+			this.address = address;
+			this.port = port;
+			this.messageId = messageId;
+		}
+
+		@Override
+		public int hashCode() {
+			return (address.hashCode() * 31 + port) * 31 + messageId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return messageId == other.messageId && port == other.port
+					&& address.equals(other.address);
+		}
+	}
+
+	private static final class Partial {
+		final ByteBuffer buffer;
+		final int count;
+		final int bodyLength;
+		final byte version;
+		final int flags;
+		final long expires;
+
+		/*
+		 * Bit i is set once fragment i has arrived (MAX_FRAGMENTS <= 64).
+		 */
+		long received;
+		int receivedCount;
+
+		Partial(ByteBuffer buffer, int count, int bodyLength, byte version, int flags,
+				long expires) {
+			this.buffer = buffer;
+			this.count = count;
+			this.bodyLength = bodyLength;
+			this.version = version;
+			this.flags = flags;
+			this.expires = expires;
+		}
+	}
+
+	/*
+	 * Partly received messages, oldest first.
+	 */
+	private final LinkedHashMap<Key, Partial> pending = new LinkedHashMap<Key, Partial>();
+	private int pendingBytes;
+
+	private final Key probe = new Key(null, 0, 0);
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ArrayList<ByteBuffer>[] pool = new ArrayList[SIZE_CLASSES];
+	private int pooledBytes;
+
+	private int dropped;
+
+	/*
+	 * Whether add() turned away the last fragment it was given.
+	 */
+	private boolean rejected;
+
+	public FragmentReassembler() {
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			pool[i] = new ArrayList<ByteBuffer>();
+		}
+	}
+
+	/*
+	 * Add the fragment between the position and limit of packet (which are
+	 * left unchanged).  If it completes a message, returns a buffer holding
+	 * the whole message as an unfragmented datagram (with the version and
+	 * flags of the fragments, but for FLAG_FRAGMENT), which must be passed to
+	 * release() once it has been decoded; otherwise returns null.  Malformed
+	 * and duplicate fragments are ignored; wasRejected() tells a malformed
+	 * one from one that was kept, or had been.
+	 */
+	public ByteBuffer add(ByteBuffer packet, InetSocketAddress source) {
+		return add(packet, source, System.currentTimeMillis());
+	}
+
+	ByteBuffer add(ByteBuffer packet, InetSocketAddress source, long now) {
+		expire(now);
+		rejected = true;
+
+		int start = packet.position();
+		int end = packet.limit();
+		packet.position(start + WireFormat.HEADER_SIZE);
+		int messageId = WireFormat.getVarint(packet);
+		int index = WireFormat.getVarint(packet);
+		int count = WireFormat.getVarint(packet);
+		int bodyLength = WireFormat.getVarint(packet);
+		int dataStart = packet.position();
+		packet.position(start);
+
+		if (messageId < 0 || index < 0 || bodyLength < 0
+				|| count > WireFormat.MAX_FRAGMENTS
+				|| count != WireFormat.fragmentCount(bodyLength) || index >= count) {
+			return null;
+		}
+		int offset = index * WireFormat.FRAGMENT_DATA_SIZE;
+		if (end - dataStart != Math.min(WireFormat.FRAGMENT_DATA_SIZE, bodyLength - offset)) {
+			return null;
+		}
+
+		probe.address = source.getAddress();
+		probe.port = source.getPort();
+		probe.messageId = messageId;
+		Partial partial = pending.get(probe);
+		if (partial == null) {
+			ByteBuffer buffer = allocate(WireFormat.HEADER_SIZE + bodyLength);
+			int flags = packet.get(start + 3) & ~WireFormat.FLAG_FRAGMENT;
+			partial = new Partial(buffer, count, bodyLength, packet.get(start + 2), flags,
+					now + TIMEOUT);
+			pending.put(new Key(source.getAddress(), source.getPort(), messageId), partial);
+			pendingBytes += buffer.capacity();
+		} else if (partial.count != count || partial.bodyLength != bodyLength) {
+			return null;
+		}
+		rejected = false;
+
+		long bit = 1L << index;
+		if ((partial.received & bit) != 0) {
+			return null;
+		}
+
+		ByteBuffer buffer = partial.buffer;
+		buffer.limit(buffer.capacity());
+		buffer.position(WireFormat.HEADER_SIZE + offset);
+		packet.position(dataStart);
+		buffer.put(packet);
+		packet.position(start);
+		partial.received |= bit;
+		partial.receivedCount++;
+
+		if (partial.receivedCount < partial.count) {
+			return null;
+		}
+
+		pending.remove(probe);
+		pendingBytes -= buffer.capacity();
+		buffer.put(0, WireFormat.MAGIC_0);
+		buffer.put(1, WireFormat.MAGIC_1);
+		buffer.put(2, partial.version);
+		buffer.put(3, (byte) partial.flags);
+		buffer.position(0);
+		buffer.limit(WireFormat.HEADER_SIZE + bodyLength);
+		return buffer;
+	}
+
+	/*
+	 * Return the buffer of a completed message to the pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (pooledBytes + buffer.capacity() <= MAX_PENDING_BYTES) {
+			buffer.clear();
+			pool[sizeClass(buffer.capacity())].add(buffer);
+			pooledBytes += buffer.capacity();
+		}
+	}
+
+	/*
+	 * Whether the last fragment passed to add() was malformed, or did not
+	 * match the other fragments of its message, and so was not kept.
+	 */
+	public boolean wasRejected() {
+		return rejected;
+	}
+
+	/*
+	 * Number of messages dropped before they were complete.
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+
+	private void expire(long now) {
+		Iterator<Partial> partials = pending.values().iterator();
+		while (partials.hasNext()) {
+			Partial partial = partials.next();
+			if (partial.expires > now) {
+				break;
+			}
+			partials.remove();
+			drop(partial);
+		}
+	}
+
+	/*
+	 * A buffer for a message of length bytes, making room for it first if
+	 * need be by dropping the oldest partial messages.
+	 */
+	private ByteBuffer allocate(int length) {
+		int sizeClass = sizeClass(length);
+		int capacity = 1 << (sizeClass + MIN_BUFFER_SHIFT);
+		Iterator<Partial> partials = pending.values().iterator();
+		while (partials.hasNext() && (pendingBytes + capacity > MAX_PENDING_BYTES
+				|| pending.size() >= MAX_PENDING_MESSAGES)) {
+			Partial partial = partials.next();
+			partials.remove();
+			drop(partial);
+		}
+
+		ArrayList<ByteBuffer> free = pool[sizeClass];
+		if (!free.isEmpty()) {
+			ByteBuffer buffer = free.remove(free.size() - 1);
+			pooledBytes -= capacity;
+			return buffer;
+		}
+		return ByteBuffer.allocate(capacity);
+	}
+
+	private void drop(Partial partial) {
+		pendingBytes -= partial.buffer.capacity();
+		release(partial.buffer);
+		dropped++;
+	}
+
+	private static int sizeClass(int length) {
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+		return Math.max(0, shift - MIN_BUFFER_SHIFT);
+	}
+
+}
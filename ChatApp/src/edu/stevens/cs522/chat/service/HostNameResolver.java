@@ -0,0 +1,187 @@
+/*********************************************************************
+
+    Reverse DNS lookups for peer addresses, done on a background thread
+    so a slow or missing PTR record never holds up the receive loop.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+public class HostNameResolver {
+
+	/*
+	 * How long a lookup result is reused before the address is due to be
+	 * looked up again (see isDue).  Failed lookups are retried sooner.
+	 */
+	private static final long TTL = 60 * 60 * 1000;
+	private static final long NEGATIVE_TTL = 5 * 60 * 1000;
+
+	private static final int MAX_ENTRIES = 256;
+
+	public interface Listener {
+		/*
+		 * Called on the resolver thread, when an address is looked up for the
+		 * first time or its name has changed.  hostName is null if the
+		 * address has no name.
+		 */
+		public void onResolved(String address, String hostName);
+	}
+
+	private static class CachedName {
+		final String hostName;
+		final long expires;
+
+		CachedName(String hostName, long expires) {
+			this.hostName = hostName;
+			this.expires = expires;
+		}
+	}
+
+	private final Listener listener;
+
+	private final Map<String, CachedName> cache = new LinkedHashMap<String, CachedName>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/*
+	 * Addresses with a lookup queued or in progress.
+	 */
+	private final HashSet<String> pending = new HashSet<String>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "HostNameResolver");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	public HostNameResolver(Listener listener) {
+		this.listener = listener;
+	}
+
+	/*
+	 * Find the host name for a numeric address, and pass it to the listener
+	 * if it is new.  Returns immediately; the listener is called later, on
+	 * another thread.  Does nothing after shutdown().
+	 */
+	public void resolve(final String address) {
+		synchronized (this) {
+			if (!pending.add(address)) {
+				return;
+			}
+		}
+		Runnable task = new Runnable() {
+			public void run() {
+				CachedName previous;
+				synchronized (HostNameResolver.this) {
+					previous = cache.get(address);
+				}
+				String hostName = lookup(address);
+				synchronized (HostNameResolver.this) {
+					pending.remove(address);
+				}
+				if (previous == null || (hostName == null ? previous.hostName != null
+						: !hostName.equals(previous.hostName))) {
+					listener.onResolved(address, hostName);
+				}
+			}
+		};
+		if (!execute(task)) {
+			synchronized (this) {
+				pending.remove(address);
+			}
+		}
+	}
+
+	/*
+	 * Run task on the resolver thread, after the lookups already queued.
+	 * Returns false, and does nothing, after shutdown().
+	 */
+	public boolean execute(Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Whether address should be looked up: it never has been, or the result
+	 * has expired, and no lookup is under way.
+	 */
+	public synchronized boolean isDue(String address) {
+		if (pending.contains(address)) {
+			return false;
+		}
+		CachedName entry = cache.get(address);
+		return entry == null || entry.expires <= System.currentTimeMillis();
+	}
+
+	/*
+	 * The host name for address, if it has been looked up and the result is
+	 * still fresh, or null.
+	 */
+	public synchronized String getCachedName(String address) {
+		CachedName entry = cache.get(address);
+		if (entry != null && entry.expires > System.currentTimeMillis()) {
+			return entry.hostName;
+		}
+		return null;
+	}
+
+	private String lookup(String address) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			CachedName entry = cache.get(address);
+			if (entry != null && entry.expires > now) {
+				return entry.hostName;
+			}
+		}
+
+		String hostName = null;
+		try {
+			/*
+			 * getByName does not touch the network for a numeric address; the
+			 * reverse lookup is in getCanonicalHostName, which returns the
+			 * address itself if there is no name for it.
+			 */
+			String name = InetAddress.getByName(address).getCanonicalHostName();
+			if (!name.equals(address)) {
+				hostName = name;
+			}
+		} catch (UnknownHostException e) {
+			hostName = null;
+		}
+
+		long expires = now + (hostName != null ? TTL : NEGATIVE_TTL);
+		synchronized (this) {
+			cache.put(address, new CachedName(hostName, expires));
+		}
+		return hostName;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+}
@@ -1,9 +1,45 @@
 package edu.stevens.cs522.chat.service;
 
-import java.net.DatagramPacket;
+import java.util.concurrent.Future;
 
 public interface IChatService {
 	
-	public void send (DatagramPacket p);
+	/*
+	 * Queue a message for sending to the chat program at host and port, and
+	 * return at once.  The message is sent on the service's sender thread;
+	 * callback (which may be null) is called there when it has been sent.
+	 */
+	public Future<Void> enqueue (String host, int port, String message,
+			SendQueue.Callback callback);
+
+	/*
+	 * As above, but say whether the message is to be sent reliably: resent
+	 * until the peer acknowledges it, with callback called only then.
+	 */
+	public Future<Void> enqueue (String host, int port, String message,
+			boolean reliable, SendQueue.Callback callback);
+
+	/*
+	 * Whether messages to host and port are sent reliably by default.
+	 */
+	public void setReliable (String host, int port, boolean reliable);
+
+	/*
+	 * Queue a message for sending to every known peer matching selection (a
+	 * selection on the peers table; null for all of them), and return at once.
+	 */
+	public Future<Void> broadcast (String message, String selection,
+			String[] selectionArgs, SendQueue.Callback callback);
+
+	/*
+	 * The user has seen the messages received so far: remove the new
+	 * message notification.
+	 */
+	public void clearNotifications ();
+
+	/*
+	 * A snapshot of the service's counters and latency histograms.
+	 */
+	public Metrics.Snapshot getStats ();
 
 }
@@ -0,0 +1,238 @@
+/*********************************************************************
+
+    Latency tracker: one-way delay and jitter of the messages received
+    from each peer, from the send times the peers stamp on them.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A message's transit time, the time we received it less the time its
+ * sender stamped on it, is its one-way delay plus the difference between
+ * the sender's clock and ours.  We never hear the peer's view of our own
+ * clock, so the offset is estimated as the least transit time from the
+ * peer over the last one to two OFFSET_WINDOWs, which takes the least
+ * delay to be nothing (on a LAN it is well under a millisecond).  Delay is
+ * then transit less offset: the time the message spent queued, on the way
+ * or being resent, above the quickest the path has been.  Keeping the
+ * minimum over a sliding window lets the estimate follow clocks that drift
+ * apart, or are reset.
+ *
+ * Jitter is as in RFC 3550: the change in transit time between successive
+ * messages from a peer, which needs no clock offset, smoothed with gain
+ * 1/16.  Every change is also put in a histogram.
+ *
+ * The state of at most MAX_PEERS peers is kept, the least recently heard
+ * from forgotten first.  Messages are recorded on the receive thread, and
+ * the summaries read on others, so the tracker is synchronized.
+ */
+public class LatencyTracker {
+
+	private static final int MAX_PEERS = 1024;
+
+	private static final long OFFSET_WINDOW = 5 * 60 * 1000;
+
+	private static final int JITTER_GAIN = 16;
+
+	private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+	/*
+	 * The tracker the service records into, read by PeerInfoProvider in the
+	 * same process.
+	 */
+	private static final LatencyTracker shared = new LatencyTracker();
+
+	public static LatencyTracker getShared() {
+		return shared;
+	}
+
+	private static final class Peer {
+		final InetSocketAddress address;
+
+		long samples;
+
+		/*
+		 * Least transit time in the current window, which began at
+		 * windowStart, and in the one before.
+		 */
+		long windowStart;
+		long windowMinimum = Long.MAX_VALUE;
+		long previousMinimum = Long.MAX_VALUE;
+
+		long lastTransit;
+		double jitter;
+
+		final Metrics.Histogram delay = new Metrics.Histogram();
+		final Metrics.Histogram jitters = new Metrics.Histogram();
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		long getOffset() {
+			return Math.min(windowMinimum, previousMinimum);
+		}
+	}
+
+	private final LinkedHashMap<InetSocketAddress, Peer> peers = new LinkedHashMap<InetSocketAddress, Peer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Peer> eldest) {
+			return size() > MAX_PEERS;
+		}
+	};
+
+	/*
+	 * Delays and jitter of the messages from every peer together.
+	 */
+	private final Peer all = new Peer(null);
+
+	/*
+	 * Record a message from source, stamped sentAt by the sender's clock and
+	 * received at receivedAt by ours (both in ms since 1970).
+	 */
+	public synchronized void record(InetSocketAddress source, long sentAt, long receivedAt) {
+		Peer peer = peers.get(source);
+		if (peer == null) {
+			peer = new Peer(source);
+			peer.windowStart = receivedAt;
+			peers.put(source, peer);
+		}
+		long transit = receivedAt - sentAt;
+
+		if (receivedAt - peer.windowStart >= OFFSET_WINDOW) {
+			peer.previousMinimum = peer.windowMinimum;
+			peer.windowMinimum = Long.MAX_VALUE;
+			peer.windowStart = receivedAt;
+		}
+		peer.windowMinimum = Math.min(peer.windowMinimum, transit);
+		long delay = (transit - peer.getOffset()) * NANOS_PER_MILLI;
+		peer.delay.record(delay);
+		all.delay.record(delay);
+
+		if (peer.samples > 0) {
+			long change = Math.abs(transit - peer.lastTransit);
+			peer.jitter += (change - peer.jitter) / JITTER_GAIN;
+			peer.jitters.record(change * NANOS_PER_MILLI);
+			all.jitters.record(change * NANOS_PER_MILLI);
+		}
+		peer.lastTransit = transit;
+		peer.samples++;
+		all.samples++;
+	}
+
+	/*
+	 * Summaries for each peer, most recently heard from first.
+	 */
+	public synchronized List<Summary> getPeers() {
+		ArrayList<Summary> summaries = new ArrayList<Summary>(peers.size());
+		for (Peer peer : peers.values()) {
+			summaries.add(new Summary(peer));
+		}
+		Collections.reverse(summaries);
+		return summaries;
+	}
+
+	/*
+	 * A summary of the messages from all peers together.
+	 */
+	public synchronized Summary getAll() {
+		return new Summary(all);
+	}
+
+	public static class Summary {
+		private final InetSocketAddress address;
+		private final long samples;
+		private final long offset;
+		private final double jitter;
+		private final Metrics.HistogramSnapshot delay;
+		private final Metrics.HistogramSnapshot jitters;
+
+		Summary(Peer peer) {
+			address = peer.address;
+			samples = peer.samples;
+			offset = peer.address == null || samples == 0 ? 0 : peer.getOffset();
+			jitter = peer.jitter;
+			delay = peer.delay.snapshot();
+			jitters = peer.jitters.snapshot();
+		}
+
+		/*
+		 * The peer's numeric address and port, or null and 0 for the summary
+		 * of all peers.
+		 */
+		public String getHost() {
+			return address == null ? null : address.getAddress().getHostAddress();
+		}
+
+		public int getPort() {
+			return address == null ? 0 : address.getPort();
+		}
+
+		public long getSamples() {
+			return samples;
+		}
+
+		/*
+		 * Estimated ms by which our clock is ahead of the peer's (negative if
+		 * it is behind).
+		 */
+		public long getClockOffset() {
+			return offset;
+		}
+
+		/*
+		 * An upper bound, in ms, on the one-way delay of a fraction p of the
+		 * messages.
+		 */
+		public double getDelay(double p) {
+			return delay.getPercentile(p) / 1e3;
+		}
+
+		/*
+		 * Smoothed jitter, in ms; 0 for the summary of all peers.
+		 */
+		public double getJitter() {
+			return jitter;
+		}
+
+		public Metrics.HistogramSnapshot getDelayHistogram() {
+			return delay;
+		}
+
+		public Metrics.HistogramSnapshot getJitterHistogram() {
+			return jitters;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			if (address != null) {
+				s.append(getHost()).append(':').append(getPort()).append(": ");
+			}
+			s.append(samples).append(" messages");
+			if (address != null) {
+				s.append(", clock offset ").append(offset).append(" ms");
+			}
+			s.append(String.format("\ndelay p50 < %.1f, p99 < %.1f, max %.0f; jitter p99 < %.1f",
+					getDelay(0.5), getDelay(0.99), delay.getMax() / 1e3,
+					jitters.getPercentile(0.99) / 1e3));
+			if (address != null) {
+				s.append(String.format(", smoothed %.1f", jitter));
+			}
+			return s.toString();
+		}
+	}
+
+}
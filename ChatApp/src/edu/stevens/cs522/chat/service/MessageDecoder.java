@@ -0,0 +1,298 @@
+/*********************************************************************
+
+    Decoder for chat datagrams.  Fields are parsed straight from the
+    bytes of the packet: the only objects created per message are the
+    sender and message strings that end up being stored.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Packets are either in the binary format described in WireFormat, or in the
+ * legacy text format "sender:latitude:longitude:message".  In the text format
+ * only the first three colons are separators, so the message text may itself
+ * contain colons.
+ *
+ * A decoder keeps scratch space between calls, so each receive thread should
+ * use its own instance.
+ */
+public class MessageDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte SEPARATOR = (byte) ':';
+
+	/*
+	 * Powers of ten that are exactly representable as doubles.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/*
+	 * Mantissas of up to this many digits are exactly representable.
+	 */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/*
+	 * Used to pull text out of buffers that have no backing array.
+	 */
+	private byte[] scratch = new byte[1024];
+
+	/*
+	 * A compressed body, and the same body decompressed.
+	 */
+	private byte[] compressed = new byte[0];
+	private byte[] inflated = new byte[0];
+	private ByteBuffer inflatedBuffer = ByteBuffer.wrap(inflated);
+
+	/*
+	 * Decode the bytes between the position and the limit of packet into out.
+	 * The position of packet is not changed.  Returns false, leaving out in an
+	 * unspecified state, if the packet is malformed.
+	 */
+	public boolean decode(ByteBuffer packet, InetAddress srcAddr, int srcPort,
+			MessageInfo out) {
+		int start = packet.position();
+		int end = packet.limit();
+		if (WireFormat.isBinary(packet, start, end)) {
+			try {
+				return decodeBinary(packet, srcAddr, srcPort, out);
+			} finally {
+				packet.position(start);
+			}
+		}
+		return decodeText(packet, start, end, srcAddr, srcPort, out);
+	}
+
+	private boolean decodeBinary(ByteBuffer packet, InetAddress srcAddr,
+			int srcPort, MessageInfo out) {
+		packet.position(packet.position() + 2);
+		byte version = packet.get();
+		byte flags = packet.get();
+		int known = WireFormat.getMessageFlags(version);
+		if (known < 0 || (flags & ~known) != 0) {
+			return false;
+		}
+		if ((flags & WireFormat.FLAG_MESSAGE_ID) != 0 && WireFormat.getVarint(packet) < 0) {
+			return false;
+		}
+		long timestamp = MessageInfo.NO_TIMESTAMP;
+		if ((flags & WireFormat.FLAG_TIMESTAMP) != 0) {
+			if (packet.remaining() < 8) {
+				return false;
+			}
+			timestamp = packet.getLong();
+		}
+		boolean decoded;
+		if ((flags & WireFormat.FLAG_COMPRESSED) != 0) {
+			ByteBuffer body = inflate(packet);
+			decoded = body != null && decodeFields(body, srcAddr, srcPort, out);
+		} else {
+			decoded = decodeFields(packet, srcAddr, srcPort, out);
+		}
+		out.setTimestamp(timestamp);
+		return decoded;
+	}
+
+	/*
+	 * Decompress the body at the position of packet (its length, then the
+	 * compressed bytes) into a buffer that is reused by the next call.
+	 * Returns null if the body is malformed.
+	 */
+	private ByteBuffer inflate(ByteBuffer packet) {
+		int length = WireFormat.getVarint(packet);
+		if (length < 0 || length > WireFormat.MAX_MESSAGE_SIZE) {
+			return null;
+		}
+		if (inflated.length < length) {
+			inflated = new byte[length];
+			inflatedBuffer = ByteBuffer.wrap(inflated);
+		}
+
+		byte[] input;
+		int offset;
+		int inputLength = packet.remaining();
+		if (packet.hasArray()) {
+			input = packet.array();
+			offset = packet.arrayOffset() + packet.position();
+		} else {
+			if (compressed.length < inputLength) {
+				compressed = new byte[inputLength];
+			}
+			packet.get(compressed, 0, inputLength);
+			input = compressed;
+			offset = 0;
+		}
+
+		Inflater inflater = Compression.obtainInflater();
+		try {
+			inflater.setInput(input, offset, inputLength);
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int more = inflater.inflate(inflated, n, length - n);
+				if (more == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					return null;
+				}
+				n += more;
+			}
+			if (n != length) {
+				return null;
+			}
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			Compression.recycle(inflater);
+		}
+		inflatedBuffer.clear();
+		inflatedBuffer.limit(length);
+		return inflatedBuffer;
+	}
+
+	/*
+	 * Decode the fields after the header (and message id and timestamp) of
+	 * a binary datagram, at the position of packet.
+	 */
+	private boolean decodeFields(ByteBuffer packet, InetAddress srcAddr,
+			int srcPort, MessageInfo out) {
+		int senderLength = WireFormat.getVarint(packet);
+		if (senderLength < 0 || senderLength > packet.remaining() - 16) {
+			return false;
+		}
+		int senderStart = packet.position();
+		packet.position(senderStart + senderLength);
+		double latitude = packet.getDouble();
+		double longitude = packet.getDouble();
+
+		int messageLength = WireFormat.getVarint(packet);
+		if (messageLength < 0 || packet.remaining() != messageLength) {
+			return false;
+		}
+		int messageStart = packet.position();
+
+		String sender = getString(packet, senderStart, senderStart + senderLength);
+		String message = getString(packet, messageStart, messageStart + messageLength);
+
+		out.set(sender, srcAddr, srcPort, latitude, longitude, message);
+		return true;
+	}
+
+	private boolean decodeText(ByteBuffer packet, int start, int end,
+			InetAddress srcAddr, int srcPort, MessageInfo out) {
+		int senderEnd = indexOf(packet, start, end, SEPARATOR);
+		if (senderEnd < 0) {
+			return false;
+		}
+		int latitudeEnd = indexOf(packet, senderEnd + 1, end, SEPARATOR);
+		if (latitudeEnd < 0) {
+			return false;
+		}
+		int longitudeEnd = indexOf(packet, latitudeEnd + 1, end, SEPARATOR);
+		if (longitudeEnd < 0) {
+			return false;
+		}
+
+		double latitude = parseDouble(packet, senderEnd + 1, latitudeEnd);
+		double longitude = parseDouble(packet, latitudeEnd + 1, longitudeEnd);
+		if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return false;
+		}
+
+		String sender = getString(packet, start, senderEnd);
+		String message = getString(packet, longitudeEnd + 1, end);
+
+		out.set(sender, srcAddr, srcPort, latitude, longitude, message);
+		return true;
+	}
+
+	private static int indexOf(ByteBuffer b, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (b.get(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	String getString(ByteBuffer b, int from, int to) {
+		int length = to - from;
+		if (b.hasArray()) {
+			return new String(b.array(), b.arrayOffset() + from, length, UTF8);
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = b.get(from + i);
+		}
+		return new String(scratch, 0, length, UTF8);
+	}
+
+	/*
+	 * Parse a decimal number such as "-74.023937" without building a String.
+	 * Numbers with few enough significant digits are converted exactly with a
+	 * single division; anything else (exponents, long mantissas) falls back to
+	 * Double.parseDouble.  Returns NaN if the text is not a number.
+	 */
+	double parseDouble(ByteBuffer b, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (b.get(i) == '-' || b.get(i) == '+')) {
+			negative = b.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		boolean seenDigit = false;
+		for (; i < to; i++) {
+			byte c = b.get(i);
+			if (c >= '0' && c <= '9') {
+				seenDigit = true;
+				if (mantissa == 0 && c == '0') {
+					/* Leading zeros are not significant. */
+				} else {
+					digits++;
+					if (digits > MAX_EXACT_DIGITS) {
+						return parseSlowly(b, from, to);
+					}
+					mantissa = mantissa * 10 + (c - '0');
+				}
+				if (seenPoint) {
+					fractionDigits++;
+				}
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return parseSlowly(b, from, to);
+			}
+		}
+
+		if (!seenDigit || fractionDigits >= POWERS_OF_TEN.length) {
+			return parseSlowly(b, from, to);
+		}
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private double parseSlowly(ByteBuffer b, int from, int to) {
+		try {
+			return Double.parseDouble(getString(b, from, to).trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+/*********************************************************************
+
+    Encoder for chat datagrams, in the binary format described in
+    WireFormat.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * An encoder keeps scratch space for compression between calls, so each
+ * sender thread should use its own instance.
+ */
+public class MessageEncoder {
+
+	private byte[] uncompressed = new byte[0];
+	private byte[] compressed = new byte[0];
+
+	/*
+	 * Encode a message, with the sender's id for it, at the position of out,
+	 * which is left just after the encoded datagram.  Text is written straight
+	 * into out, without building intermediate byte arrays.  A body of at
+	 * least Compression.THRESHOLD bytes is then compressed in place, if that
+	 * makes it shorter.  Throws BufferOverflowException, with out in an
+	 * unspecified state, if the datagram does not fit.
+	 */
+	public void encode(ByteBuffer out, int messageId, String sender, double latitude,
+			double longitude, String message) throws BufferOverflowException {
+		encode(out, messageId, -1, sender, latitude, longitude, message);
+	}
+
+	/*
+	 * As above, stamped with the time it is sent (in ms since 1970), unless
+	 * that is negative.
+	 */
+	public void encode(ByteBuffer out, int messageId, long timestamp, String sender,
+			double latitude, double longitude, String message) throws BufferOverflowException {
+		encode(out, WireFormat.VERSION, messageId, timestamp, sender, latitude,
+				longitude, message);
+	}
+
+	/*
+	 * As above, in version 1 of the format, for a peer not known to read the
+	 * current one: never stamped or compressed.
+	 */
+	public void encodeVersion1(ByteBuffer out, int messageId, String sender,
+			double latitude, double longitude, String message) throws BufferOverflowException {
+		encode(out, WireFormat.VERSION_1, messageId, -1, sender, latitude, longitude,
+				message);
+	}
+
+	/*
+	 * As above, in version, for a peer known to read no later one.  The
+	 * timestamp is left out, and the message not compressed, in a version
+	 * without them.
+	 */
+	public void encode(ByteBuffer out, byte version, int messageId, long timestamp,
+			String sender, double latitude, double longitude, String message)
+			throws BufferOverflowException {
+		int flags = WireFormat.getMessageFlags(version);
+		if ((flags & WireFormat.FLAG_TIMESTAMP) == 0) {
+			timestamp = -1;
+		}
+		int start = out.position();
+		out.put(WireFormat.MAGIC_0);
+		out.put(WireFormat.MAGIC_1);
+		out.put(version);
+		out.put((byte) (timestamp < 0 ? WireFormat.FLAG_MESSAGE_ID
+				: WireFormat.FLAG_MESSAGE_ID | WireFormat.FLAG_TIMESTAMP));
+		WireFormat.putVarint(out, messageId);
+		if (timestamp >= 0) {
+			out.putLong(timestamp);
+		}
+		int bodyStart = out.position();
+		WireFormat.putString(out, sender);
+		out.putDouble(latitude);
+		out.putDouble(longitude);
+		WireFormat.putString(out, message);
+		if ((flags & WireFormat.FLAG_COMPRESSED) != 0
+				&& out.position() - bodyStart >= Compression.THRESHOLD) {
+			compress(out, start, bodyStart);
+		}
+	}
+
+	/*
+	 * Replace the body between bodyStart and the position of out with its
+	 * uncompressed length and the compressed body, and set FLAG_COMPRESSED,
+	 * unless that would not make it shorter.
+	 */
+	private void compress(ByteBuffer out, int start, int bodyStart) {
+		int end = out.position();
+		int length = end - bodyStart;
+		if (uncompressed.length < length) {
+			uncompressed = new byte[length];
+			compressed = new byte[length];
+		}
+		out.position(bodyStart);
+		out.get(uncompressed, 0, length);
+
+		int compressedLength = 0;
+		Deflater deflater = Compression.obtainDeflater();
+		try {
+			deflater.setInput(uncompressed, 0, length);
+			deflater.finish();
+			while (!deflater.finished() && compressedLength < length) {
+				compressedLength += deflater.deflate(compressed, compressedLength,
+						length - compressedLength);
+			}
+			if (!deflater.finished()) {
+				compressedLength = length;
+			}
+		} finally {
+			Compression.recycle(deflater);
+		}
+
+		/*
+		 * Allow five bytes, the most a varint takes, for the length.
+		 */
+		if (compressedLength + 5 >= length) {
+			out.position(end);
+			return;
+		}
+		out.position(bodyStart);
+		WireFormat.putVarint(out, length);
+		out.put(compressed, 0, compressedLength);
+		out.put(start + 3, (byte) (out.get(start + 3) | WireFormat.FLAG_COMPRESSED));
+	}
+
+	/*
+	 * Number of datagrams needed to send the encoded message between the
+	 * position and limit of message: 1 if it fits in one datagram (with room
+	 * for transport fields), else the number of fragments.
+	 */
+	public static int datagramCount(ByteBuffer message) {
+		if (message.remaining() <= WireFormat.MAX_DATAGRAM_SIZE
+				- WireFormat.MAX_TRANSPORT_FIELDS_SIZE) {
+			return 1;
+		}
+		return WireFormat.fragmentCount(message.remaining() - WireFormat.HEADER_SIZE);
+	}
+
+	/*
+	 * Encode fragment index of the encoded message between the position and
+	 * limit of message (which are left unchanged) at the position of out.
+	 * The fragment keeps the version and flags of the message, and adds
+	 * FLAG_FRAGMENT.
+	 */
+	public void encodeFragment(ByteBuffer out, ByteBuffer message, int messageId,
+			int index) {
+		int start = message.position();
+		int end = message.limit();
+		int bodyLength = end - start - WireFormat.HEADER_SIZE;
+		int count = WireFormat.fragmentCount(bodyLength);
+		int from = start + WireFormat.HEADER_SIZE + index * WireFormat.FRAGMENT_DATA_SIZE;
+		int to = Math.min(end, from + WireFormat.FRAGMENT_DATA_SIZE);
+
+		out.put(WireFormat.MAGIC_0);
+		out.put(WireFormat.MAGIC_1);
+		out.put(message.get(start + 2));
+		out.put((byte) (message.get(start + 3) | WireFormat.FLAG_FRAGMENT));
+		WireFormat.putVarint(out, messageId);
+		WireFormat.putVarint(out, index);
+		WireFormat.putVarint(out, count);
+		WireFormat.putVarint(out, bodyLength);
+
+		/*
+		 * Copy the piece by narrowing message, rather than slicing it, so that
+		 * no buffer object is created per fragment.
+		 */
+		message.limit(to);
+		message.position(from);
+		try {
+			out.put(message);
+		} finally {
+			message.limit(end);
+			message.position(start);
+		}
+	}
+
+}
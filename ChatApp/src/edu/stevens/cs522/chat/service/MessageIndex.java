@@ -0,0 +1,323 @@
+/*********************************************************************
+
+    Full-text index over the message log, for searching chat history
+    without reading it all back.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/*
+ * The index is an SQLite FTS4 table whose docids are the message ids in the
+ * log.  It is contentless: it holds the terms of each message but not the
+ * text, which is read back from the log, so the history is not stored
+ * twice.  (SQLite before 3.7.9, on older devices, has no contentless
+ * tables, and there the table keeps a copy of the text, unused.)  The log
+ * remains the record of the messages: if the index falls behind it (or is
+ * lost), the missing messages are indexed again from the log when the
+ * provider opens it.
+ */
+public class MessageIndex {
+
+	private static final String DATABASE_NAME = "messages_search.db";
+	private static final int DATABASE_VERSION = 2;
+	private static final String INDEX_TABLE_NAME = "messages_fts";
+
+	/*
+	 * Weight of a match in each indexed column: sender, then message.
+	 */
+	private static final double[] COLUMN_WEIGHTS = { 0.5, 1.0 };
+
+	/*
+	 * Most matches ranked by a search (unless a page further down than this
+	 * is asked for): the most recent.
+	 */
+	private static final int MAX_CANDIDATES = 1000;
+
+	public static final String[] COLUMNS = { ChatContent.Messages._ID,
+											 ChatContent.Messages.SENDER,
+											 ChatContent.Messages.MESSAGE,
+											 ChatContent.Messages.RANK };
+
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+		DatabaseHelper(Context context) {
+			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			createTable(db);
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			/*
+			 * The index can always be rebuilt from the log.
+			 */
+			db.execSQL("DROP TABLE IF EXISTS " + INDEX_TABLE_NAME);
+			onCreate(db);
+		}
+	}
+
+	private static void createTable(SQLiteDatabase db) {
+		try {
+			db.execSQL("CREATE VIRTUAL TABLE " + INDEX_TABLE_NAME + " USING fts4("
+					+ "content=\"\", "
+					+ ChatContent.Messages.SENDER + ", "
+					+ ChatContent.Messages.MESSAGE
+					+ ");");
+		} catch (SQLiteException e) {
+			db.execSQL("CREATE VIRTUAL TABLE " + INDEX_TABLE_NAME + " USING fts4("
+					+ ChatContent.Messages.SENDER + ", "
+					+ ChatContent.Messages.MESSAGE
+					+ ");");
+		}
+	}
+
+	private static class Candidate {
+		final long id;
+		final double rank;
+
+		Candidate(long id, double rank) {
+			this.id = id;
+			this.rank = rank;
+		}
+	}
+
+	/*
+	 * Best first: by rank, then the most recent first.
+	 */
+	private static final Comparator<Candidate> BY_RANK = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+			int order = Double.compare(b.rank, a.rank);
+			return order != 0 ? order : (a.id < b.id ? 1 : (a.id == b.id ? 0 : -1));
+		}
+	};
+
+	private static final Comparator<Candidate> WORST_FIRST = Collections.reverseOrder(BY_RANK);
+
+	private final SQLiteDatabase db;
+
+	private final MessageLog log;
+
+	private SQLiteStatement insert;
+
+	public MessageIndex(Context context, MessageLog log) {
+		this.log = log;
+		db = new DatabaseHelper(context).getWritableDatabase();
+		compileInsert();
+	}
+
+	private void compileInsert() {
+		insert = db.compileStatement("INSERT INTO " + INDEX_TABLE_NAME
+				+ " (docid, " + ChatContent.Messages.SENDER + ", "
+				+ ChatContent.Messages.MESSAGE + ") VALUES (?, ?, ?)");
+	}
+
+	/*
+	 * Id of the most recent message indexed, 0 if none.
+	 */
+	public long getLastId() {
+		/*
+		 * A contentless table cannot be scanned, so this asks the table FTS4
+		 * keeps of each document's size, which has a row for every docid.
+		 */
+		SQLiteStatement last = db.compileStatement("SELECT IFNULL(MAX(docid), 0) FROM "
+				+ INDEX_TABLE_NAME + "_docsize");
+		try {
+			return last.simpleQueryForLong();
+		} finally {
+			last.close();
+		}
+	}
+
+	/*
+	 * Drop every message, so the index can be rebuilt from the log, if the
+	 * log has lost messages the index has.  (Rows cannot be deleted from a
+	 * contentless table without their text, which the log no longer has.)
+	 */
+	public void clear() {
+		insert.close();
+		db.execSQL("DROP TABLE IF EXISTS " + INDEX_TABLE_NAME);
+		createTable(db);
+		compileInsert();
+	}
+
+	/*
+	 * Messages added between beginBatch and endBatch are committed together.
+	 */
+	public void beginBatch() {
+		db.beginTransaction();
+	}
+
+	public void endBatch() {
+		try {
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/*
+	 * Index a message.  Callers serialize calls to add.
+	 */
+	public void add(long id, String sender, String message) {
+		insert.bindLong(1, id);
+		insert.bindString(2, sender);
+		insert.bindString(3, message);
+		insert.executeInsert();
+	}
+
+	/*
+	 * Messages matching every word in query, best match first, skipping the
+	 * first offset and returning up to limit.  Columns are COLUMNS.
+	 *
+	 * Only the most recent MAX_CANDIDATES matches (or offset + limit, if
+	 * more) are taken from SQLite, which reads the index in docid order and
+	 * stops there, so a search for a common word costs no more than one for
+	 * a rare one; older matches are found by searching for more words.
+	 * Those are ranked as SQLite returns them, and only the best
+	 * offset + limit kept.  (FTS4 has no ranking function of its own, and
+	 * Android has no way to add one, so ranking cannot be left to the
+	 * query.)  The text of the page is then read from the log.
+	 */
+	public Cursor search(String query, int offset, int limit) {
+		MatrixCursor results = new MatrixCursor(COLUMNS, Math.max(0, limit));
+		String match = toMatchExpression(query);
+		if (match == null || limit <= 0) {
+			return results;
+		}
+
+		int keep = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+		int candidates = Math.max(MAX_CANDIDATES, keep);
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.min(keep, 64),
+				WORST_FIRST);
+		Cursor c = db.rawQuery("SELECT docid, matchinfo(" + INDEX_TABLE_NAME + ", 'pcnx')"
+				+ " FROM " + INDEX_TABLE_NAME + " WHERE " + INDEX_TABLE_NAME + " MATCH ?"
+				+ " ORDER BY docid DESC LIMIT " + candidates,
+				new String[] { match });
+		try {
+			while (c.moveToNext()) {
+				Candidate candidate = new Candidate(c.getLong(0), rank(c.getBlob(1)));
+				if (best.size() < keep) {
+					best.add(candidate);
+				} else if (BY_RANK.compare(candidate, best.peek()) < 0) {
+					best.poll();
+					best.add(candidate);
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		ArrayList<Candidate> ranked = new ArrayList<Candidate>(best);
+		Collections.sort(ranked, BY_RANK);
+		for (int i = offset; i < ranked.size(); i++) {
+			Candidate candidate = ranked.get(i);
+			try {
+				results.addRow(new Object[] { candidate.id, log.getSender(candidate.id),
+						log.getMessage(candidate.id), candidate.rank });
+			} catch (IOException e) {
+				Log.e(ChatApp.TAG, "Cannot read message " + candidate.id, e);
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Ids of the messages, with ids lowId to highId, whose sender has the
+	 * words of sender, in that order, in id order (newest first if
+	 * descending); or null if sender has no words to look for.  The words
+	 * may match a longer name too, so the caller checks each sender.
+	 */
+	public Cursor findFrom(String sender, long lowId, long highId, boolean descending) {
+		String phrase = sender.replace('"', ' ').trim();
+		if (!hasWord(phrase)) {
+			return null;
+		}
+		return db.rawQuery("SELECT docid FROM " + INDEX_TABLE_NAME + " WHERE "
+				+ INDEX_TABLE_NAME + " MATCH ? AND docid BETWEEN " + lowId + " AND "
+				+ highId + " ORDER BY docid " + (descending ? "DESC" : "ASC"),
+				new String[] { ChatContent.Messages.SENDER + ":\"" + phrase + "\"" });
+	}
+
+	/*
+	 * Whether text has a character the FTS tokenizer keeps: a letter or
+	 * digit, or anything outside ASCII.
+	 */
+	private static boolean hasWord(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c > 127 || Character.isLetterOrDigit(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * An FTS expression that matches every word of query, each taken
+	 * literally, or null if query has no words.
+	 */
+	static String toMatchExpression(String query) {
+		if (query == null) {
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		for (String word : query.trim().split("\\s+")) {
+			word = word.replace("\"", "");
+			if (word.length() > 0) {
+				if (match.length() > 0) {
+					match.append(' ');
+				}
+				match.append('"').append(word).append('"');
+			}
+		}
+		return match.length() > 0 ? match.toString() : null;
+	}
+
+	/*
+	 * Relevance of a message, from its FTS matchinfo 'pcnx' blob: for each
+	 * word and column, the hits in this message (with diminishing returns),
+	 * weighted by the column and by how rare the word is overall.
+	 */
+	static double rank(byte[] matchinfo) {
+		ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		int phrases = info.getInt(0);
+		int columns = info.getInt(4);
+		long rows = info.getInt(8) & 0xffffffffL;
+		double rank = 0;
+		for (int p = 0; p < phrases; p++) {
+			for (int col = 0; col < columns; col++) {
+				int x = 12 + 12 * (p * columns + col);
+				int hits = info.getInt(x);
+				if (hits > 0) {
+					long docs = info.getInt(x + 8) & 0xffffffffL;
+					double weight = col < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[col] : 1.0;
+					rank += weight * hits / (hits + 1.0) * Math.log(1.0 + (double) rows / docs);
+				}
+			}
+		}
+		return rank;
+	}
+
+}
@@ -11,6 +11,11 @@ package edu.stevens.cs522.chat.service;
 import java.net.InetAddress;
 
 public class MessageInfo {
+
+	/*
+	 * getTimestamp() of a message its sender did not stamp.
+	 */
+	public static final long NO_TIMESTAMP = -1;
 	
 	private String sender;
 	private InetAddress srcAddr;
@@ -18,21 +23,47 @@ public class MessageInfo {
 	private double latitude;
 	private double longitude;
 	private String message;
+	private long timestamp = NO_TIMESTAMP;
 	
 	public String getSender() { return sender; }
-	public String getSrcAddr() { return srcAddr.getCanonicalHostName(); }
+	/*
+	 * The numeric address of the sender.  (No reverse DNS lookup here: this is
+	 * called on the receive thread for every message.)
+	 */
+	public String getSrcAddr() { return srcAddr.getHostAddress(); }
 	public int getSrcPort() { return srcPort; }
 	public double getLatitude() { return latitude; }
 	public double getLongitude() { return longitude; }
 	public String getMessage() { return message; }
+	/*
+	 * When the sender sent the message, by its clock, in ms since 1970; or
+	 * NO_TIMESTAMP.
+	 */
+	public long getTimestamp() { return timestamp; }
 	
 	public MessageInfo (String s, InetAddress a, int p, double lat, double lng, String m) {
+		set(s, a, p, lat, lng, m);
+	}
+
+	/*
+	 * An empty message, to be filled in by a MessageDecoder.  The receive loop
+	 * reuses one instance for every packet rather than allocating a new one.
+	 */
+	public MessageInfo () {
+	}
+
+	void set (String s, InetAddress a, int p, double lat, double lng, String m) {
 		sender = s;
 		srcAddr = a;
 		srcPort = p;
 		latitude = lat;
 		longitude = lng;
 		message = m;
+		timestamp = NO_TIMESTAMP;
+	}
+
+	void setTimestamp (long t) {
+		timestamp = t;
 	}
 
 }
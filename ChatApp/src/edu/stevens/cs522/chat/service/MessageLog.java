@@ -0,0 +1,600 @@
+/*********************************************************************
+
+    Append-only log of chat messages.  Records are only ever added at
+    the end of the log segment, so the cost of an insert does not depend
+    on how many messages are already stored.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Record layout (all integers big-endian):
+ *
+ *   int length    number of payload bytes that follow the header
+ *   int checksum  CRC32 of the payload
+ *   payload       long id, int n, n bytes of UTF-8 sender,
+ *                 int m, m bytes of UTF-8 message
+ *
+ * Ids are consecutive.  Beside the segment is an index file (the segment's
+ * name with ".idx" added) of fixed-width entries: the 8-byte offset in the
+ * segment of each record, in id order, so a record is found from its id
+ * with one lookup.  Both files are read through memory mappings of
+ * CHUNK_SIZE-byte chunks, so reading a record costs at most a page fault
+ * or two, however long the history, and nothing is read into memory but
+ * the records asked for.  Each file is extended with zeros to the end of
+ * the chunk its last record is in, so every chunk can be mapped whole, and
+ * is mapped just once however many records are then appended to it.  Only
+ * the MAX_MAPPED_CHUNKS most recently used chunks are kept mapped, so the
+ * address space taken stays bounded however large the log grows; a record
+ * that crosses the end of a chunk is read from the file instead.  Closing
+ * the log cuts the zeros off again, unless a cursor over it is still open
+ * (see addReader); otherwise, and after a crash, recovery does.
+ *
+ * A record whose header or payload is cut short, or whose checksum does
+ * not match, can only be the result of a crash in the middle of an append.
+ * Recovery drops it and truncates the segment back to the last good record.
+ * Records are written before their index entries, so after a crash the
+ * index may lack entries for the last few records; recovery checks the
+ * last record the index has, and indexes any after it.  An index that does
+ * not match the segment is rebuilt, as is a missing one.
+ *
+ * Records that have been flushed may be read from any thread, as a cursor
+ * over the log is; appending and flushing are synchronized.
+ */
+public class MessageLog {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	/*
+	 * Upper bound on a single record, so a corrupt length field cannot make
+	 * recovery try to allocate an absurd buffer.
+	 */
+	private static final int MAX_RECORD_SIZE = 1 << 20;
+
+	/*
+	 * Appends are staged in memory and written out together.  The buffer is
+	 * written as soon as it holds this much, even without an explicit flush.
+	 */
+	private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+	private static final int CHUNK_SHIFT = 20;
+	private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+	/*
+	 * Chunks kept mapped, per file: at most 128 MB of address space, which
+	 * holds the index of a hundred million messages, and a segment of a
+	 * million or so.
+	 */
+	private static final int MAX_MAPPED_CHUNKS = 128;
+
+	/*
+	 * Callback for replaying the records in the log.
+	 */
+	public interface Visitor {
+		public void visit(long id, String sender, String message);
+	}
+
+	/*
+	 * Read access to a file through mappings of its chunks.
+	 */
+	private static final class ChunkedFile {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+
+		/*
+		 * Length the file has been extended to.  Guarded by the log.
+		 */
+		private long allocated;
+
+		private final LinkedHashMap<Long, MappedByteBuffer> chunks = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+				return size() > MAX_MAPPED_CHUNKS;
+			}
+		};
+
+		ChunkedFile(RandomAccessFile file) throws IOException {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.allocated = file.length();
+		}
+
+		/*
+		 * The length bytes of the file at offset, of which the first size
+		 * bytes have been written, as a buffer with its position at the first
+		 * of them and its limit after the last.
+		 */
+		ByteBuffer read(long offset, int length, long size) throws IOException {
+			if (offset + length > size) {
+				throw new EOFException("Read past end of message log");
+			}
+			long chunk = offset >>> CHUNK_SHIFT;
+			long chunkStart = chunk << CHUNK_SHIFT;
+			if (offset + length <= chunkStart + CHUNK_SIZE) {
+				MappedByteBuffer map;
+				synchronized (this) {
+					map = chunks.get(chunk);
+					if (map == null) {
+						map = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, CHUNK_SIZE);
+						chunks.put(chunk, map);
+					}
+				}
+				ByteBuffer b = map.duplicate();
+				int p = (int) (offset - chunkStart);
+				b.limit(p + length);
+				b.position(p);
+				return b;
+			}
+			ByteBuffer b = ByteBuffer.allocate(length);
+			while (b.hasRemaining()) {
+				if (channel.read(b, offset + b.position()) < 0) {
+					throw new EOFException("Read past end of message log");
+				}
+			}
+			b.flip();
+			return b;
+		}
+
+		/*
+		 * Extend the file to the end of the chunk that holds the byte before
+		 * size, so the chunk can be mapped whole.
+		 */
+		void allocate(long size) throws IOException {
+			long end = (size + CHUNK_SIZE - 1) & -CHUNK_SIZE;
+			if (end > allocated) {
+				file.setLength(end);
+				allocated = end;
+			}
+		}
+
+		/*
+		 * Cut the file to length, dropping the mappings of what is cut off.
+		 */
+		void truncate(long length) throws IOException {
+			clear();
+			file.setLength(length);
+			allocated = length;
+		}
+
+		synchronized void clear() {
+			chunks.clear();
+		}
+	}
+
+	private final File file;
+	private final File indexFile;
+
+	private RandomAccessFile segment;
+	private RandomAccessFile index;
+
+	private ChunkedFile segmentChunks;
+	private ChunkedFile indexChunks;
+
+	private byte[] pending = new byte[4096];
+	private int pendingLength = 0;
+
+	private byte[] pendingIndex = new byte[512];
+	private int pendingIndexLength = 0;
+
+	private final CRC32 crc = new CRC32();
+
+	private long firstId = 0;
+	private long lastId = 0;
+
+	/*
+	 * Length of the segment, including records not yet flushed, and of what
+	 * has been written of the segment and of the index.
+	 */
+	private long size = 0;
+	private long flushedSize = 0;
+	private long flushedIndexSize = 0;
+
+	public MessageLog(File file) {
+		this.file = file;
+		this.indexFile = new File(file.getPath() + ".idx");
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/*
+	 * Recover the segment and its index, and position the log for appending
+	 * after the last complete record.  If visitor is not null, every record
+	 * is then passed to it.
+	 */
+	public synchronized void open(Visitor visitor) throws IOException {
+		segment = new RandomAccessFile(file, "rw");
+		index = new RandomAccessFile(indexFile, "rw");
+		segmentChunks = new ChunkedFile(segment);
+		indexChunks = new ChunkedFile(index);
+		long length = segment.length();
+
+		/*
+		 * Check the first record the index has, for the first id, and the
+		 * last, and trust the entries in between.
+		 */
+		long count = countEntries(index.length() / INDEX_ENTRY_SIZE);
+		long indexLength = count * INDEX_ENTRY_SIZE;
+		long validLength = 0;
+		if (count > 0) {
+			long firstOffset = readLong(indexChunks, 0, indexLength);
+			long lastOffset = readLong(indexChunks, indexLength - INDEX_ENTRY_SIZE, indexLength);
+			int firstLength = firstOffset == 0 ? checkRecord(0, length) : -1;
+			int lastLength = firstLength >= 0 && lastOffset >= 0 && lastOffset < length
+					? checkRecord(lastOffset, length) : -1;
+			if (lastLength >= 0 && readLong(segmentChunks, lastOffset + HEADER_SIZE, length)
+					== readLong(segmentChunks, HEADER_SIZE, length) + count - 1) {
+				firstId = readLong(segmentChunks, HEADER_SIZE, length);
+				validLength = lastOffset + HEADER_SIZE + lastLength;
+			} else {
+				count = 0;
+			}
+		}
+		indexChunks.truncate(count * INDEX_ENTRY_SIZE);
+		flushedIndexSize = count * INDEX_ENTRY_SIZE;
+
+		/*
+		 * Index whatever the index does not have yet.
+		 */
+		while (validLength < length) {
+			int recordLength = checkRecord(validLength, length);
+			if (recordLength < 0) {
+				break;
+			}
+			long id = readLong(segmentChunks, validLength + HEADER_SIZE, length);
+			if (count == 0) {
+				firstId = id;
+			} else if (id != firstId + count) {
+				break;
+			}
+			stageIndexEntry(validLength);
+			count++;
+			validLength += HEADER_SIZE + recordLength;
+		}
+
+		if (validLength < length) {
+			/*
+			 * Partly written last record, or the zeros after the last record:
+			 * cut them off so new records are appended after the last
+			 * complete one.
+			 */
+			segmentChunks.truncate(validLength);
+		}
+		size = validLength;
+		flushedSize = validLength;
+		lastId = count == 0 ? 0 : firstId + count - 1;
+		if (count == 0) {
+			firstId = 0;
+		}
+		flush();
+
+		if (visitor != null) {
+			for (long id = firstId; id != 0 && id <= lastId; id++) {
+				visitor.visit(id, getSender(id), getMessage(id));
+			}
+		}
+	}
+
+	/*
+	 * Number of entries in an index file that has room for entries: those
+	 * up to the zeros the file was extended with, if it was not closed.
+	 * Offsets after the first are never 0, so the zeros start at the first
+	 * entry after it that is 0.
+	 */
+	private long countEntries(long entries) throws IOException {
+		long size = entries * INDEX_ENTRY_SIZE;
+		if (entries < 2 || readLong(indexChunks, size - INDEX_ENTRY_SIZE, size) != 0) {
+			return entries;
+		}
+		long low = 1;
+		long high = entries - 1;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (readLong(indexChunks, middle * INDEX_ENTRY_SIZE, size) == 0) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	private static long readLong(ChunkedFile chunks, long offset, long size) throws IOException {
+		ByteBuffer b = chunks.read(offset, 8, size);
+		return b.getLong(b.position());
+	}
+
+	/*
+	 * Length of the payload of the record at offset in a segment of length
+	 * bytes, or -1 if the record is cut short or its checksum does not match.
+	 */
+	private int checkRecord(long offset, long length) throws IOException {
+		if (offset + HEADER_SIZE > length) {
+			return -1;
+		}
+		ByteBuffer header = segmentChunks.read(offset, HEADER_SIZE, length);
+		int recordLength = header.getInt(header.position());
+		int checksum = header.getInt(header.position() + 4);
+		if (recordLength < 16 || recordLength > MAX_RECORD_SIZE
+				|| offset + HEADER_SIZE + recordLength > length) {
+			return -1;
+		}
+		byte[] payload = new byte[recordLength];
+		segmentChunks.read(offset + HEADER_SIZE, recordLength, length).get(payload);
+		crc.reset();
+		crc.update(payload, 0, recordLength);
+		if ((int) crc.getValue() != checksum) {
+			return -1;
+		}
+		int senderLength = getInt(payload, 8);
+		if (senderLength < 0 || 12 + senderLength + 4 > recordLength) {
+			return -1;
+		}
+		int messageLength = getInt(payload, 12 + senderLength);
+		if (messageLength < 0 || 16 + senderLength + messageLength != recordLength) {
+			return -1;
+		}
+		return recordLength;
+	}
+
+	/*
+	 * Id of the oldest record in the log, 0 if the log is empty.
+	 */
+	public synchronized long getFirstId() {
+		return firstId;
+	}
+
+	/*
+	 * Id of the most recent record in the log, 0 if the log is empty.
+	 */
+	public synchronized long getLastId() {
+		return lastId;
+	}
+
+	/*
+	 * Stage a new record and return the id assigned to it.  The record is
+	 * not guaranteed to be on disk until the next flush().
+	 */
+	public synchronized long append(String sender, String message) throws IOException {
+		byte[] senderBytes = sender.getBytes(UTF8);
+		byte[] messageBytes = message.getBytes(UTF8);
+		int length = 16 + senderBytes.length + messageBytes.length;
+		if (length > MAX_RECORD_SIZE) {
+			throw new IOException("Message too large to log: " + length + " bytes");
+		}
+
+		ensurePending(HEADER_SIZE + length);
+		int start = pendingLength;
+		int p = start + HEADER_SIZE;
+		long id = lastId + 1;
+		putLong(pending, p, id);
+		putInt(pending, p + 8, senderBytes.length);
+		System.arraycopy(senderBytes, 0, pending, p + 12, senderBytes.length);
+		putInt(pending, p + 12 + senderBytes.length, messageBytes.length);
+		System.arraycopy(messageBytes, 0, pending, p + 16 + senderBytes.length,
+				messageBytes.length);
+
+		crc.reset();
+		crc.update(pending, p, length);
+		putInt(pending, start, length);
+		putInt(pending, start + 4, (int) crc.getValue());
+
+		pendingLength += HEADER_SIZE + length;
+		if (firstId == 0) {
+			firstId = id;
+		}
+		lastId = id;
+		stageIndexEntry(size);
+		size += HEADER_SIZE + length;
+
+		if (pendingLength >= FLUSH_THRESHOLD) {
+			flush();
+		}
+		return id;
+	}
+
+	private void stageIndexEntry(long offset) {
+		if (pendingIndexLength + INDEX_ENTRY_SIZE > pendingIndex.length) {
+			byte[] bigger = new byte[pendingIndex.length * 2];
+			System.arraycopy(pendingIndex, 0, bigger, 0, pendingIndexLength);
+			pendingIndex = bigger;
+		}
+		putLong(pendingIndex, pendingIndexLength, offset);
+		pendingIndexLength += INDEX_ENTRY_SIZE;
+	}
+
+	/*
+	 * Write all staged records to the segment in a single write, and then
+	 * their index entries to the index.
+	 */
+	public synchronized void flush() throws IOException {
+		if (pendingLength > 0) {
+			segment.seek(flushedSize);
+			segment.write(pending, 0, pendingLength);
+			flushedSize += pendingLength;
+			pendingLength = 0;
+		}
+		if (pendingIndexLength > 0) {
+			index.seek(flushedIndexSize);
+			index.write(pendingIndex, 0, pendingIndexLength);
+			flushedIndexSize += pendingIndexLength;
+			pendingIndexLength = 0;
+		}
+		segmentChunks.allocate(flushedSize);
+		indexChunks.allocate(flushedIndexSize);
+	}
+
+	/*
+	 * Pass up to count records, starting at id fromId, to the visitor.
+	 */
+	public void read(long fromId, int count, Visitor visitor) throws IOException {
+		long first;
+		long last;
+		synchronized (this) {
+			first = firstId;
+			last = lastId;
+		}
+		if (first == 0 || fromId > last || count <= 0) {
+			return;
+		}
+		fromId = Math.max(fromId, first);
+		long toId = Math.min(last, fromId + count - 1);
+		for (long id = fromId; id <= toId; id++) {
+			visitor.visit(id, getSender(id), getMessage(id));
+		}
+	}
+
+	/*
+	 * The sender and the text of the message with id, which must be in the
+	 * log, read from the mapped segment.
+	 */
+	public String getSender(long id) throws IOException {
+		ByteBuffer record = getRecord(id);
+		int p = record.position();
+		return getString(record, p + 12, record.getInt(p + 8));
+	}
+
+	public String getMessage(long id) throws IOException {
+		ByteBuffer record = getRecord(id);
+		int p = record.position();
+		int senderLength = record.getInt(p + 8);
+		return getString(record, p + 16 + senderLength, record.getInt(p + 12 + senderLength));
+	}
+
+	/*
+	 * Whether the message with id is from the sender whose name is the UTF-8
+	 * bytes sender.  The name is compared in place, without decoding it.
+	 */
+	public boolean isFrom(long id, byte[] sender) throws IOException {
+		ByteBuffer record = getRecord(id);
+		int p = record.position();
+		if (record.getInt(p + 8) != sender.length) {
+			return false;
+		}
+		for (int i = 0; i < sender.length; i++) {
+			if (record.get(p + 12 + i) != sender[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The payload of the record with id, found through the index, with the
+	 * position of the buffer at its start.
+	 */
+	private ByteBuffer getRecord(long id) throws IOException {
+		long entry;
+		long indexSize;
+		long segmentSize;
+		synchronized (this) {
+			if (firstId == 0 || id < firstId || id > lastId) {
+				throw new IllegalArgumentException("No message " + id);
+			}
+			entry = (id - firstId) * INDEX_ENTRY_SIZE;
+			if (entry + INDEX_ENTRY_SIZE > flushedIndexSize) {
+				flush();
+			}
+			indexSize = flushedIndexSize;
+			segmentSize = flushedSize;
+		}
+		long offset = readLong(indexChunks, entry, indexSize);
+		ByteBuffer header = segmentChunks.read(offset, HEADER_SIZE, segmentSize);
+		int length = header.getInt(header.position());
+		if (length < 16 || length > MAX_RECORD_SIZE) {
+			throw new IOException("Corrupt message log record at " + offset);
+		}
+		return segmentChunks.read(offset + HEADER_SIZE, length, segmentSize);
+	}
+
+	private static String getString(ByteBuffer b, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer d = b.duplicate();
+		d.limit(offset + length);
+		d.position(offset);
+		d.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/*
+	 * Number of cursors over the log still open.  Each may be reading a
+	 * mapping of a chunk, and reading a mapping past the end of its file
+	 * faults the process, so while any are open close() leaves the files
+	 * their full length, and the next open cuts the zeros off.
+	 */
+	private int readers = 0;
+
+	synchronized void addReader() {
+		readers++;
+	}
+
+	synchronized void removeReader() {
+		readers--;
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+			if (readers == 0) {
+				segmentChunks.truncate(flushedSize);
+				indexChunks.truncate(flushedIndexSize);
+			}
+		} finally {
+			segmentChunks.clear();
+			indexChunks.clear();
+			try {
+				segment.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	private void ensurePending(int extra) {
+		if (pendingLength + extra > pending.length) {
+			byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + extra)];
+			System.arraycopy(pending, 0, bigger, 0, pendingLength);
+			pending = bigger;
+		}
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		putInt(b, off, (int) (v >>> 32));
+		putInt(b, off + 4, (int) v);
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+				| ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+}
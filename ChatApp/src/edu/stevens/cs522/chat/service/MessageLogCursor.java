@@ -0,0 +1,172 @@
+/*********************************************************************
+
+    Cursor over messages in the message log, read from the mapped log
+    as each row is looked at rather than copied out when the cursor is
+    made.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+
+import android.database.AbstractCursor;
+import android.database.SQLException;
+
+/*
+ * The rows are either a range of consecutive ids, in either order, or a
+ * list of ids.  A column is one of the log's: 0 for the id, 1 for the
+ * sender and 2 for the message.  Filling a cursor window decodes only the
+ * rows in the window, so a cursor over the whole history costs no more to
+ * make than one over a single message.  The cursor counts as a reader of
+ * the log until it is closed, so closing the log does not cut the files
+ * short under it.
+ */
+public class MessageLogCursor extends AbstractCursor {
+
+	private final MessageLog log;
+	private final String[] names;
+	private final int[] columns;
+
+	/*
+	 * The ids of the rows; or, if null, ids lowId up to lowId + count - 1,
+	 * highest first if descending.
+	 */
+	private final long[] ids;
+	private final long lowId;
+	private final int count;
+	private final boolean descending;
+
+	/*
+	 * The row last read, so reading several columns of a row looks the
+	 * record up once.
+	 */
+	private long cachedId = 0;
+	private String cachedSender;
+	private String cachedMessage;
+
+	private boolean released = false;
+
+	public MessageLogCursor(MessageLog log, String[] names, int[] columns, long lowId,
+			long highId, boolean descending) {
+		this.log = log;
+		this.names = names;
+		this.columns = columns;
+		this.ids = null;
+		this.lowId = lowId;
+		this.count = highId < lowId ? 0 : (int) (highId - lowId + 1);
+		this.descending = descending;
+		log.addReader();
+	}
+
+	public MessageLogCursor(MessageLog log, String[] names, int[] columns, long[] ids) {
+		this.log = log;
+		this.names = names;
+		this.columns = columns;
+		this.ids = ids;
+		this.lowId = 0;
+		this.count = ids.length;
+		this.descending = false;
+		log.addReader();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		synchronized (this) {
+			if (released) {
+				return;
+			}
+			released = true;
+		}
+		log.removeReader();
+	}
+
+	private long getId() {
+		if (ids != null) {
+			return ids[mPos];
+		}
+		return descending ? lowId + count - 1 - mPos : lowId + mPos;
+	}
+
+	@Override
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return names;
+	}
+
+	@Override
+	public String getString(int column) {
+		long id = getId();
+		switch (columns[column]) {
+		case 0:
+			return Long.toString(id);
+		case 1:
+			read(id, false);
+			return cachedSender;
+		case 2:
+			read(id, true);
+			return cachedMessage;
+		default:
+			throw new IllegalArgumentException("Unknown column " + column);
+		}
+	}
+
+	private void read(long id, boolean message) {
+		if (id != cachedId) {
+			cachedId = id;
+			cachedSender = null;
+			cachedMessage = null;
+		}
+		try {
+			if (message && cachedMessage == null) {
+				cachedMessage = log.getMessage(id);
+			} else if (!message && cachedSender == null) {
+				cachedSender = log.getSender(id);
+			}
+		} catch (IOException e) {
+			cachedId = 0;
+			throw new SQLException("Cannot read message " + id + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public long getLong(int column) {
+		if (columns[column] == 0) {
+			return getId();
+		}
+		return Long.parseLong(getString(column));
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return getLong(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return getLong(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return getString(column) == null;
+	}
+
+}
@@ -10,23 +10,20 @@
 package edu.stevens.cs522.chat.service;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import edu.stevens.cs522.chat.service.ChatContent;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.util.Log;
@@ -40,7 +37,13 @@ import android.util.Log;
 
 public class MessageProvider extends ContentProvider {
 
-	private static final String DATABASE_NAME = "messages.txt";
+	private static final String DATABASE_NAME = "messages.log";
+
+	/*
+	 * Messages saved by earlier versions, one "row:sender:message" per line.
+	 * Imported into the log the first time it is opened.
+	 */
+	private static final String LEGACY_DATABASE_NAME = "messages.txt";
 
 	@Override
 	public boolean onCreate() {
@@ -53,74 +56,131 @@ public class MessageProvider extends ContentProvider {
 
 	private static final int MESSAGES = 1;
 	private static final int MESSAGE_ID = 2;
+	private static final int MESSAGE_SEARCH = 3;
 
 	private static final UriMatcher uriMatcher;
 
 	/*
-	 * Note: We should use a cursor that implements a circular buffer and drops all but the last N
-	 * messages received.  As it is, this buffer grows unboundedly, a potential DoS attack.
+	 * Append-only storage for the messages: inserting a message writes just
+	 * that message, rather than rewriting the whole history.  Queries are
+	 * answered from the mapped log, through its index, without reading the
+	 * history into memory: opening the provider reads nothing but the end
+	 * of the log, and a query reads only the messages it returns.
 	 */
-	MatrixCursor messages = null;
+	private MessageLog log = null;
 
 	/*
-	 * Utility operations for reading messages from a file and saving messages
-	 * back to that file.
+	 * Messages in a window when the query does not give a LIMIT: the
+	 * message_retention resource.
 	 */
-	private MatrixCursor loadMessages() {
+	private int defaultLimit;
 
-		if (messages == null) {
-			
-			String[] columns = { ChatContent.Messages._ID, 
-								 ChatContent.Messages.SENDER, 
-								 ChatContent.Messages.MESSAGE };
+	/*
+	 * Full-text index over the log, kept up to date as messages are added.
+	 */
+	private MessageIndex index = null;
 
-			messages = new MatrixCursor(columns);
+	private static final String[] COLUMNS = { ChatContent.Messages._ID, 
+											  ChatContent.Messages.SENDER, 
+											  ChatContent.Messages.MESSAGE };
+
+	private static final int[] ALL_COLUMNS = { 0, 1, 2 };
+
+	/*
+	 * Utility operation for opening the log when the provider is first used.
+	 * If the log or its index cannot be opened, throws SQLException, and
+	 * the next use tries again: the provider is never left with a log but
+	 * no index.
+	 */
+	private synchronized MessageLog loadMessages() {
 
+		if (log == null) {
+
+			defaultLimit = getContext().getResources().getInteger(R.integer.message_retention);
+
+			boolean loaded = false;
 			try {
-				InputStream is = getContext().openFileInput(DATABASE_NAME);
-				BufferedReader messageInputFile = new BufferedReader(new InputStreamReader(is));
-				String messageLine = messageInputFile.readLine();
-				while (messageLine != null) {
-					/*
-					 * Each line contains sender and message.
-					 */
-					String[] message = messageLine.split(":");
-					messages.addRow(message);
-					messageLine = messageInputFile.readLine();
-					/*
-					 * TODO: Finish this loop.
-					 */
+				log = new MessageLog(getContext().getFileStreamPath(DATABASE_NAME));
+				log.open(null);
+				index = new MessageIndex(getContext(), log);
+				updateIndex();
+				if (log.getLastId() == 0) {
+					importLegacyMessages();
 				}
-				messageInputFile.close();
-			} catch (FileNotFoundException e) {
-				Log.i(ChatApp.TAG, "Messages file has not been created yet.");
+				loaded = true;
 			} catch (IOException e) {
-				Log.e(ChatApp.TAG, "IO error while reading message file");
+				Log.e(ChatApp.TAG, "IO error while reading message log", e);
+				throw new SQLException("Cannot open message log: " + e.getMessage());
+			} finally {
+				if (!loaded) {
+					log = null;
+					index = null;
+				}
 			}
 		}
 
-		return messages;
+		return log;
 	}
 
-	private void saveMessages(Cursor messages) {
+	/*
+	 * Bring the index level with the log: index any messages it is missing
+	 * (e.g. all of them, the first time).  If the log has lost messages the
+	 * index has, the index is rebuilt.
+	 */
+	private void updateIndex() throws IOException {
+		long indexed = index.getLastId();
+		if (indexed > log.getLastId()) {
+			index.clear();
+			indexed = 0;
+		}
+		if (indexed < log.getLastId()) {
+			Log.i(ChatApp.TAG, "Indexing messages " + (indexed + 1) + " to " + log.getLastId());
+			index.beginBatch();
+			try {
+				log.read(indexed + 1, (int) (log.getLastId() - indexed), new MessageLog.Visitor() {
+					public void visit(long id, String sender, String message) {
+						index.add(id, sender, message);
+					}
+				});
+			} finally {
+				index.endBatch();
+			}
+		}
+	}
 
-		messages.moveToFirst();
-		
+	private void importLegacyMessages() throws IOException {
+		File legacy = getContext().getFileStreamPath(LEGACY_DATABASE_NAME);
+		if (!legacy.exists()) {
+			return;
+		}
+		BufferedReader messageInputFile = new BufferedReader(
+				new InputStreamReader(new FileInputStream(legacy)));
+		index.beginBatch();
 		try {
-			OutputStream os = getContext().openFileOutput(DATABASE_NAME, Context.MODE_PRIVATE);
-			BufferedWriter messageOutputFile = new BufferedWriter(new OutputStreamWriter(os));
-			for (int row=1; row<=messages.getCount(); row++) {
-				String sender = messages.getString(messages.getColumnIndex(ChatContent.Messages.SENDER));
-				String message = messages.getString(messages.getColumnIndex(ChatContent.Messages.MESSAGE));
-				messageOutputFile.write(row + ":" + sender + ":" + message);
-				messageOutputFile.newLine();
-				messages.moveToNext();
+			String messageLine = messageInputFile.readLine();
+			while (messageLine != null) {
+				/*
+				 * Each line contains row number, sender and message.
+				 */
+				String[] message = messageLine.split(":", 3);
+				if (message.length == 3) {
+					appendMessage(message[1], message[2]);
+				}
+				messageLine = messageInputFile.readLine();
 			}
-			messageOutputFile.close();
-		} catch (IOException e) {
-			Log.e(ChatApp.TAG, "IO error while writing message file");
+		} finally {
+			index.endBatch();
+			messageInputFile.close();
 		}
+		log.flush();
+		legacy.delete();
+		Log.i(ChatApp.TAG, "Imported " + log.getLastId() + " messages from " + LEGACY_DATABASE_NAME);
+	}
 
+	private long appendMessage(String sender, String message) throws IOException {
+		long id = log.append(sender, message);
+		index.add(id, sender, message);
+		return id;
 	}
 
 	@Override
@@ -133,12 +193,19 @@ public class MessageProvider extends ContentProvider {
 
 	@Override
 	public String getType(Uri uri) {
-		// TODO Auto-generated method stub
-		return null;
+		switch (uriMatcher.match(uri)) {
+		case MESSAGES:
+		case MESSAGE_SEARCH:
+			return ChatContent.Messages.CONTENT_TYPE;
+		case MESSAGE_ID:
+			return ChatContent.Messages.CONTENT_ITEM_TYPE;
+		default:
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
 	}
 
 	@Override
-	public Uri insert(Uri uri, ContentValues initialValues) {
+	public synchronized Uri insert(Uri uri, ContentValues initialValues) {
 		if (uriMatcher.match(uri) != MESSAGES) {
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -162,28 +229,19 @@ public class MessageProvider extends ContentProvider {
 		}
 		
 		/*
-		 * TODO: Load messages from file, add new message, and save file.
+		 * Append the new message to the log; earlier messages are not rewritten.
 		 */
-		MatrixCursor cursor = loadMessages();
-		
-		String[] columns = { ChatContent.Messages._ID, 
-				 ChatContent.Messages.SENDER, 
-				 ChatContent.Messages.MESSAGE };
-		
-		String[] message = new String[columns.length];
-		message[0] = values.getAsString(ChatContent.Messages._ID);
-		message[1] = values.getAsString(ChatContent.Messages.SENDER);
-		message[2] = values.getAsString(ChatContent.Messages.MESSAGE);
-		
-		cursor.addRow(message);
-		
-		saveMessages(cursor);
-		
-		/*
-		 * End Todo.
-		 */
-		
-		int rowId = messages.getCount();
+		loadMessages();
+
+		long rowId = 0;
+		try {
+			rowId = appendMessage(values.getAsString(ChatContent.Messages.SENDER),
+								  values.getAsString(ChatContent.Messages.MESSAGE));
+			log.flush();
+		} catch (IOException e) {
+			Log.e(ChatApp.TAG, "IO error while appending to message log", e);
+		}
+
 		if (rowId > 0) {
 			Uri peerUri = ContentUris.withAppendedId(
 					ChatContent.Messages.CONTENT_URI, rowId);
@@ -194,18 +252,308 @@ public class MessageProvider extends ContentProvider {
 		throw new SQLException("Failed to insert row into " + uri);
 	}
 
+	/*
+	 * Insert a batch of messages with a single write to the log, a single
+	 * index transaction and a single change notification.  Returns how
+	 * many were saved, which are the first of them: if one fails, those
+	 * after it are not tried.  An error from the index after the first
+	 * message is in the log ends the batch as well, and is not raised, as
+	 * what is in the log is saved; raising it would have the caller save
+	 * those messages twice.
+	 */
+	@Override
+	public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+		if (uriMatcher.match(uri) != MESSAGES) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		loadMessages();
+
+		int count = 0;
+		index.beginBatch();
+		try {
+			for (ContentValues message : values) {
+				String sender = message.getAsString(ChatContent.Messages.SENDER);
+				String text = message.getAsString(ChatContent.Messages.MESSAGE);
+				sender = sender != null ? sender : "Unknown";
+				text = text != null ? text : " ";
+				long id = log.append(sender, text);
+				count++;
+				index.add(id, sender, text);
+			}
+		} catch (IOException e) {
+			Log.e(ChatApp.TAG, "IO error while appending to message log", e);
+		} catch (SQLException e) {
+			if (count == 0) {
+				throw e;
+			}
+			Log.e(ChatApp.TAG, "Error while indexing messages", e);
+		} finally {
+			try {
+				log.flush();
+			} catch (IOException e) {
+				Log.e(ChatApp.TAG, "IO error while writing message log", e);
+			}
+			try {
+				index.endBatch();
+			} catch (SQLException e) {
+				if (count == 0) {
+					throw e;
+				}
+				Log.e(ChatApp.TAG, "Error while indexing messages", e);
+			}
+		}
+
+		if (count > 0) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+		return count;
+	}
+
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
 		/*
-		 * We just support returning all messages.
+		 * We support returning a window of the messages (see ChatContent.Messages
+		 * for the parameters), or a single message by id.
 		 */
-		if (uriMatcher.match(uri) != MESSAGES) {
+		int match = uriMatcher.match(uri);
+		if (match != MESSAGES && match != MESSAGE_ID && match != MESSAGE_SEARCH) {
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 
-		Cursor messages = loadMessages();
-		return messages;
+		loadMessages();
+
+		if (match == MESSAGE_SEARCH) {
+			Cursor c = index.search(uri.getQueryParameter(ChatContent.Messages.QUERY),
+					getIntParameter(uri, ChatContent.Messages.OFFSET, 0),
+					getIntParameter(uri, ChatContent.Messages.LIMIT, defaultLimit));
+			c.setNotificationUri(getContext().getContentResolver(),
+					ChatContent.Messages.CONTENT_URI);
+			return c;
+		}
+
+		int[] columns = getColumns(projection);
+		String sender = getSender(selection, selectionArgs);
+		boolean descending = isDescending(sortOrder);
+
+		if (match == MESSAGE_ID) {
+			long id = ContentUris.parseId(uri);
+			return select(columns, id, id, sender, false, 0, 1, false);
+		}
+
+		long after = getIdParameter(uri, ChatContent.Messages.AFTER);
+		long before = getIdParameter(uri, ChatContent.Messages.BEFORE);
+		int limit = getIntParameter(uri, ChatContent.Messages.LIMIT, defaultLimit);
+		int offset = getIntParameter(uri, ChatContent.Messages.OFFSET, 0);
+
+		/*
+		 * AFTER Long.MAX_VALUE, or BEFORE 0, leaves nothing to select.
+		 */
+		long lowId = after >= 0 ? (after < Long.MAX_VALUE ? after + 1 : after) : 1;
+		long highId = before >= 0 ? before - 1 : Long.MAX_VALUE;
+		Cursor c = select(columns, lowId, highId, sender, after < 0, offset, limit, descending);
+
+		if (before < 0) {
+			/*
+			 * Loaders watching this cursor reload it when a message is added.
+			 */
+			c.setNotificationUri(getContext().getContentResolver(),
+					ChatContent.Messages.CONTENT_URI);
+		}
+		return c;
+	}
+
+	/*
+	 * A LIMIT or OFFSET parameter, which must be a number no less than 0.
+	 */
+	private static int getIntParameter(Uri uri, String name, int defaultValue) {
+		String value = uri.getQueryParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		int n;
+		try {
+			n = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad " + name + " " + value);
+		}
+		if (n < 0) {
+			throw new IllegalArgumentException("Negative " + name + " " + value);
+		}
+		return n;
+	}
+
+	/*
+	 * An AFTER or BEFORE parameter, a message id, which must be a number no
+	 * less than 0; -1 if there is none.
+	 */
+	private static long getIdParameter(Uri uri, String name) {
+		String value = uri.getQueryParameter(name);
+		if (value == null) {
+			return -1;
+		}
+		long id;
+		try {
+			id = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad " + name + " " + value);
+		}
+		if (id < 0) {
+			throw new IllegalArgumentException("Negative " + name + " " + value);
+		}
+		return id;
+	}
+
+	/*
+	 * Indices into COLUMNS of the columns in projection, in order.
+	 */
+	private static int[] getColumns(String[] projection) {
+		if (projection == null) {
+			return ALL_COLUMNS;
+		}
+		int[] columns = new int[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			columns[i] = -1;
+			for (int j = 0; j < COLUMNS.length; j++) {
+				if (COLUMNS[j].equals(projection[i])) {
+					columns[i] = j;
+				}
+			}
+			if (columns[i] < 0) {
+				throw new IllegalArgumentException("Unknown column " + projection[i]);
+			}
+		}
+		return columns;
+	}
+
+	/*
+	 * The sender to select messages from, or null for all messages.
+	 */
+	private static String getSender(String selection, String[] selectionArgs) {
+		if (selection == null) {
+			return null;
+		}
+		if (selection.replaceAll("\\s+", "").equals(
+				ChatContent.Messages.SENDER_SELECTION.replaceAll("\\s+", ""))
+				&& selectionArgs != null && selectionArgs.length == 1) {
+			return selectionArgs[0];
+		}
+		throw new IllegalArgumentException("Unsupported selection " + selection);
+	}
+
+	private static boolean isDescending(String sortOrder) {
+		if (sortOrder == null) {
+			return false;
+		}
+		String order = sortOrder.trim().replaceAll("\\s+", " ");
+		if (order.equalsIgnoreCase(ChatContent.Messages.DESCENDING_SORT_ORDER)) {
+			return true;
+		}
+		if (order.equalsIgnoreCase(ChatContent.Messages.DEFAULT_SORT_ORDER)
+				|| order.equalsIgnoreCase(ChatContent.Messages._ID)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Select up to limit messages with ids lowId to highId, from sender if it
+	 * is not null, skipping the first offset of them.  The messages are taken
+	 * from the high end of the range if fromNewest, else from the low end.
+	 */
+	private synchronized Cursor select(int[] columns, long lowId, long highId,
+			String sender, boolean fromNewest, int offset, int limit,
+			boolean descending) {
+		String[] names = new String[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			names[i] = COLUMNS[columns[i]];
+		}
+
+		if (log.getLastId() == 0) {
+			return new MessageLogCursor(log, names, columns, 1, 0, descending);
+		}
+		lowId = Math.max(lowId, log.getFirstId());
+		highId = Math.min(highId, log.getLastId());
+		if (lowId > highId) {
+			return new MessageLogCursor(log, names, columns, 1, 0, descending);
+		}
+
+		if (sender == null) {
+			/*
+			 * Every id in the range is a message, so the window is a range of
+			 * ids, and nothing need be read until the cursor is.
+			 */
+			if (fromNewest) {
+				highId -= offset;
+				lowId = Math.max(lowId, highId - limit + 1);
+			} else {
+				lowId += offset;
+				highId = Math.min(highId, lowId + limit - 1);
+			}
+			return new MessageLogCursor(log, names, columns, lowId, highId, descending);
+		}
+
+		/*
+		 * The ids from sender are not known in advance.  The index gives the
+		 * messages whose sender has the words of this one, from the end the
+		 * window starts at; each is checked, comparing the sender in place in
+		 * the log, as the words may be part of a longer name, until the
+		 * window is full.  A sender with no words the index keeps (all
+		 * punctuation, say) has the range scanned instead.
+		 */
+		byte[] senderBytes = sender.getBytes(UTF8);
+		long[] ids = new long[Math.min(limit, 64)];
+		int count = 0;
+		Cursor candidates = index.findFrom(sender, lowId, highId, fromNewest);
+		try {
+			long step = fromNewest ? -1 : 1;
+			long id = fromNewest ? highId + 1 : lowId - 1;
+			while (count < limit) {
+				if (candidates != null) {
+					if (!candidates.moveToNext()) {
+						break;
+					}
+					id = candidates.getLong(0);
+				} else {
+					id += step;
+					if (id < lowId || id > highId) {
+						break;
+					}
+				}
+				if (log.isFrom(id, senderBytes)) {
+					if (offset > 0) {
+						offset--;
+					} else {
+						if (count == ids.length) {
+							ids = Arrays.copyOf(ids, Math.min(limit, count * 2));
+						}
+						ids[count++] = id;
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(ChatApp.TAG, "IO error while reading message log", e);
+		} finally {
+			if (candidates != null) {
+				candidates.close();
+			}
+		}
+		ids = Arrays.copyOf(ids, count);
+
+		/*
+		 * The window was collected in the order it was scanned.
+		 */
+		if (fromNewest != descending) {
+			for (int i = 0; i < count / 2; i++) {
+				long id = ids[i];
+				ids[i] = ids[count - 1 - i];
+				ids[count - 1 - i] = id;
+			}
+		}
+		return new MessageLogCursor(log, names, columns, ids);
 	}
 
 	@Override
@@ -221,6 +569,8 @@ public class MessageProvider extends ContentProvider {
 		uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		uriMatcher.addURI(ChatContent.Messages.AUTHORITY, null, MESSAGES);
 		uriMatcher.addURI(ChatContent.Messages.AUTHORITY, "#", MESSAGE_ID);
+		uriMatcher.addURI(ChatContent.Messages.AUTHORITY, ChatContent.Messages.SEARCH_PATH,
+				MESSAGE_SEARCH);
 
 	}
 
@@ -0,0 +1,290 @@
+/*********************************************************************
+
+    Metrics: counters of packets and messages, and histograms of how
+    long each stage of handling a message takes.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counters and histograms are updated by the receive and sender threads
+ * and read, through snapshot(), by the UI, so every slot is an atomic; none
+ * is ever locked, and recording costs an atomic add or two.
+ *
+ * A histogram has BUCKETS fixed buckets of doubling width: bucket 0 counts
+ * times under 1 us, bucket i times from 2^(i-1) up to 2^i us, and the last
+ * bucket everything longer.  Percentiles are given as the upper bound of
+ * the bucket they fall in, so are at most twice the true value.
+ *
+ * One-way latency from each peer is kept by a LatencyTracker, and is part
+ * of the snapshot too.
+ */
+public class Metrics {
+
+	/*
+	 * Counters.
+	 */
+	public static final int PACKETS_RECEIVED = 0;
+	public static final int BYTES_RECEIVED = 1;
+	public static final int PACKETS_SENT = 2;
+	public static final int BYTES_SENT = 3;
+	public static final int MESSAGES_RECEIVED = 4;
+	public static final int MESSAGES_SENT = 5;
+	public static final int SEND_FAILURES = 6;
+	public static final int MALFORMED = 7;
+	public static final int PEER_LIMITED = 8;
+	public static final int GLOBAL_LIMITED = 9;
+	public static final int DUPLICATES = 10;
+	public static final int MESSAGES_DROPPED = 11;
+	public static final int RECEIVE_ERRORS = 12;
+
+	private static final String[] COUNTER_NAMES = {
+		"packets received", "bytes received", "packets sent", "bytes sent",
+		"messages received", "messages sent", "send failures",
+		"malformed packets", "over peer limit", "over global limit",
+		"duplicate messages", "messages not saved", "receive errors"
+	};
+
+	/*
+	 * Histograms, of the time taken to decode a message, to save a batch of
+	 * messages, to save a batch of peers, and to post the notifications for
+	 * a batch; and of the time from each message being decoded to its
+	 * notification being posted, which is the queueing our own pipeline
+	 * adds to the network's delay.
+	 */
+	public static final int DECODE = 0;
+	public static final int PROVIDER_INSERT = 1;
+	public static final int PEER_UPSERT = 2;
+	public static final int NOTIFICATION = 3;
+	public static final int DELIVERY = 4;
+
+	private static final String[] HISTOGRAM_NAMES = {
+		"decode", "provider insert", "peer upsert", "notification",
+		"received to notified"
+	};
+
+	public static final int BUCKETS = 26;
+
+	/*
+	 * Peers shown in the snapshot's text, most recently heard from first.
+	 */
+	private static final int MAX_PEERS_SHOWN = 20;
+
+	/*
+	 * A histogram of times, in ns.
+	 */
+	public static class Histogram {
+		/*
+		 * The buckets, then the total and the maximum.
+		 */
+		private final AtomicLongArray slots = new AtomicLongArray(BUCKETS + 2);
+
+		public void record(long nanos) {
+			slots.incrementAndGet(bucket(nanos));
+			slots.addAndGet(BUCKETS, nanos);
+			long max = slots.get(BUCKETS + 1);
+			while (nanos > max && !slots.compareAndSet(BUCKETS + 1, max, nanos)) {
+				max = slots.get(BUCKETS + 1);
+			}
+		}
+
+		public HistogramSnapshot snapshot() {
+			long[] copy = new long[slots.length()];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = slots.get(i);
+			}
+			return new HistogramSnapshot(copy);
+		}
+	}
+
+	static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	public static class HistogramSnapshot {
+		private final long[] slots;
+		private final long count;
+
+		HistogramSnapshot(long[] slots) {
+			this.slots = slots;
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				n += slots[i];
+			}
+			count = n;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getBucket(int bucket) {
+			return slots[bucket];
+		}
+
+		/*
+		 * Mean and greatest time recorded, in us.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : slots[BUCKETS] / 1e3 / count;
+		}
+
+		public double getMax() {
+			return slots[BUCKETS + 1] / 1e3;
+		}
+
+		/*
+		 * An upper bound, in us, on the time within which a fraction p of
+		 * the times recorded fell; 0 if none were.
+		 */
+		public long getPercentile(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += slots[i];
+				if (seen >= rank) {
+					return 1L << i;
+				}
+			}
+			return (long) Math.ceil(getMax());
+		}
+
+		@Override
+		public String toString() {
+			if (count == 0) {
+				return "none";
+			}
+			return String.format("%d times, mean %.0f, p50 < %d, p99 < %d, max %.0f",
+					count, getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+		}
+	}
+
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+
+	private final Histogram[] histograms = new Histogram[HISTOGRAM_NAMES.length];
+
+	private final LatencyTracker latency;
+
+	public Metrics() {
+		this(new LatencyTracker());
+	}
+
+	public Metrics(LatencyTracker latency) {
+		this.latency = latency;
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+	}
+
+	public void increment(int counter) {
+		counters.incrementAndGet(counter);
+	}
+
+	public void add(int counter, long delta) {
+		counters.addAndGet(counter, delta);
+	}
+
+	public long get(int counter) {
+		return counters.get(counter);
+	}
+
+	/*
+	 * Record a time, in ns, in histogram.
+	 */
+	public void record(int histogram, long nanos) {
+		histograms[histogram].record(nanos);
+	}
+
+	public LatencyTracker getLatency() {
+		return latency;
+	}
+
+	/*
+	 * A copy of every counter and histogram, for display.  The values are
+	 * read one at a time, so may be from slightly different moments.
+	 */
+	public Snapshot snapshot() {
+		long[] c = new long[counters.length()];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = counters.get(i);
+		}
+		HistogramSnapshot[] h = new HistogramSnapshot[histograms.length];
+		for (int i = 0; i < h.length; i++) {
+			h[i] = histograms[i].snapshot();
+		}
+		return new Snapshot(System.currentTimeMillis(), c, h, latency.getAll(),
+				latency.getPeers());
+	}
+
+	public static class Snapshot {
+		private final long time;
+		private final long[] counters;
+		private final HistogramSnapshot[] histograms;
+		private final LatencyTracker.Summary allPeers;
+		private final List<LatencyTracker.Summary> peers;
+
+		Snapshot(long time, long[] counters, HistogramSnapshot[] histograms,
+				LatencyTracker.Summary allPeers, List<LatencyTracker.Summary> peers) {
+			this.time = time;
+			this.counters = counters;
+			this.histograms = histograms;
+			this.allPeers = allPeers;
+			this.peers = peers;
+		}
+
+		/*
+		 * When the snapshot was taken (System.currentTimeMillis()).
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getCounter(int counter) {
+			return counters[counter];
+		}
+
+		public HistogramSnapshot getHistogram(int histogram) {
+			return histograms[histogram];
+		}
+
+		/*
+		 * One-way latency of messages from all peers together, and from each,
+		 * most recently heard from first.
+		 */
+		public LatencyTracker.Summary getLatency() {
+			return allPeers;
+		}
+
+		public List<LatencyTracker.Summary> getPeerLatencies() {
+			return peers;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			for (int i = 0; i < counters.length; i++) {
+				s.append(COUNTER_NAMES[i]).append(": ").append(counters[i]).append('\n');
+			}
+			for (int h = 0; h < HISTOGRAM_NAMES.length; h++) {
+				s.append('\n').append(HISTOGRAM_NAMES[h]).append(" (us): ")
+						.append(histograms[h]).append('\n');
+			}
+			s.append("\none-way latency (ms), all peers:\n").append(allPeers).append('\n');
+			for (int i = 0; i < peers.size() && i < MAX_PEERS_SHOWN; i++) {
+				s.append('\n').append(peers.get(i)).append('\n');
+			}
+			return s.toString();
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+/*********************************************************************
+
+    Notification aggregator: collapses a burst of received messages into
+    one summary notification, updated at a bounded rate.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.widget.Toast;
+
+/*
+ * Messages may be added from any thread; they are only counted and
+ * remembered there.  The notification (and toast, if enabled) is updated
+ * on the handler's thread, at most once every MIN_UPDATE_INTERVAL, however
+ * many messages arrived in between.  The update copies what it shows while
+ * holding the lock, and builds and posts the notification after letting it
+ * go, so adding a message never waits on the notification manager.  The
+ * builder, pending intent and toast are created once and reused for every
+ * update; only the expanded view's list of lines is new each time, as
+ * InboxStyle has no way to drop the lines it was given.  clear() is called
+ * on the handler's thread too, so a cancel never crosses an update.
+ */
+public class NotificationAggregator {
+
+	public static final int NOTIFICATION_ID = 1;
+
+	/*
+	 * Shared preference: whether to show a toast when messages arrive.
+	 */
+	public static final String PREF_SHOW_TOASTS = "show_toasts";
+
+	private static final long MIN_UPDATE_INTERVAL = 1000;
+
+	/*
+	 * Most recent messages shown in the expanded notification.
+	 */
+	private static final int MAX_LINES = 5;
+
+	private final Context context;
+	private final Handler handler;
+	private final NotificationManager notificationManager;
+	private final SharedPreferences preferences;
+	private final NotificationCompat.Builder builder;
+
+	private Toast toast;
+
+	/*
+	 * Messages received since the notification was last cleared, and since
+	 * it was last updated.
+	 */
+	private int unseen;
+	private int sinceUpdate;
+
+	/*
+	 * The last MAX_LINES messages, oldest first starting at firstLine.
+	 */
+	private final String[] lines = new String[MAX_LINES];
+	private int firstLine;
+	private int lineCount;
+
+	private boolean updateScheduled;
+	private long lastUpdate = -MIN_UPDATE_INTERVAL;
+
+	/*
+	 * The lines, oldest first, as copied for an update.  Only the handler's
+	 * thread uses it.
+	 */
+	private final String[] shownLines = new String[MAX_LINES];
+
+	/*
+	 * handler must be for the main thread, since toasts are shown from it.
+	 */
+	public NotificationAggregator(Context context, Handler handler) {
+		this.context = context.getApplicationContext();
+		this.handler = handler;
+		this.notificationManager = (NotificationManager) context
+				.getSystemService(Context.NOTIFICATION_SERVICE);
+		this.preferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+
+		Intent startActivityIntent = new Intent(this.context, ChatApp.class);
+		PendingIntent launchIntent = PendingIntent.getActivity(this.context, 0,
+				startActivityIntent, 0);
+		this.builder = new NotificationCompat.Builder(this.context)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentIntent(launchIntent)
+				.setOnlyAlertOnce(true);
+	}
+
+	public synchronized void add(String sender, String message) {
+		String line = sender + ": " + message;
+		if (lineCount < MAX_LINES) {
+			lines[(firstLine + lineCount++) % MAX_LINES] = line;
+		} else {
+			lines[firstLine] = line;
+			firstLine = (firstLine + 1) % MAX_LINES;
+		}
+		unseen++;
+		sinceUpdate++;
+		if (!updateScheduled) {
+			updateScheduled = true;
+			handler.postAtTime(update, Math.max(SystemClock.uptimeMillis(),
+					lastUpdate + MIN_UPDATE_INTERVAL));
+		}
+	}
+
+	/*
+	 * The user has seen the messages: remove the notification and start
+	 * counting again.
+	 */
+	public void clear() {
+		synchronized (this) {
+			unseen = 0;
+			sinceUpdate = 0;
+			lineCount = 0;
+			handler.removeCallbacks(update);
+			updateScheduled = false;
+		}
+		notificationManager.cancel(NOTIFICATION_ID);
+	}
+
+	/*
+	 * Stop any update not yet shown, leaving the notification as it is.
+	 */
+	public synchronized void shutdown() {
+		handler.removeCallbacks(update);
+		updateScheduled = false;
+	}
+
+	private final Runnable update = new Runnable() {
+		public void run() {
+			int received;
+			int total;
+			int shownCount;
+			synchronized (NotificationAggregator.this) {
+				updateScheduled = false;
+				if (sinceUpdate == 0) {
+					return;
+				}
+				lastUpdate = SystemClock.uptimeMillis();
+				received = sinceUpdate;
+				sinceUpdate = 0;
+				total = unseen;
+				shownCount = lineCount;
+				for (int i = 0; i < lineCount; i++) {
+					shownLines[i] = lines[(firstLine + i) % MAX_LINES];
+				}
+			}
+
+			String title = total == 1 ? "New message" : total + " new messages";
+			String text = shownLines[shownCount - 1];
+			NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+					.setBigContentTitle(title);
+			for (int i = 0; i < shownCount; i++) {
+				style.addLine(shownLines[i]);
+			}
+			if (total > shownCount) {
+				style.setSummaryText("+" + (total - shownCount) + " more");
+			}
+			builder.setContentTitle(title)
+					.setContentText(text)
+					.setTicker(text)
+					.setNumber(total)
+					.setWhen(System.currentTimeMillis())
+					.setStyle(style);
+			notificationManager.notify(NOTIFICATION_ID, builder.build());
+
+			if (preferences.getBoolean(PREF_SHOW_TOASTS, true)) {
+				CharSequence toastText = received == 1 ? text : received + " new messages";
+				if (toast == null) {
+					toast = Toast.makeText(context, toastText, Toast.LENGTH_SHORT);
+				} else {
+					toast.setText(toastText);
+				}
+				toast.show();
+			}
+		}
+	};
+
+}
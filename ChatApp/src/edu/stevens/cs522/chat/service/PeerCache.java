@@ -0,0 +1,111 @@
+/*********************************************************************
+
+    In-memory copy of the peers table, keyed by host and port, so the
+    receive loop can tell whether a sender is new or has moved without
+    querying the database.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class PeerCache {
+
+	public static class Peer {
+		private final String host;
+		private final int port;
+		private String name;
+		private double latitude;
+		private double longitude;
+
+		Peer(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		public String getHost() { return host; }
+		public int getPort() { return port; }
+		public String getName() { return name; }
+		public double getLatitude() { return latitude; }
+		public double getLongitude() { return longitude; }
+	}
+
+	private static final class Key {
+		String host;
+		int port;
+
+		Key(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		@Override
+		public int hashCode() {
+			return host.hashCode() * 31 + port;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return port == other.port && host.equals(other.host);
+		}
+	}
+
+	private final HashMap<Key, Peer> peers = new HashMap<Key, Peer>();
+
+	/*
+	 * Reused for lookups, so looking up a known peer allocates nothing.
+	 */
+	private final Key probe = new Key("", 0);
+
+	public synchronized Peer get(String host, int port) {
+		probe.host = host;
+		probe.port = port;
+		return peers.get(probe);
+	}
+
+	/*
+	 * Record the latest information for a peer.  Returns true if the peer is
+	 * new or anything about it has changed, i.e. if the peers table needs to
+	 * be written.
+	 */
+	public synchronized boolean update(String name, String host, int port,
+			double latitude, double longitude) {
+		Peer peer = get(host, port);
+		if (peer == null) {
+			peer = new Peer(host, port);
+			peers.put(new Key(host, port), peer);
+		} else if (peer.latitude == latitude && peer.longitude == longitude
+				&& (name == null ? peer.name == null : name.equals(peer.name))) {
+			return false;
+		}
+		peer.name = name;
+		peer.latitude = latitude;
+		peer.longitude = longitude;
+		return true;
+	}
+
+	public synchronized void clear() {
+		peers.clear();
+	}
+
+	public synchronized int size() {
+		return peers.size();
+	}
+
+	/*
+	 * A copy of the peers currently in the cache.
+	 */
+	public synchronized List<Peer> getPeers() {
+		return new ArrayList<Peer>(peers.values());
+	}
+
+}
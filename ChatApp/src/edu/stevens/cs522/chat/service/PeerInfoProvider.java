@@ -10,7 +10,10 @@
 
 package edu.stevens.cs522.chat.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -18,10 +21,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -35,13 +41,16 @@ import android.util.Log;
 public class PeerInfoProvider extends ContentProvider {
 	
 	private static final String DATABASE_NAME = "chat.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 3;
 	private static final String PEER_TABLE_NAME = "peers";
 	
 	private static HashMap<String, String> peerProjectionMap;
 	
+	private static final String PEER_ADDRESS_INDEX = "peers_host_port";
+
 	private static final int PEERS = 1;
 	private static final int PEER_ID = 2;
+	private static final int PEER_UPSERT = 3;
 	
 	private static final UriMatcher uriMatcher;
 	
@@ -59,18 +68,43 @@ public class PeerInfoProvider extends ContentProvider {
 					+ ChatContent.Peers._ID + " INTEGER PRIMARY KEY,"
 					+ ChatContent.Peers.NAME + " TEXT,"
 					+ ChatContent.Peers.HOST + " TEXT,"
+					+ ChatContent.Peers.HOSTNAME + " TEXT,"
 					+ ChatContent.Peers.PORT + " INTEGER,"
 					+ ChatContent.Peers.LATITUDE + " FLOAT,"
 					+ ChatContent.Peers.LONGITUDE + " FLOAT"
 					+ ");");
+			createAddressIndex(db);
+		}
+		
+		/*
+		 * A peer is identified by the host and port of its chat program.
+		 */
+		private void createAddressIndex(SQLiteDatabase db) {
+			db.execSQL("CREATE UNIQUE INDEX " + PEER_ADDRESS_INDEX + " ON "
+					+ PEER_TABLE_NAME + " (" + ChatContent.Peers.HOST + ", "
+					+ ChatContent.Peers.PORT + ");");
 		}
 		
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 			Log.w(ChatApp.TAG, "Upgrading database from version " + oldVersion
-					+ " to " + newVersion + ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS " + PEER_TABLE_NAME);
-			onCreate(db);
+					+ " to " + newVersion);
+			if (oldVersion < 2) {
+				/*
+				 * Version 1 had no index, and a racy lookup could add the same
+				 * peer twice.  Keep the most recent row for each address.
+				 */
+				db.execSQL("DELETE FROM " + PEER_TABLE_NAME + " WHERE "
+						+ ChatContent.Peers._ID + " NOT IN (SELECT MAX("
+						+ ChatContent.Peers._ID + ") FROM " + PEER_TABLE_NAME
+						+ " GROUP BY " + ChatContent.Peers.HOST + ", "
+						+ ChatContent.Peers.PORT + ");");
+				createAddressIndex(db);
+			}
+			if (oldVersion < 3) {
+				db.execSQL("ALTER TABLE " + PEER_TABLE_NAME + " ADD COLUMN "
+						+ ChatContent.Peers.HOSTNAME + " TEXT;");
+			}
 		}
 	}
 	
@@ -117,7 +151,12 @@ public class PeerInfoProvider extends ContentProvider {
 		 * Query the database
 		 */
 		SQLiteDatabase db = openHelper.getReadableDatabase();
-		Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+		boolean withLatency = projection == null || hasLatencyColumn(projection);
+		Cursor c = qb.query(db, withLatency ? tableColumns(projection) : projection,
+				selection, selectionArgs, null, null, orderBy);
+		if (withLatency) {
+			c = addLatency(c, projection);
+		}
 		
 		/*
 		 * Tell the cursor what uri to watch (for data changes)
@@ -126,6 +165,118 @@ public class PeerInfoProvider extends ContentProvider {
 		return c;
 	}
 
+	private static boolean hasLatencyColumn(String[] projection) {
+		for (String column : projection) {
+			if (isLatencyColumn(column)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isLatencyColumn(String column) {
+		return Arrays.asList(ChatContent.Peers.LATENCY_COLUMNS).contains(column);
+	}
+
+	/*
+	 * The columns of projection that are in the table, and the host and port
+	 * by which to find each peer's latency; or null, for all of them.
+	 */
+	private static String[] tableColumns(String[] projection) {
+		if (projection == null) {
+			return null;
+		}
+		List<String> columns = new ArrayList<String>();
+		for (String column : projection) {
+			if (!isLatencyColumn(column)) {
+				columns.add(column);
+			}
+		}
+		if (!columns.contains(ChatContent.Peers.HOST)) {
+			columns.add(ChatContent.Peers.HOST);
+		}
+		if (!columns.contains(ChatContent.Peers.PORT)) {
+			columns.add(ChatContent.Peers.PORT);
+		}
+		return columns.toArray(new String[columns.size()]);
+	}
+
+	/*
+	 * Copy the rows of c (which is closed) into a cursor with the columns of
+	 * projection (or all of c's and the latency columns, if null), filling in
+	 * each peer's latency from the service's tracker.  The peers table is
+	 * small, so the copy costs little.
+	 */
+	private static Cursor addLatency(Cursor c, String[] projection) {
+		try {
+			String[] names = projection;
+			if (names == null) {
+				String[] tableNames = c.getColumnNames();
+				String[] latencyNames = ChatContent.Peers.LATENCY_COLUMNS;
+				names = new String[tableNames.length + latencyNames.length];
+				System.arraycopy(tableNames, 0, names, 0, tableNames.length);
+				System.arraycopy(latencyNames, 0, names, tableNames.length, latencyNames.length);
+			}
+			int[] columns = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				columns[i] = isLatencyColumn(names[i]) ? -1 : c.getColumnIndexOrThrow(names[i]);
+			}
+			int hostColumn = c.getColumnIndexOrThrow(ChatContent.Peers.HOST);
+			int portColumn = c.getColumnIndexOrThrow(ChatContent.Peers.PORT);
+
+			HashMap<String, LatencyTracker.Summary> latencies = new HashMap<String, LatencyTracker.Summary>();
+			for (LatencyTracker.Summary latency : LatencyTracker.getShared().getPeers()) {
+				latencies.put(latency.getHost() + ":" + latency.getPort(), latency);
+			}
+
+			MatrixCursor result = new MatrixCursor(names, c.getCount());
+			while (c.moveToNext()) {
+				LatencyTracker.Summary latency = latencies.get(c.getString(hostColumn)
+						+ ":" + c.getInt(portColumn));
+				Object[] row = new Object[names.length];
+				for (int i = 0; i < names.length; i++) {
+					row[i] = columns[i] < 0 ? getLatency(latency, names[i])
+							: getValue(c, columns[i]);
+				}
+				result.addRow(row);
+			}
+			return result;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static Object getLatency(LatencyTracker.Summary latency, String column) {
+		if (latency == null || latency.getSamples() == 0) {
+			return null;
+		} else if (column.equals(ChatContent.Peers.LATENCY_SAMPLES)) {
+			return latency.getSamples();
+		} else if (column.equals(ChatContent.Peers.CLOCK_OFFSET)) {
+			return latency.getClockOffset();
+		} else if (column.equals(ChatContent.Peers.LATENCY)) {
+			return latency.getDelay(0.5);
+		} else if (column.equals(ChatContent.Peers.LATENCY_P99)) {
+			return latency.getDelay(0.99);
+		} else {
+			return latency.getJitter();
+		}
+	}
+
+	private static Object getValue(Cursor c, int column) {
+		switch (c.getType(column)) {
+		case Cursor.FIELD_TYPE_NULL:
+			return null;
+		case Cursor.FIELD_TYPE_INTEGER:
+			return c.getLong(column);
+		case Cursor.FIELD_TYPE_FLOAT:
+			return c.getDouble(column);
+		case Cursor.FIELD_TYPE_BLOB:
+			return c.getBlob(column);
+		default:
+			return c.getString(column);
+		}
+	}
+
 	@Override
 	public String getType(Uri uri) {
 		switch (uriMatcher.match(uri)) {
@@ -142,10 +293,43 @@ public class PeerInfoProvider extends ContentProvider {
 	
 	@Override
 	public Uri insert(Uri uri, ContentValues initialValues) {
-		if (uriMatcher.match(uri) != PEERS) {
+		int match = uriMatcher.match(uri);
+		if (match != PEERS && match != PEER_UPSERT) {
 			throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 	
+		ContentValues values = withDefaults(initialValues);
+
+		SQLiteDatabase db = openHelper.getWritableDatabase();
+		long rowId;
+		if (match == PEER_UPSERT) {
+			db.beginTransaction();
+			SQLiteStatement find = compileFindPeer(db);
+			try {
+				rowId = upsert(db, find, values);
+				db.setTransactionSuccessful();
+			} finally {
+				find.close();
+				db.endTransaction();
+			}
+		} else {
+			rowId = db.insert(PEER_TABLE_NAME, ChatContent.Peers.NAME, values);
+		}
+		if (rowId > 0) {
+			Uri peerUri = ContentUris.withAppendedId(ChatContent.Peers.CONTENT_URI, rowId);
+			getContext().getContentResolver().notifyChange(peerUri, null);
+			return peerUri;
+		}
+	
+		throw new SQLException("Failed to insert row into " + uri);
+	}
+
+	/*
+	 * A copy of initialValues with every field set, defaulting any missing.
+	 * The host and port must be usable, as they identify the peer and the
+	 * upsert looks its row up by them.
+	 */
+	private static ContentValues withDefaults(ContentValues initialValues) {
 		ContentValues values;
 		if (initialValues != null) {
 			values = new ContentValues(initialValues);
@@ -173,16 +357,81 @@ public class PeerInfoProvider extends ContentProvider {
 		if (values.containsKey(ChatContent.Peers.LONGITUDE) == false) {
 			values.put(ChatContent.Peers.LONGITUDE, 0.0);
 		}
-		
+
+		if (values.getAsString(ChatContent.Peers.HOST) == null
+				|| values.getAsLong(ChatContent.Peers.PORT) == null) {
+			throw new IllegalArgumentException("Peer has no host or port: " + initialValues);
+		}
+		return values;
+	}
+
+	/*
+	 * Add or update a batch of peers, in a single transaction with a single
+	 * change notification.  Only supported on UPSERT_URI.  Every peer gets
+	 * the defaults and checks insert applies before the transaction starts,
+	 * so a bad one fails the batch before anything is written.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (uriMatcher.match(uri) != PEER_UPSERT) {
+			return super.bulkInsert(uri, values);
+		}
+
+		ContentValues[] peers = new ContentValues[values.length];
+		for (int i = 0; i < values.length; i++) {
+			peers[i] = withDefaults(values[i]);
+		}
+
 		SQLiteDatabase db = openHelper.getWritableDatabase();
-		long rowId = db.insert(PEER_TABLE_NAME, ChatContent.Peers.NAME, values);
-		if (rowId > 0) {
-			Uri peerUri = ContentUris.withAppendedId(ChatContent.Peers.CONTENT_URI, rowId);
-			getContext().getContentResolver().notifyChange(peerUri, null);
-			return peerUri;
+		db.beginTransaction();
+		SQLiteStatement find = compileFindPeer(db);
+		try {
+			for (ContentValues peer : peers) {
+				if (upsert(db, find, peer) <= 0) {
+					throw new SQLException("Failed to insert row into " + uri);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			find.close();
+			db.endTransaction();
 		}
-	
-		throw new SQLException("Failed to insert row into " + uri);
+
+		getContext().getContentResolver().notifyChange(ChatContent.Peers.CONTENT_URI, null);
+		return values.length;
+	}
+
+	/*
+	 * Update the row for the host and port in values, or insert one if there
+	 * is none.  Both steps are probes of the unique (host, port) index.  (The
+	 * SQLite bundled with older devices has no INSERT ... ON CONFLICT DO
+	 * UPDATE, and INSERT OR REPLACE would give the peer a new _id.)  Must be
+	 * called inside a transaction, with find from compileFindPeer.  Returns
+	 * the row id, or -1 on failure.
+	 */
+	private long upsert(SQLiteDatabase db, SQLiteStatement find, ContentValues values) {
+		find.bindString(1, values.getAsString(ChatContent.Peers.HOST));
+		find.bindLong(2, values.getAsLong(ChatContent.Peers.PORT));
+		long rowId;
+		try {
+			rowId = find.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return db.insertWithOnConflict(PEER_TABLE_NAME, ChatContent.Peers.NAME,
+					values, SQLiteDatabase.CONFLICT_ABORT);
+		}
+		db.update(PEER_TABLE_NAME, values, ChatContent.Peers._ID + "=" + rowId, null);
+		return rowId;
+	}
+
+	/*
+	 * Compiled lookup of a peer's row id by host and port.  Compiled once per
+	 * transaction, and closed at its end, so no statement is shared between
+	 * the binder threads callers come in on.
+	 */
+	private static SQLiteStatement compileFindPeer(SQLiteDatabase db) {
+		return db.compileStatement("SELECT " + ChatContent.Peers._ID
+				+ " FROM " + PEER_TABLE_NAME + " WHERE " + ChatContent.Peers.HOST
+				+ " = ? AND " + ChatContent.Peers.PORT + " = ?");
 	}
 
 	@Override
@@ -238,11 +487,13 @@ public class PeerInfoProvider extends ContentProvider {
 		uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		uriMatcher.addURI(ChatContent.Peers.AUTHORITY, null, PEERS);
 		uriMatcher.addURI(ChatContent.Peers.AUTHORITY, "#", PEER_ID);
+		uriMatcher.addURI(ChatContent.Peers.AUTHORITY, ChatContent.Peers.UPSERT_PATH, PEER_UPSERT);
 		
 		peerProjectionMap = new HashMap<String, String>();
 		peerProjectionMap.put(ChatContent.Peers._ID, ChatContent.Peers._ID);
 		peerProjectionMap.put(ChatContent.Peers.NAME, ChatContent.Peers.NAME);
 		peerProjectionMap.put(ChatContent.Peers.HOST, ChatContent.Peers.HOST);
+		peerProjectionMap.put(ChatContent.Peers.HOSTNAME, ChatContent.Peers.HOSTNAME);
 		peerProjectionMap.put(ChatContent.Peers.PORT, ChatContent.Peers.PORT);
 		peerProjectionMap.put(ChatContent.Peers.LATITUDE, ChatContent.Peers.LATITUDE);
 		peerProjectionMap.put(ChatContent.Peers.LONGITUDE, ChatContent.Peers.LONGITUDE);
@@ -0,0 +1,103 @@
+/*********************************************************************
+
+    Which version of the wire format each peer is known to read, so
+    messages to it are sent in that version.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A peer is known to read the latest version heard from it (up to
+ * WireFormat.VERSION) for TIMEOUT ms after the last datagram of that
+ * version, so a peer that restarts with an older build is soon sent
+ * version 1 again.  A peer that sends messages in an earlier version than
+ * ours is sent an announcement (see WireFormat) at most once every
+ * ANNOUNCE_INTERVAL ms, so that, if it reads a later one, it starts
+ * sending it.
+ *
+ * At most MAX_PEERS peers are remembered, forgetting the least recently
+ * heard from.  The receive thread records what it hears and the sender
+ * thread asks, so all methods are synchronized.
+ */
+public class PeerVersions {
+
+	static final long TIMEOUT = 10 * 60 * 1000;
+
+	static final long ANNOUNCE_INTERVAL = 60 * 1000;
+
+	private static final int MAX_PEERS = 1024;
+
+	private static final class Peer {
+		byte version = WireFormat.VERSION_1;
+		long heard = Long.MIN_VALUE;
+		long announced = Long.MIN_VALUE;
+	}
+
+	private final LinkedHashMap<InetSocketAddress, Peer> peers = new LinkedHashMap<InetSocketAddress, Peer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Peer> eldest) {
+			return size() > MAX_PEERS;
+		}
+	};
+
+	private Peer getPeer(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			peer = new Peer();
+			peers.put(address, peer);
+		}
+		return peer;
+	}
+
+	/*
+	 * A binary datagram in version has been received from address.  An
+	 * earlier version than the one it is known to read changes nothing.
+	 */
+	public synchronized void heard(InetSocketAddress address, int version, long now) {
+		if (version <= WireFormat.VERSION_1) {
+			return;
+		}
+		byte reads = (byte) Math.min(version, WireFormat.VERSION);
+		Peer peer = getPeer(address);
+		if (reads >= peer.version || !isKnown(peer, now)) {
+			peer.version = reads;
+			peer.heard = now;
+		}
+	}
+
+	private static boolean isKnown(Peer peer, long now) {
+		return peer.heard != Long.MIN_VALUE && now - peer.heard < TIMEOUT;
+	}
+
+	/*
+	 * The latest version address is known to read: VERSION_1 if nothing
+	 * later.
+	 */
+	public synchronized byte getVersion(InetSocketAddress address, long now) {
+		Peer peer = peers.get(address);
+		return peer != null && isKnown(peer, now) ? peer.version : WireFormat.VERSION_1;
+	}
+
+	/*
+	 * Called when a message in an earlier version than ours is received from
+	 * address: whether to send it an announcement now.
+	 */
+	public synchronized boolean announce(InetSocketAddress address, long now) {
+		Peer peer = getPeer(address);
+		if (peer.announced != Long.MIN_VALUE && now - peer.announced < ANNOUNCE_INTERVAL) {
+			return false;
+		}
+		peer.announced = now;
+		return true;
+	}
+
+}
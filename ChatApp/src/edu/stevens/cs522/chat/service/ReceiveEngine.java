@@ -0,0 +1,230 @@
+/*********************************************************************
+
+    Receive engine: a single thread that waits on a Selector for any
+    number of datagram channels and reads whatever packets are ready.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Every channel is read only by the engine thread, so each socket has
+ * exactly one reader.  Packets are received into a direct buffer owned by
+ * the engine and handed to the listener in place, without being copied.
+ */
+public class ReceiveEngine implements Runnable {
+
+	/*
+	 * Most packets read from one channel before moving on to the next, so one
+	 * busy channel cannot starve the others, and a batch of packets handed to
+	 * the listener stays bounded.
+	 */
+	private static final int MAX_PACKETS_PER_ROUND = 64;
+
+	public interface Listener {
+		/*
+		 * A packet has arrived on channel.  packet holds the datagram between
+		 * its position and limit; it is reused for the next packet, so the
+		 * listener must not keep a reference to it.
+		 */
+		public void onPacket(DatagramChannel channel, ByteBuffer packet,
+				InetSocketAddress source);
+
+		/*
+		 * Every packet that was ready has been passed to onPacket: a good time
+		 * to act on them as a batch.
+		 */
+		public void onPacketsDrained();
+
+		/*
+		 * The engine has stopped because of an I/O error.
+		 */
+		public void onFailure(IOException e);
+
+		/*
+		 * A call to onPacket or onPacketsDrained threw e.  That packet, or
+		 * whatever that call was doing, is lost, but the engine goes on.
+		 */
+		public void onError(RuntimeException e);
+	}
+
+	private final Listener listener;
+
+	private final Selector selector;
+
+	private final ByteBuffer buffer;
+
+	private final ConcurrentLinkedQueue<DatagramChannel> registrations = new ConcurrentLinkedQueue<DatagramChannel>();
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/*
+	 * Number of listener calls that have thrown.  Only the engine thread
+	 * writes it.
+	 */
+	private volatile long errors;
+
+	public ReceiveEngine(Listener listener, int maxPacketSize) throws IOException {
+		this.listener = listener;
+		this.selector = Selector.open();
+		this.buffer = ByteBuffer.allocateDirect(maxPacketSize);
+	}
+
+	/*
+	 * Open a channel bound to port, and start receiving from it.  The channel
+	 * may be used by other threads for sending.
+	 */
+	public DatagramChannel bind(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(port));
+			register(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/*
+	 * Start receiving from a channel.  Safe to call from any thread, before or
+	 * after start().
+	 */
+	public void register(DatagramChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		registrations.add(channel);
+		selector.wakeup();
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Receive engine already started");
+		}
+		running = true;
+		thread = new Thread(this, "ReceiveEngine");
+		thread.start();
+	}
+
+	/*
+	 * Stop the engine thread and close every channel registered with it.
+	 */
+	public synchronized void stop() {
+		running = false;
+		selector.wakeup();
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeAll();
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				addRegistrations();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				boolean received = false;
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable()) {
+						received |= drain((DatagramChannel) key.channel());
+					}
+				}
+				if (received) {
+					try {
+						listener.onPacketsDrained();
+					} catch (RuntimeException e) {
+						error(e);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			/* Stopped. */
+		} catch (IOException e) {
+			if (running) {
+				listener.onFailure(e);
+			}
+		}
+	}
+
+	private void addRegistrations() throws IOException {
+		DatagramChannel channel;
+		while ((channel = registrations.poll()) != null) {
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+	}
+
+	private boolean drain(DatagramChannel channel) throws IOException {
+		int count = 0;
+		while (count < MAX_PACKETS_PER_ROUND) {
+			buffer.clear();
+			SocketAddress source = channel.receive(buffer);
+			if (source == null) {
+				break;
+			}
+			buffer.flip();
+			try {
+				listener.onPacket(channel, buffer, (InetSocketAddress) source);
+			} catch (RuntimeException e) {
+				error(e);
+			}
+			count++;
+		}
+		return count > 0;
+	}
+
+	/*
+	 * A bug in handling one packet should lose just that packet, not stop
+	 * the engine and every packet after it.
+	 */
+	private void error(RuntimeException e) {
+		errors++;
+		try {
+			listener.onError(e);
+		} catch (RuntimeException again) {
+			/* Counted already. */
+		}
+	}
+
+	private void closeAll() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			DatagramChannel channel;
+			while ((channel = registrations.poll()) != null) {
+				channel.close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			/* Closing anyway. */
+		} catch (ClosedSelectorException e) {
+			/* Already closed. */
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/*********************************************************************
+
+    Receive pipeline: everything done to a packet on the receive thread
+    between reading it and having a decoded message to save.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Each packet goes through, in order: admission control, the reliable
+ * transport (which acts on and strips ACKs and sequence numbers), the
+ * duplicate filter, fragment reassembly and decoding.  Whatever survives
+ * is handed to the sink, which saves it.  A reliable datagram is only
+ * acknowledged once the pipeline has taken it (delivered its message, kept
+ * it as a fragment, or found it to be a copy of a message delivered
+ * already) and the sink has saved what it was given, so one that is
+ * dropped here, or whose message is not saved, is resent, and the sender
+ * does not count it delivered.  The version of every binary packet is
+ * noted in versions, and a peer that sends a message in an earlier version
+ * of the format than ours is told, by an announcement, which is read here;
+ * announcements from peers go no further than that.  What happens to each
+ * packet is counted in metrics, and the time to decode each message
+ * recorded there, as is the one-way latency of each message stamped with
+ * its send time.
+ *
+ * The pipeline has no Android dependencies, so the same code runs in the
+ * service and in the off-device soak test.  Only the receive thread uses
+ * it.
+ */
+public class ReceivePipeline implements ReceiveEngine.Listener {
+
+	public interface Sink {
+		/*
+		 * A new message has been decoded.  message is reused for the next
+		 * one, so the sink must copy what it keeps.  Returns false if the
+		 * sink has no room for it (messages it could not save fill its
+		 * batch); the message is then dropped.
+		 */
+		public boolean onMessage(MessageInfo message);
+
+		/*
+		 * A packet from source was turned away by admission control, for
+		 * reason (AdmissionControl.PEER_LIMITED or GLOBAL_LIMITED).
+		 */
+		public void onRateLimited(InetSocketAddress source, int reason);
+
+		/*
+		 * A packet from source could not be decoded.
+		 */
+		public void onMalformed(InetSocketAddress source);
+
+		/*
+		 * Every packet that was ready has been processed.  Returns whether
+		 * every message taken so far has now been saved: only then are the
+		 * reliable datagrams that carried them acknowledged.
+		 */
+		public boolean onPacketsDrained();
+
+		/*
+		 * Receiving has stopped because of an I/O error.
+		 */
+		public void onFailure(IOException e);
+
+		/*
+		 * Handling a packet threw e (see ReceiveEngine.Listener.onError).
+		 */
+		public void onError(RuntimeException e);
+	}
+
+	private final Sink sink;
+
+	private final ReliableTransport transport;
+
+	private final AdmissionControl admission;
+
+	private final Metrics metrics;
+
+	private final PeerVersions versions;
+
+	private final ByteBuffer announcement = ByteBuffer.allocate(WireFormat.HEADER_SIZE);
+
+	private final DuplicateFilter duplicates = new DuplicateFilter();
+
+	private final FragmentReassembler reassembler = new FragmentReassembler();
+
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final MessageInfo received = new MessageInfo();
+
+	public ReceivePipeline(ReliableTransport transport, PeerVersions versions,
+			AdmissionControl admission, Metrics metrics, Sink sink) {
+		this.transport = transport;
+		this.versions = versions;
+		this.admission = admission;
+		this.metrics = metrics;
+		this.sink = sink;
+	}
+
+	public AdmissionControl getAdmission() {
+		return admission;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public DuplicateFilter getDuplicates() {
+		return duplicates;
+	}
+
+	public FragmentReassembler getReassembler() {
+		return reassembler;
+	}
+
+	public void onPacket(DatagramChannel channel, ByteBuffer packet,
+			InetSocketAddress source) {
+		metrics.increment(Metrics.PACKETS_RECEIVED);
+		metrics.add(Metrics.BYTES_RECEIVED, packet.remaining());
+		int admitted = admission.admit(source.getAddress());
+		if (admitted != AdmissionControl.ADMITTED) {
+			metrics.increment(admitted == AdmissionControl.PEER_LIMITED
+					? Metrics.PEER_LIMITED : Metrics.GLOBAL_LIMITED);
+			sink.onRateLimited(source, admitted);
+			return;
+		}
+		int version = -1;
+		if (WireFormat.isBinary(packet, packet.position(), packet.limit())) {
+			version = WireFormat.getVersion(packet, packet.position());
+			versions.heard(source, version, System.currentTimeMillis());
+			if (WireFormat.isAnnouncement(packet, packet.position(), packet.limit())) {
+				return;
+			}
+		}
+		if (!transport.receive(packet, source)) {
+			/*
+			 * Only an ACK, or a datagram received before.
+			 */
+			return;
+		}
+		ByteBuffer message = packet;
+		if (WireFormat.isFragment(packet, packet.position(), packet.limit())) {
+			int messageId = WireFormat.getMessageId(packet, packet.position(), packet.limit());
+			if (messageId >= 0 && duplicates.isDuplicate(source, messageId)) {
+				/*
+				 * A fragment of a message we already have.
+				 */
+				metrics.increment(Metrics.DUPLICATES);
+				transport.accepted();
+				return;
+			}
+			message = reassembler.add(packet, source);
+			if (message == null) {
+				if (!reassembler.wasRejected()) {
+					transport.accepted();
+				}
+				return;
+			}
+		}
+		try {
+			int messageId = WireFormat.getMessageId(message, message.position(), message.limit());
+			if (messageId >= 0 && duplicates.isDuplicate(source, messageId)) {
+				metrics.increment(Metrics.DUPLICATES);
+				transport.accepted();
+				return;
+			}
+			long start = System.nanoTime();
+			boolean decoded = decoder.decode(message, source.getAddress(), source.getPort(), received);
+			metrics.record(Metrics.DECODE, System.nanoTime() - start);
+			if (decoded) {
+				if (!sink.onMessage(received)) {
+					/*
+					 * Not taken, so not marked as seen: a copy sent again
+					 * is not taken for a duplicate.
+					 */
+					metrics.increment(Metrics.MESSAGES_DROPPED);
+					return;
+				}
+				if (messageId >= 0) {
+					duplicates.accept(source, messageId);
+				}
+				transport.accepted();
+				metrics.increment(Metrics.MESSAGES_RECEIVED);
+				if (received.getTimestamp() != MessageInfo.NO_TIMESTAMP) {
+					metrics.getLatency().record(source, received.getTimestamp(),
+							System.currentTimeMillis());
+				}
+				if (version >= WireFormat.VERSION_1 && version < WireFormat.VERSION
+						&& versions.announce(source, System.currentTimeMillis())) {
+					announce(channel, source);
+				}
+			} else {
+				metrics.increment(Metrics.MALFORMED);
+				sink.onMalformed(source);
+			}
+		} finally {
+			if (message != packet) {
+				reassembler.release(message);
+			}
+		}
+	}
+
+	/*
+	 * Tell target that WireFormat.VERSION is read here.  If the socket has
+	 * no room for it, it is sent after target's next message a while later.
+	 */
+	private void announce(DatagramChannel channel, InetSocketAddress target) {
+		announcement.clear();
+		WireFormat.putAnnouncement(announcement);
+		announcement.flip();
+		try {
+			int sent = channel.send(announcement, target);
+			if (sent > 0) {
+				metrics.increment(Metrics.PACKETS_SENT);
+				metrics.add(Metrics.BYTES_SENT, sent);
+			}
+		} catch (IOException e) {
+			/* Announced again later. */
+		}
+	}
+
+	public void onPacketsDrained() {
+		if (sink.onPacketsDrained()) {
+			transport.commit();
+		}
+	}
+
+	public void onFailure(IOException e) {
+		sink.onFailure(e);
+	}
+
+	public void onError(RuntimeException e) {
+		metrics.increment(Metrics.RECEIVE_ERRORS);
+		sink.onError(e);
+	}
+
+}
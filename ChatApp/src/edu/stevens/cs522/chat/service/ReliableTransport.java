@@ -0,0 +1,687 @@
+/*********************************************************************
+
+    Reliable transport: optional acknowledgement and retransmission of
+    datagrams, per peer, on top of the best-effort send path.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * A datagram sent reliably carries a sequence number (FLAG_RELIABLE), one
+ * per datagram, counting up from a random start for each peer, and says how
+ * far that is past the oldest datagram still unacknowledged, so a receiver
+ * knows where the sequence starts (and what the sender has given up on)
+ * even if it missed the first datagrams.  The receiver
+ * acknowledges it (FLAG_ACK) with the highest sequence number up to which it
+ * has everything, and a bitmap of the 32 sequence numbers after that which
+ * it also has.  ACKs are delayed briefly so they can ride on the next
+ * datagram to that peer, whatever it is; otherwise a datagram is sent that
+ * holds just the ACK.
+ *
+ * At most WINDOW reliable datagrams are unacknowledged per peer; more wait
+ * in a bounded backlog.  A datagram not acknowledged within the
+ * retransmission timeout is sent again, with its timeout doubled each time,
+ * up to MAX_RETRIES times.  The timeout is estimated from measured round
+ * trip times as in RFC 6298, using only datagrams that were not resent.
+ *
+ * A reliable datagram is only recorded as received, and acknowledged,
+ * once the receive pipeline has taken it (see accepted()) and what it
+ * carried has been saved (see commit()): one it cannot decode, or any
+ * other it drops, or that is lost because saving failed, is left for the
+ * sender to resend, and to fail in the end if it never gets through.  A
+ * copy of a datagram already taken is acknowledged again, in case the
+ * first ACK was lost.
+ *
+ * Datagrams sent without reliability pay nothing beyond an ACK riding on
+ * them when one is due.
+ *
+ * The sender thread calls prepare(), poll() and getDelay(); the receive
+ * thread calls receive(), accepted() and commit().
+ */
+public class ReliableTransport {
+
+	public interface Listener {
+		/*
+		 * A datagram sent reliably with token has been acknowledged.  Called
+		 * on the receive thread.
+		 */
+		public void onAcknowledged(Object token);
+
+		/*
+		 * A datagram sent reliably with token was never acknowledged, or could
+		 * not be queued.
+		 */
+		public void onFailed(Object token, IOException e);
+
+		/*
+		 * Something is due to be sent: poll() should be called, on the sender
+		 * thread, soon.
+		 */
+		public void onWakeup();
+	}
+
+	/*
+	 * Must be a power of two, at most 32 (the width of the ACK bitmap).
+	 */
+	private static final int WINDOW = 32;
+
+	private static final int MAX_BACKLOG = 256;
+
+	private static final int MAX_RETRIES = 6;
+
+	private static final long INITIAL_RTO = 1000;
+	private static final long MIN_RTO = 200;
+	private static final long MAX_RTO = 8000;
+
+	/*
+	 * How long an ACK waits for a datagram to ride on.
+	 */
+	private static final long ACK_DELAY = 20;
+
+	/*
+	 * A sequence number further than this behind what we expect from a peer
+	 * is taken to mean the peer has restarted.
+	 */
+	private static final int RESYNC_DISTANCE = 1 << 16;
+
+	private static final int SEQUENCE_MASK = 0x7fffffff;
+
+	private static final int MAX_PEERS = 256;
+
+	/*
+	 * Most datagrams taken but not yet committed.  Past this, one taken is
+	 * not held, so is not acknowledged, and the sender resends it; this
+	 * only happens if saving has been failing for a while.
+	 */
+	private static final int MAX_HELD = 1024;
+
+	private static final class Datagram {
+		final byte[] data;
+		final int length;
+		final Object token;
+		int sequence;
+		long sentAt;
+		long deadline;
+		int retries;
+
+		Datagram(ByteBuffer packet, Object token) {
+			this.length = packet.remaining();
+			this.data = new byte[length];
+			packet.duplicate().get(data);
+			this.token = token;
+		}
+	}
+
+	private static final class Peer {
+		/*
+		 * Sending: the next sequence number, the datagrams not yet
+		 * acknowledged (indexed by sequence number modulo WINDOW), and those
+		 * waiting for room in the window.
+		 */
+		int nextSequence;
+		final Datagram[] window = new Datagram[WINDOW];
+		int inFlight;
+		final ArrayDeque<Datagram> backlog = new ArrayDeque<Datagram>();
+
+		/*
+		 * Round trip time estimates, in ms.
+		 */
+		double srtt;
+		double rttvar;
+		long rto = INITIAL_RTO;
+
+		/*
+		 * Receiving: everything up to and including acknowledged has arrived,
+		 * as has sequence number acknowledged + 1 + i for each bit i set in
+		 * received.
+		 */
+		boolean synced;
+		int acknowledged;
+		int received;
+		boolean ackDue;
+		long ackDeadline;
+
+		boolean isIdle() {
+			return inFlight == 0 && backlog.isEmpty() && !ackDue;
+		}
+	}
+
+	private final Listener listener;
+
+	private final Random random = new Random();
+
+	private final LinkedHashMap<InetSocketAddress, Peer> peers = new LinkedHashMap<InetSocketAddress, Peer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Peer> eldest) {
+			return size() > MAX_PEERS && eldest.getValue().isIdle();
+		}
+	};
+
+	/*
+	 * The reliable datagram receive() last let through, not yet recorded as
+	 * received: its source, or null if there is none, and its sequence
+	 * number.  Only the receive thread uses these.
+	 */
+	private InetSocketAddress pendingSource;
+	private int pendingSequence;
+
+	/*
+	 * Reliable datagrams taken by the pipeline, to be recorded as received
+	 * at the next commit(): their sources and sequence numbers.  Only the
+	 * receive thread uses these.
+	 */
+	private final InetSocketAddress[] heldSources = new InetSocketAddress[MAX_HELD];
+	private final int[] heldSequences = new int[MAX_HELD];
+	private int held;
+
+	public ReliableTransport(Listener listener) {
+		this.listener = listener;
+	}
+
+	/*
+	 * Called on the sender thread before sending packet (between its position
+	 * and limit, which are unchanged) to target.  Returns the buffer to send:
+	 * packet itself, or out holding packet with transport fields added, if
+	 * it is to be sent reliably (token is not null) or an ACK is due to the
+	 * target.  Returns null if the packet is held back for now; it is then
+	 * sent later, from poll().
+	 */
+	public ByteBuffer prepare(InetSocketAddress target, ByteBuffer packet,
+			Object token, ByteBuffer out, long now) {
+		IOException failure = null;
+		try {
+			synchronized (this) {
+				Peer peer = token != null ? getPeer(target) : peers.get(target);
+				if (peer == null) {
+					return packet;
+				}
+				if (token == null) {
+					if (!peer.ackDue) {
+						return packet;
+					}
+					write(peer, packet, false, 0, out);
+					return out;
+				}
+
+				Datagram datagram = new Datagram(packet, token);
+				if (peer.backlog.isEmpty() && peer.window[peer.nextSequence & (WINDOW - 1)] == null) {
+					transmit(peer, datagram, now, out);
+					return out;
+				}
+				if (peer.backlog.size() >= MAX_BACKLOG) {
+					failure = new IOException("Too many unacknowledged messages to " + target);
+				} else {
+					peer.backlog.add(datagram);
+				}
+				return null;
+			}
+		} finally {
+			if (failure != null) {
+				listener.onFailed(token, failure);
+			}
+		}
+	}
+
+	/*
+	 * Called on the sender thread: write the next datagram that is due to be
+	 * sent (a retransmission, a datagram from the backlog, or an ACK on its
+	 * own) into out, and return where it is to be sent; or null if nothing is
+	 * due.
+	 */
+	public InetSocketAddress poll(ByteBuffer out, long now) {
+		ArrayList<Object> failed = null;
+		try {
+			synchronized (this) {
+				for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+					Peer peer = entry.getValue();
+					if (peer.inFlight > 0) {
+						for (int i = 0; i < WINDOW; i++) {
+							Datagram datagram = peer.window[i];
+							if (datagram == null || datagram.deadline > now) {
+								continue;
+							}
+							if (datagram.retries == MAX_RETRIES) {
+								peer.window[i] = null;
+								peer.inFlight--;
+								if (failed == null) {
+									failed = new ArrayList<Object>();
+								}
+								failed.add(datagram.token);
+								continue;
+							}
+							datagram.retries++;
+							datagram.sentAt = now;
+							datagram.deadline = now + Math.min(MAX_RTO, peer.rto << datagram.retries);
+							write(peer, ByteBuffer.wrap(datagram.data, 0, datagram.length),
+									true, datagram.sequence, out);
+							return entry.getKey();
+						}
+					}
+					if (!peer.backlog.isEmpty()
+							&& peer.window[peer.nextSequence & (WINDOW - 1)] == null) {
+						transmit(peer, peer.backlog.poll(), now, out);
+						return entry.getKey();
+					}
+					if (peer.ackDue && peer.ackDeadline <= now) {
+						write(peer, null, false, 0, out);
+						return entry.getKey();
+					}
+				}
+				return null;
+			}
+		} finally {
+			if (failed != null) {
+				for (Object token : failed) {
+					listener.onFailed(token, new IOException("Message not acknowledged"));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Milliseconds until poll() next has something to send: 0 if it has
+	 * something now, -1 if it has nothing until more is sent or received.
+	 */
+	public synchronized long getDelay(long now) {
+		long next = Long.MAX_VALUE;
+		for (Peer peer : peers.values()) {
+			if (peer.inFlight > 0) {
+				for (Datagram datagram : peer.window) {
+					if (datagram != null) {
+						next = Math.min(next, datagram.deadline);
+					}
+				}
+			}
+			if (!peer.backlog.isEmpty()
+					&& peer.window[peer.nextSequence & (WINDOW - 1)] == null) {
+				return 0;
+			}
+			if (peer.ackDue) {
+				next = Math.min(next, peer.ackDeadline);
+			}
+		}
+		return next == Long.MAX_VALUE ? -1 : Math.max(0, next - now);
+	}
+
+	/*
+	 * Called on the receive thread for each packet (between its position and
+	 * limit) from source.  Acts on any transport fields, and removes them by
+	 * moving the header up over them, so the packet is left in the format it
+	 * had before prepare() (the position of packet moves).  Returns false if
+	 * the packet has nothing more to process: it held only an ACK, or is a
+	 * duplicate of a datagram already received.  A reliable datagram let
+	 * through is not acknowledged until accepted() is called.
+	 */
+	public boolean receive(ByteBuffer packet, InetSocketAddress source) {
+		pendingSource = null;
+		int start = packet.position();
+		int end = packet.limit();
+		if (!WireFormat.isBinary(packet, start, end)) {
+			return true;
+		}
+		byte version = packet.get(start + 2);
+		int flags = packet.get(start + 3);
+		if ((flags & (WireFormat.FLAG_ACK | WireFormat.FLAG_RELIABLE)) == 0) {
+			return true;
+		}
+
+		packet.position(start + WireFormat.HEADER_SIZE);
+		int acknowledged = 0;
+		int received = 0;
+		int sequence = 0;
+		int behind = 0;
+		if ((flags & WireFormat.FLAG_ACK) != 0) {
+			acknowledged = WireFormat.getVarint(packet);
+			if (packet.remaining() < 4) {
+				return false;
+			}
+			received = packet.getInt();
+		}
+		if ((flags & WireFormat.FLAG_RELIABLE) != 0) {
+			sequence = WireFormat.getVarint(packet);
+			if (!packet.hasRemaining()) {
+				return false;
+			}
+			behind = packet.get() & 0xff;
+		}
+		if (acknowledged < 0 || sequence < 0 || behind >= WINDOW) {
+			return false;
+		}
+		int bodyStart = packet.position();
+
+		long now = System.currentTimeMillis();
+		ArrayList<Object> delivered = null;
+		boolean fresh = true;
+		boolean wakeup = false;
+		synchronized (this) {
+			Peer peer = getPeer(source);
+			if ((flags & WireFormat.FLAG_ACK) != 0) {
+				delivered = acknowledge(peer, acknowledged, received, now);
+				wakeup = delivered != null && !peer.backlog.isEmpty();
+			}
+			if ((flags & WireFormat.FLAG_RELIABLE) != 0) {
+				sync(peer, sequence, behind);
+				fresh = isNew(peer, sequence);
+				if (!fresh) {
+					scheduleAck(peer, now);
+					wakeup = true;
+				} else if (bodyStart == end) {
+					record(peer, sequence);
+					scheduleAck(peer, now);
+					wakeup = true;
+				}
+			}
+		}
+		if (delivered != null) {
+			for (Object token : delivered) {
+				listener.onAcknowledged(token);
+			}
+		}
+		if (wakeup) {
+			listener.onWakeup();
+		}
+
+		if (!fresh || bodyStart == end) {
+			packet.position(start);
+			return false;
+		}
+		if ((flags & WireFormat.FLAG_RELIABLE) != 0) {
+			pendingSource = source;
+			pendingSequence = sequence;
+		}
+		int headerStart = bodyStart - WireFormat.HEADER_SIZE;
+		packet.put(headerStart, WireFormat.MAGIC_0);
+		packet.put(headerStart + 1, WireFormat.MAGIC_1);
+		packet.put(headerStart + 2, version);
+		packet.put(headerStart + 3,
+				(byte) (flags & ~(WireFormat.FLAG_ACK | WireFormat.FLAG_RELIABLE)));
+		packet.position(headerStart);
+		return true;
+	}
+
+	/*
+	 * Called on the receive thread once the pipeline has taken the packet
+	 * receive() last returned true for: delivered its message, kept it as a
+	 * fragment of one, or found it to be a copy of one already delivered.
+	 * If the packet was sent reliably, it is held, to be recorded as
+	 * received and acknowledged at the next commit().  If this is not
+	 * called, the packet is not acknowledged, so the sender resends it.
+	 */
+	public void accepted() {
+		InetSocketAddress source = pendingSource;
+		if (source == null) {
+			return;
+		}
+		pendingSource = null;
+		if (held < MAX_HELD) {
+			heldSources[held] = source;
+			heldSequences[held] = pendingSequence;
+			held++;
+		}
+	}
+
+	/*
+	 * Called on the receive thread once everything taken so far has been
+	 * saved: every datagram held since the last commit is recorded as
+	 * received, and acknowledged.  Until then (if saving fails, and is
+	 * being tried again) they stay held.
+	 */
+	public void commit() {
+		if (held == 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (int i = 0; i < held; i++) {
+				Peer peer = getPeer(heldSources[i]);
+				heldSources[i] = null;
+				if (peer.synced && isNew(peer, heldSequences[i])) {
+					record(peer, heldSequences[i]);
+					scheduleAck(peer, now);
+				}
+			}
+		}
+		held = 0;
+		listener.onWakeup();
+	}
+
+	/*
+	 * Acknowledge at once if there is a gap, so the sender can resend
+	 * sooner; otherwise after ACK_DELAY.
+	 */
+	private static void scheduleAck(Peer peer, long now) {
+		long deadline = peer.received != 0 ? now : now + ACK_DELAY;
+		if (!peer.ackDue || deadline < peer.ackDeadline) {
+			peer.ackDeadline = deadline;
+		}
+		peer.ackDue = true;
+	}
+
+	/*
+	 * Give up on every datagram not yet acknowledged or still waiting to be
+	 * sent, failing each with e; called once nothing more is to be sent.
+	 */
+	public void failAll(IOException e) {
+		ArrayList<Object> failed = new ArrayList<Object>();
+		synchronized (this) {
+			for (Peer peer : peers.values()) {
+				for (int i = 0; i < WINDOW; i++) {
+					if (peer.window[i] != null) {
+						failed.add(peer.window[i].token);
+						peer.window[i] = null;
+					}
+				}
+				peer.inFlight = 0;
+				for (Datagram datagram : peer.backlog) {
+					failed.add(datagram.token);
+				}
+				peer.backlog.clear();
+			}
+		}
+		for (Object token : failed) {
+			listener.onFailed(token, e);
+		}
+	}
+
+	/*
+	 * Current retransmission timeout for target, in ms.
+	 */
+	public synchronized long getRto(InetSocketAddress target) {
+		Peer peer = peers.get(target);
+		return peer != null ? peer.rto : INITIAL_RTO;
+	}
+
+	private Peer getPeer(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			peer = new Peer();
+			peer.nextSequence = random.nextInt() & SEQUENCE_MASK;
+			peers.put(address, peer);
+		}
+		return peer;
+	}
+
+	private void transmit(Peer peer, Datagram datagram, long now, ByteBuffer out) {
+		datagram.sequence = peer.nextSequence;
+		peer.nextSequence = (peer.nextSequence + 1) & SEQUENCE_MASK;
+		datagram.sentAt = now;
+		datagram.deadline = now + peer.rto;
+		peer.window[datagram.sequence & (WINDOW - 1)] = datagram;
+		peer.inFlight++;
+		write(peer, ByteBuffer.wrap(datagram.data, 0, datagram.length), true,
+				datagram.sequence, out);
+	}
+
+	/*
+	 * Write packet (or, if it is null, an empty body) into out, with the
+	 * transport fields: an ACK if one is due, and the sequence number if
+	 * reliable.  The header keeps the version of packet.
+	 */
+	private void write(Peer peer, ByteBuffer packet, boolean reliable, int sequence,
+			ByteBuffer out) {
+		int flags = packet != null ? packet.get(packet.position() + 3) : 0;
+		boolean ack = peer.ackDue;
+		if (ack) {
+			flags |= WireFormat.FLAG_ACK;
+			peer.ackDue = false;
+		}
+		if (reliable) {
+			flags |= WireFormat.FLAG_RELIABLE;
+		}
+
+		out.clear();
+		out.put(WireFormat.MAGIC_0);
+		out.put(WireFormat.MAGIC_1);
+		out.put(packet != null ? packet.get(packet.position() + 2) : WireFormat.VERSION);
+		out.put((byte) flags);
+		if (ack) {
+			WireFormat.putVarint(out, peer.acknowledged);
+			out.putInt(peer.received);
+		}
+		if (reliable) {
+			WireFormat.putVarint(out, sequence);
+			out.put((byte) difference(sequence, oldestInFlight(peer)));
+		}
+		if (packet != null) {
+			int start = packet.position();
+			packet.position(start + WireFormat.HEADER_SIZE);
+			out.put(packet);
+			packet.position(start);
+		}
+		out.flip();
+	}
+
+	/*
+	 * Sequence number of the oldest datagram in the window (which must not be
+	 * empty).
+	 */
+	private static int oldestInFlight(Peer peer) {
+		int newest = (peer.nextSequence - 1) & SEQUENCE_MASK;
+		int oldest = newest;
+		for (Datagram datagram : peer.window) {
+			if (datagram != null && difference(datagram.sequence, oldest) < 0) {
+				oldest = datagram.sequence;
+			}
+		}
+		return oldest;
+	}
+
+	/*
+	 * The peer has everything up to acknowledged, and the datagrams marked in
+	 * received after that.  Returns the tokens of the datagrams this
+	 * acknowledges for the first time, or null if none.
+	 */
+	private ArrayList<Object> acknowledge(Peer peer, int acknowledged, int received,
+			long now) {
+		ArrayList<Object> delivered = null;
+		if (peer.inFlight == 0) {
+			return null;
+		}
+		for (int i = 0; i < WINDOW; i++) {
+			Datagram datagram = peer.window[i];
+			if (datagram == null) {
+				continue;
+			}
+			int distance = difference(datagram.sequence, acknowledged);
+			if (distance > 0 && (distance > 32 || (received & (1 << (distance - 1))) == 0)) {
+				continue;
+			}
+			if (distance < -RESYNC_DISTANCE) {
+				/*
+				 * Far behind: not an ACK for this datagram at all.
+				 */
+				continue;
+			}
+			if (datagram.retries == 0) {
+				sample(peer, now - datagram.sentAt);
+			}
+			peer.window[i] = null;
+			peer.inFlight--;
+			if (delivered == null) {
+				delivered = new ArrayList<Object>();
+			}
+			delivered.add(datagram.token);
+		}
+		return delivered;
+	}
+
+	private static void sample(Peer peer, long rtt) {
+		if (peer.srtt == 0) {
+			peer.srtt = rtt;
+			peer.rttvar = rtt / 2.0;
+		} else {
+			peer.rttvar = 0.75 * peer.rttvar + 0.25 * Math.abs(peer.srtt - rtt);
+			peer.srtt = 0.875 * peer.srtt + 0.125 * rtt;
+		}
+		long rto = (long) (peer.srtt + Math.max(1.0, 4 * peer.rttvar));
+		peer.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+	}
+
+	/*
+	 * A datagram with this sequence number has arrived, sent when the oldest
+	 * datagram the peer had not had acknowledged was behind before it.
+	 */
+	private static void sync(Peer peer, int sequence, int behind) {
+		/*
+		 * The peer expects nothing more before first: start from there if
+		 * this is the first we have heard from it, if it has given up on
+		 * datagrams we are still waiting for, or if it has restarted.
+		 */
+		int before = (sequence - behind - 1) & SEQUENCE_MASK;
+		int skip = difference(before, peer.acknowledged);
+		if (!peer.synced || skip > 0 || skip < -RESYNC_DISTANCE) {
+			peer.received = peer.synced && skip > 0 && skip < 32 ? peer.received >>> skip : 0;
+			peer.acknowledged = before;
+			peer.synced = true;
+			advance(peer);
+		}
+	}
+
+	/*
+	 * Whether the datagram with this sequence number has not been received
+	 * before (and is within the window).
+	 */
+	private static boolean isNew(Peer peer, int sequence) {
+		int distance = difference(sequence, peer.acknowledged);
+		return distance > 0 && distance <= 32
+				&& (peer.received & (1 << (distance - 1))) == 0;
+	}
+
+	/*
+	 * Record the datagram with this sequence number, which isNew(), as
+	 * received.
+	 */
+	private static void record(Peer peer, int sequence) {
+		peer.received |= 1 << (difference(sequence, peer.acknowledged) - 1);
+		advance(peer);
+	}
+
+	private static void advance(Peer peer) {
+		while ((peer.received & 1) != 0) {
+			peer.acknowledged = (peer.acknowledged + 1) & SEQUENCE_MASK;
+			peer.received >>>= 1;
+		}
+	}
+
+	/*
+	 * a - b, for 31-bit sequence numbers that wrap around.
+	 */
+	private static int difference(int a, int b) {
+		return ((a - b) << 1) >> 1;
+	}
+
+}
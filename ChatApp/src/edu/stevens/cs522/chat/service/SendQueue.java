@@ -0,0 +1,610 @@
+/*********************************************************************
+
+    Send queue: messages to send are queued by the UI (or anyone else)
+    without blocking, and sent in order by one long-lived sender thread.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The sender thread encodes every message into the same direct buffer, so
+ * sending allocates nothing beyond the queue entry itself; a message sent
+ * to many peers is encoded once and the same bytes sent to each, or twice
+ * if some peers are not known to read the current version of the wire
+ * format (see PeerVersions): they are sent it in version 1.  The channel is
+ * shared with the receive engine and so is non-blocking; if the socket send
+ * buffer is full, the sender thread waits on its own selector until there
+ * is room.
+ *
+ * A message may be sent reliably, through the ReliableTransport: it then
+ * completes only once every datagram of it has been acknowledged by every
+ * target.  Between messages, the sender thread resends whatever the
+ * transport says is due.
+ *
+ * Packets and bytes sent, and messages sent or failed, are counted in
+ * metrics; a message sent reliably counts as sent only once it has been
+ * acknowledged.
+ *
+ * The sender thread is never interrupted: the channel is interruptible,
+ * and an interrupt during a send would close it under the receive engine
+ * too.  It is stopped by a flag and a STOP task instead.
+ */
+public class SendQueue implements Runnable {
+
+	private static final int MAX_QUEUED = 256;
+
+	/*
+	 * Longest the sender thread waits for room in the socket send buffer
+	 * before giving up on a packet.
+	 */
+	private static final long SEND_TIMEOUT = 2000;
+
+	/*
+	 * When sending one message to many peers, the sender thread pauses for
+	 * PACE_INTERVAL ms after every PACE_BURST packets, so a fan-out does not
+	 * flood the network (or the peers' receive buffers) all at once.
+	 */
+	private static final int PACE_BURST = 32;
+	private static final long PACE_INTERVAL = 2;
+
+	public interface Callback {
+		/*
+		 * Called once the message has been handed to the network (or, if sent
+		 * reliably, acknowledged), or failed to be; error is null on success.
+		 * Called on the sender thread, or on the receive thread for an ACK.
+		 */
+		public void onComplete(Exception error);
+	}
+
+	public interface Targets {
+		/*
+		 * Called on the sender thread: the addresses to send a message to.
+		 */
+		public List<InetSocketAddress> getTargets() throws IOException;
+	}
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+
+	/*
+	 * Queued by stop() so the sender thread does not wait for anything
+	 * else to arrive before it sees it is to stop.
+	 */
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+
+	/*
+	 * The outcome of sending one message, completed by the sender thread or
+	 * (for a reliable message) when its last datagram is acknowledged, and
+	 * counted in metrics then.
+	 */
+	private static class Delivery extends FutureTask<Void> {
+		private final Metrics metrics;
+		private final Callback callback;
+
+		/*
+		 * Reliable datagrams not yet acknowledged, plus one until all have
+		 * been sent.
+		 */
+		final AtomicInteger outstanding = new AtomicInteger(1);
+
+		Delivery(Metrics metrics, Callback callback) {
+			super(NOTHING, null);
+			this.metrics = metrics;
+			this.callback = callback;
+		}
+
+		void succeed() {
+			set(null);
+		}
+
+		void fail(Exception e) {
+			setException(e);
+		}
+
+		void acknowledged() {
+			if (outstanding.decrementAndGet() == 0) {
+				succeed();
+			}
+		}
+
+		@Override
+		protected void done() {
+			Exception error = null;
+			try {
+				get();
+			} catch (ExecutionException e) {
+				/*
+				 * The callback is given the exception the delivery failed
+				 * with, not the wrapper get() puts it in.
+				 */
+				error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			} catch (Exception e) {
+				error = e;
+			}
+			if (!isCancelled()) {
+				metrics.increment(error == null ? Metrics.MESSAGES_SENT : Metrics.SEND_FAILURES);
+			}
+			if (callback != null) {
+				callback.onComplete(error);
+			}
+		}
+	}
+
+	private final DatagramChannel channel;
+
+	private final Metrics metrics;
+
+	private final String sender;
+	private final double latitude;
+	private final double longitude;
+
+	private class SendTask implements Runnable {
+		final Targets targets;
+		final String message;
+		final boolean reliable;
+		final Delivery delivery;
+
+		SendTask(Targets targets, String message, boolean reliable, Delivery delivery) {
+			this.targets = targets;
+			this.message = message;
+			this.reliable = reliable;
+			this.delivery = delivery;
+		}
+
+		public void run() {
+			if (delivery.isDone()) {
+				return;
+			}
+			try {
+				send(targets.getTargets(), message, reliable ? delivery : null);
+				if (reliable) {
+					delivery.acknowledged();
+				} else {
+					delivery.succeed();
+				}
+			} catch (IOException e) {
+				delivery.fail(e);
+			} catch (RuntimeException e) {
+				delivery.fail(e);
+			}
+		}
+	}
+
+	/*
+	 * Queued to get the sender thread to look at the transport again.
+	 */
+	private final Runnable wakeup = new Runnable() {
+		public void run() {
+			wakeupQueued.set(false);
+		}
+	};
+
+	private final AtomicBoolean wakeupQueued = new AtomicBoolean();
+
+	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(MAX_QUEUED);
+
+	private final ReliableTransport transport = new ReliableTransport(
+			new ReliableTransport.Listener() {
+		public void onAcknowledged(Object token) {
+			((Delivery) token).acknowledged();
+		}
+
+		public void onFailed(Object token, IOException e) {
+			((Delivery) token).fail(e);
+		}
+
+		public void onWakeup() {
+			if (wakeupQueued.compareAndSet(false, true) && !queue.offer(wakeup)) {
+				/*
+				 * The queue is full, so the sender thread is busy and will
+				 * look at the transport after its next message anyway.
+				 */
+				wakeupQueued.set(false);
+			}
+		}
+	});
+
+	private final PeerVersions versions = new PeerVersions();
+
+	/*
+	 * Peers ("host:port") that messages are sent to reliably by default.
+	 */
+	private final Set<String> reliablePeers = Collections.synchronizedSet(new HashSet<String>());
+
+	private final MessageEncoder encoder = new MessageEncoder();
+
+	/*
+	 * The encoded message, and (if it is too long for one datagram) each of
+	 * its fragments in turn.
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(WireFormat.MAX_MESSAGE_SIZE);
+	private final ByteBuffer fragment = ByteBuffer.allocateDirect(WireFormat.MAX_DATAGRAM_SIZE);
+
+	/*
+	 * A datagram with transport fields added.
+	 */
+	private final ByteBuffer outgoing = ByteBuffer.allocateDirect(WireFormat.MAX_DATAGRAM_SIZE);
+
+	/*
+	 * Id for the next message, by which receivers recognize (and drop)
+	 * copies of it.  Starts at random, so that ids from before a restart are
+	 * unlikely to be taken for new ones, and so that another instance on the
+	 * same host is unlikely to use ids near ours (see isOwnDatagram).
+	 */
+	private final int firstMessageId = new Random().nextInt() & 0x7fffffff;
+	private volatile int nextMessageId = firstMessageId;
+
+	/*
+	 * How many of our most recent message ids isOwnDatagram recognizes.
+	 */
+	private static final int OWN_MESSAGE_WINDOW = 1024;
+
+	private volatile Selector writeSelector;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	public SendQueue(DatagramChannel channel, Metrics metrics, String sender,
+			double latitude, double longitude) {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.sender = sender;
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Send queue already started");
+		}
+		running = true;
+		thread = new Thread(this, "SendQueue");
+		thread.start();
+	}
+
+	/*
+	 * Stop the sender thread, once it has finished with the message it is
+	 * sending, if any; a fan-out to many peers is cut short.  Messages
+	 * still queued are failed, as are those sent reliably but not yet
+	 * acknowledged.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			running = false;
+			/*
+			 * If the queue is full, the sender thread sees the flag after its
+			 * next task, as it is not waiting.
+			 */
+			queue.offer(STOP);
+			Selector selector = writeSelector;
+			if (selector != null) {
+				selector.wakeup();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Runnable task;
+		while ((task = queue.poll()) != null) {
+			if (task instanceof SendTask) {
+				((SendTask) task).delivery.fail(new IOException("Chat service stopped"));
+			}
+		}
+		transport.failAll(new IOException("Chat service stopped"));
+	}
+
+	public ReliableTransport getTransport() {
+		return transport;
+	}
+
+	/*
+	 * The versions of the wire format peers read, which the receive pipeline
+	 * learns and this queue sends by.
+	 */
+	public PeerVersions getPeerVersions() {
+		return versions;
+	}
+
+	/*
+	 * Whether messages to host and port are sent reliably when the sender
+	 * does not say.
+	 */
+	public void setReliable(String host, int port, boolean reliable) {
+		if (reliable) {
+			reliablePeers.add(host + ":" + port);
+		} else {
+			reliablePeers.remove(host + ":" + port);
+		}
+	}
+
+	public boolean isReliable(String host, int port) {
+		return reliablePeers.contains(host + ":" + port);
+	}
+
+	/*
+	 * Queue a message to be sent to host (a name or numeric address) and port.
+	 * Never blocks: if the queue is full, the future returned has already
+	 * failed.  callback may be null.  The message is sent reliably if that
+	 * has been set for the peer.
+	 */
+	public Future<Void> enqueue(String host, int port, String message,
+			Callback callback) {
+		return enqueue(host, port, message, isReliable(host, port), callback);
+	}
+
+	/*
+	 * Queue a message as above, sent reliably (acknowledged, and resent until
+	 * it is) or not.
+	 */
+	public Future<Void> enqueue(final String host, final int port,
+			String message, boolean reliable, Callback callback) {
+		return enqueue(new Targets() {
+			public List<InetSocketAddress> getTargets() throws IOException {
+				return Collections.singletonList(new InetSocketAddress(
+						InetAddress.getByName(host), port));
+			}
+		}, message, reliable, callback);
+	}
+
+	/*
+	 * Queue a message to be sent to every one of targets, which are found on
+	 * the sender thread.  The message is encoded once, and the same packet
+	 * sent to each target in turn.  The future fails if the message could
+	 * not be sent to some target; it is still sent to the others.
+	 */
+	public Future<Void> enqueue(Targets targets, String message, Callback callback) {
+		return enqueue(targets, message, false, callback);
+	}
+
+	public Future<Void> enqueue(Targets targets, String message, boolean reliable,
+			Callback callback) {
+		Delivery delivery = new Delivery(metrics, callback);
+		if (!queue.offer(new SendTask(targets, message, reliable, delivery))) {
+			delivery.fail(new IOException("Send queue full"));
+		}
+		return delivery;
+	}
+
+	public void run() {
+		try {
+			writeSelector = Selector.open();
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+			while (running) {
+				long delay = transport.getDelay(System.currentTimeMillis());
+				Runnable task = delay < 0 ? queue.take()
+						: queue.poll(delay, TimeUnit.MILLISECONDS);
+				if (task == STOP) {
+					break;
+				}
+				if (task != null) {
+					task.run();
+				}
+				flushTransport();
+			}
+		} catch (InterruptedException e) {
+			/* Stopped. */
+		} catch (IOException e) {
+			/* Cannot wait for the channel to become writable. */
+		} finally {
+			if (writeSelector != null) {
+				try {
+					writeSelector.close();
+				} catch (IOException e) {
+					/* Closing anyway. */
+				}
+			}
+		}
+	}
+
+	/*
+	 * Whether packet is a best-effort datagram of one of the messages we
+	 * sent most recently, as each message to the multicast group comes back
+	 * to us.  Another instance at the same address and port numbers its
+	 * messages from its own random start, so its messages are not taken for
+	 * ours.  May be called on any thread.
+	 */
+	public boolean isOwnDatagram(ByteBuffer packet) {
+		int start = packet.position();
+		int end = packet.limit();
+		if (!WireFormat.isBinary(packet, start, end) || (packet.get(start + 3)
+				& (WireFormat.FLAG_ACK | WireFormat.FLAG_RELIABLE)) != 0) {
+			return false;
+		}
+		int messageId = WireFormat.getMessageId(packet, start, end);
+		if (messageId < 0) {
+			return false;
+		}
+		int next = nextMessageId;
+		int age = (next - 1 - messageId) & 0x7fffffff;
+		int issued = (next - firstMessageId) & 0x7fffffff;
+		return age < Math.min(OWN_MESSAGE_WINDOW, issued);
+	}
+
+	/*
+	 * Send whatever the transport has due: resends, datagrams that were
+	 * waiting for room in a peer's window, and ACKs.  A datagram that cannot
+	 * be sent now is resent later, or its message fails when the transport
+	 * gives up on it.
+	 */
+	private void flushTransport() {
+		InetSocketAddress target;
+		while ((target = transport.poll(outgoing, System.currentTimeMillis())) != null) {
+			try {
+				send(outgoing, target);
+			} catch (IOException e) {
+				/* Left to the transport. */
+			}
+		}
+	}
+
+	/*
+	 * The versions a message is encoded in, for the targets that read each,
+	 * latest first.
+	 */
+	private static final byte[] VERSIONS = { WireFormat.VERSION, WireFormat.VERSION_2,
+			WireFormat.VERSION_1 };
+
+	/*
+	 * Encode a message and send it to each target, on the sender thread: once
+	 * in each version that some target reads (the latest it is known to
+	 * read, version 1 if none).  A message too long for one datagram is sent
+	 * in fragments, each fragment to every target before the next.  If
+	 * delivery is not null, each datagram is sent reliably, and counted in
+	 * delivery until acknowledged.
+	 */
+	private void send(List<InetSocketAddress> targets, String message, Delivery delivery)
+			throws IOException {
+		int messageId = nextMessageId;
+		nextMessageId = (nextMessageId + 1) & 0x7fffffff;
+
+		long now = System.currentTimeMillis();
+		byte[] targetVersions = new byte[targets.size()];
+		int[] versionCounts = new int[WireFormat.VERSION + 1];
+		for (int t = 0; t < targetVersions.length; t++) {
+			targetVersions[t] = versions.getVersion(targets.get(t), now);
+			versionCounts[targetVersions[t]]++;
+		}
+
+		boolean[] failed = new boolean[targets.size()];
+		IOException failure = null;
+		int failures = 0;
+		int sent = 0;
+		for (byte version : VERSIONS) {
+			if (versionCounts[version] == 0) {
+				continue;
+			}
+			buffer.clear();
+			try {
+				encoder.encode(buffer, version, messageId, now, sender, latitude, longitude,
+						message);
+			} catch (BufferOverflowException e) {
+				/*
+				 * Uncompressed, in version 1, it may be too long even though it
+				 * was not for the others.
+				 */
+				failure = new IOException("Message too long to send");
+				for (int t = 0; t < failed.length; t++) {
+					if (targetVersions[t] == version) {
+						failed[t] = true;
+						failures++;
+					}
+				}
+				continue;
+			}
+			buffer.flip();
+
+			int datagrams = MessageEncoder.datagramCount(buffer);
+			for (int i = 0; i < datagrams; i++) {
+				ByteBuffer packet = buffer;
+				if (datagrams > 1) {
+					fragment.clear();
+					encoder.encodeFragment(fragment, buffer, messageId, i);
+					fragment.flip();
+					packet = fragment;
+				}
+				for (int t = 0; t < failed.length; t++) {
+					if (failed[t] || targetVersions[t] != version) {
+						continue;
+					}
+					if (!running) {
+						throw new IOException("Chat service stopped");
+					}
+					if (sent > 0 && sent % PACE_BURST == 0) {
+						try {
+							Thread.sleep(PACE_INTERVAL);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException("Send queue stopped");
+						}
+					}
+					packet.rewind();
+					InetSocketAddress target = targets.get(t);
+					try {
+						if (target.isUnresolved()) {
+							throw new IOException("Unknown host " + target.getHostName());
+						}
+						if (delivery != null) {
+							delivery.outstanding.incrementAndGet();
+						}
+						ByteBuffer out = transport.prepare(target, packet, delivery, outgoing,
+								System.currentTimeMillis());
+						if (out != null && delivery == null) {
+							send(out, target);
+						} else if (out != null) {
+							try {
+								send(out, target);
+							} catch (IOException e) {
+								/* The transport resends it. */
+							}
+						}
+					} catch (IOException e) {
+						failure = e;
+						failed[t] = true;
+						failures++;
+					}
+					sent++;
+				}
+			}
+		}
+		if (failures == 1 && targets.size() == 1) {
+			throw failure;
+		} else if (failures > 0) {
+			throw new IOException("Failed to send to " + failures + " of "
+					+ targets.size() + " peers: " + failure.getMessage());
+		}
+	}
+
+	/*
+	 * Send packet to one target, waiting for room in the socket send buffer
+	 * if need be.
+	 */
+	private void send(ByteBuffer packet, InetSocketAddress target) throws IOException {
+		if (target.isUnresolved()) {
+			throw new IOException("Unknown host " + target.getHostName());
+		}
+		int sent;
+		while ((sent = channel.send(packet, target)) == 0) {
+			writeSelector.selectedKeys().clear();
+			if (writeSelector.select(SEND_TIMEOUT) == 0) {
+				throw new IOException(running ? "Timed out waiting to send"
+						: "Chat service stopped");
+			}
+		}
+		metrics.increment(Metrics.PACKETS_SENT);
+		metrics.add(Metrics.BYTES_SENT, sent);
+	}
+
+}
@@ -0,0 +1,82 @@
+/*********************************************************************
+
+    Chat server: show the chat service's statistics.
+    
+    A debug screen of the service's counters and latency histograms,
+    refreshed once a second while it is showing.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.widget.TextView;
+
+public class ShowStats extends Activity {
+
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private TextView statsText;
+
+	private IChatService serviceBinder;
+
+	private final Handler handler = new Handler();
+
+	private final ServiceConnection connection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName className, IBinder service) {
+			serviceBinder = ((ChatService.ChatBinder) service).getService();
+			refresh.run();
+		}
+
+		public void onServiceDisconnected(ComponentName className) {
+			serviceBinder = null;
+		}
+	};
+
+	private final Runnable refresh = new Runnable() {
+		public void run() {
+			handler.removeCallbacks(this);
+			if (serviceBinder != null) {
+				statsText.setText(serviceBinder.getStats().toString());
+				handler.postDelayed(this, REFRESH_INTERVAL);
+			}
+		}
+	};
+
+	/*
+	 * Called when the activity is first created. 
+	 */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.show_stats);
+		statsText = (TextView) findViewById(R.id.stats_text);
+	}
+
+	/*
+	 * Bound only while showing, so the screen is refreshed only then.
+	 */
+	@Override
+	protected void onStart() {
+		super.onStart();
+		bindService(new Intent(this, ChatService.class), connection, Context.BIND_AUTO_CREATE);
+	}
+
+	@Override
+	protected void onStop() {
+		handler.removeCallbacks(refresh);
+		unbindService(connection);
+		serviceBinder = null;
+		super.onStop();
+	}
+
+}
@@ -0,0 +1,311 @@
+/*********************************************************************
+
+    Binary wire format for chat datagrams.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/*
+ * A binary datagram has the layout (integers in network byte order):
+ *
+ *   2 bytes  MAGIC_0 MAGIC_1
+ *   1 byte   version, VERSION_1 to VERSION (see below)
+ *   1 byte   flags (see below)
+ *   varint   message id, chosen by the sender, if FLAG_MESSAGE_ID
+ *   8 bytes  when the message was sent, in ms since 1970 by the sender's
+ *            clock, if FLAG_TIMESTAMP
+ *   varint   n, followed by n bytes of UTF-8 sender name
+ *   8 bytes  latitude, IEEE 754 double
+ *   8 bytes  longitude, IEEE 754 double
+ *   varint   m, followed by m bytes of UTF-8 message text
+ *
+ * Varints are unsigned LEB128: seven bits per byte, low-order group first,
+ * high bit set on every byte but the last.
+ *
+ * If FLAG_COMPRESSED is set, the fields after the timestamp are replaced
+ * by a varint, their length, and then those fields compressed as described
+ * in Compression.
+ *
+ * A sender numbers its messages consecutively, and a message sent to
+ * several peers has the same id for each, so a receiver can tell copies of
+ * a message it already has (see DuplicateFilter).  The id is also the
+ * sender's sequence number for the message, and with the timestamp lets a
+ * receiver measure how long messages take to arrive (see LatencyTracker).
+ *
+ * A message whose datagram would be longer than MAX_DATAGRAM_SIZE is sent as
+ * a number of fragments instead.  The body of the datagram (everything after
+ * the flags byte) is cut into pieces of FRAGMENT_DATA_SIZE bytes (the last
+ * may be shorter), and each piece sent as:
+ *
+ *   4 bytes  header, as above, with FLAG_FRAGMENT also set
+ *   varint   message id, the same for every fragment
+ *   varint   fragment index, from 0
+ *   varint   number of fragments
+ *   varint   length of the whole body
+ *   n bytes  the piece of the body, starting at index * FRAGMENT_DATA_SIZE
+ *
+ * A message has at most MAX_FRAGMENTS fragments.
+ *
+ * Transport fields, for datagrams sent reliably (see ReliableTransport),
+ * come straight after the header, before the body, in this order:
+ *
+ *   if FLAG_ACK:       varint highest sequence number received with none
+ *                      missing before it; 4 bytes bitmap of the 32
+ *                      sequence numbers after that, bit i for the (i+1)th
+ *   if FLAG_RELIABLE:  varint sequence number of this datagram; 1 byte
+ *                      how far that is past the oldest sequence number
+ *                      the sender has not yet had acknowledged
+ *
+ * A datagram with FLAG_ACK may have no body at all.  Datagrams are kept
+ * MAX_TRANSPORT_FIELDS_SIZE bytes short of MAX_DATAGRAM_SIZE so the
+ * transport fields can always be added.
+ *
+ * Versions: FLAG_COMPRESSED is new in VERSION_2, and FLAG_TIMESTAMP in
+ * VERSION (3); getMessageFlags gives the flags of each.  Receivers drop any
+ * datagram with a version or a flag they do not know, so a message is sent
+ * to each peer in the latest version it is known to read, and in version
+ * 1, without a timestamp and uncompressed, to any peer not known to read a
+ * later one (see PeerVersions).  A peer is known to read a version once it
+ * has sent a datagram of that version, or a later one.  A datagram of just
+ * a header, with version 2 or later and no flags, is an announcement: it
+ * carries no message, and is sent to a peer that sends messages in an
+ * earlier version than ours, to tell it which version is understood here.
+ * Receivers that only know version 1 drop it.  Transport fields and
+ * fragmenting are the same in every version, and a fragment or an ACK has
+ * the version of the message it carries.  An ACK with no body has the
+ * current version; transports ignore the version.
+ *
+ * MAGIC_0 (0xC1) can never occur in well-formed UTF-8, so a binary datagram
+ * is never mistaken for the legacy "sender:latitude:longitude:message" text
+ * format, which receivers continue to accept.
+ */
+public final class WireFormat {
+
+	public static final byte MAGIC_0 = (byte) 0xC1;
+	public static final byte MAGIC_1 = (byte) 0x43;
+
+	/*
+	 * The version written by this build, and the ones before it, which are
+	 * still written to peers not known to read this one.
+	 */
+	public static final byte VERSION = 3;
+	public static final byte VERSION_2 = 2;
+	public static final byte VERSION_1 = 1;
+
+	public static final int HEADER_SIZE = 4;
+
+	public static final int FLAG_FRAGMENT = 0x01;
+	public static final int FLAG_RELIABLE = 0x02;
+	public static final int FLAG_ACK = 0x04;
+	public static final int FLAG_MESSAGE_ID = 0x08;
+	public static final int FLAG_COMPRESSED = 0x10;
+	public static final int FLAG_TIMESTAMP = 0x20;
+
+	public static final int MAX_TRANSPORT_FIELDS_SIZE = 15;
+
+	/*
+	 * Largest datagram a receiver accepts.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 1024;
+
+	/*
+	 * Bytes of body in each fragment but the last.  Leaves room in a datagram
+	 * for the header, four varints of up to five bytes each, and the
+	 * transport fields.
+	 */
+	public static final int FRAGMENT_DATA_SIZE = 960;
+
+	public static final int MAX_FRAGMENTS = 64;
+
+	/*
+	 * Longest encoded message, fragments and all.
+	 */
+	public static final int MAX_MESSAGE_SIZE = HEADER_SIZE + MAX_FRAGMENTS * FRAGMENT_DATA_SIZE;
+
+	private WireFormat() {
+	}
+
+	public static boolean isBinary(ByteBuffer b, int offset, int limit) {
+		return limit - offset >= HEADER_SIZE
+				&& b.get(offset) == MAGIC_0 && b.get(offset + 1) == MAGIC_1;
+	}
+
+	/*
+	 * The version of the binary datagram at offset in b.
+	 */
+	public static int getVersion(ByteBuffer b, int offset) {
+		return b.get(offset + 2);
+	}
+
+	/*
+	 * The flags a message in version may have, or -1 if this build does not
+	 * read version.
+	 */
+	public static int getMessageFlags(int version) {
+		switch (version) {
+		case VERSION_1:
+			return FLAG_MESSAGE_ID;
+		case VERSION_2:
+			return FLAG_MESSAGE_ID | FLAG_COMPRESSED;
+		case VERSION:
+			return FLAG_MESSAGE_ID | FLAG_COMPRESSED | FLAG_TIMESTAMP;
+		default:
+			return -1;
+		}
+	}
+
+	/*
+	 * Whether the datagram between offset and limit of b is an announcement
+	 * that its sender reads its version (which may be later than VERSION).
+	 */
+	public static boolean isAnnouncement(ByteBuffer b, int offset, int limit) {
+		return limit - offset == HEADER_SIZE && isBinary(b, offset, limit)
+				&& b.get(offset + 2) >= VERSION_2 && b.get(offset + 3) == 0;
+	}
+
+	/*
+	 * Write an announcement at the position of b.
+	 */
+	public static void putAnnouncement(ByteBuffer b) {
+		b.put(MAGIC_0);
+		b.put(MAGIC_1);
+		b.put(VERSION);
+		b.put((byte) 0);
+	}
+
+	public static boolean isFragment(ByteBuffer b, int offset, int limit) {
+		return isBinary(b, offset, limit) && (b.get(offset + 3) & FLAG_FRAGMENT) != 0;
+	}
+
+	/*
+	 * The message id of the datagram between offset and limit of b (a
+	 * fragment, or a whole message), or -1 if it has none.  The position of
+	 * b is unchanged.
+	 */
+	public static int getMessageId(ByteBuffer b, int offset, int limit) {
+		if (!isBinary(b, offset, limit)
+				|| (b.get(offset + 3) & (FLAG_FRAGMENT | FLAG_MESSAGE_ID)) == 0) {
+			return -1;
+		}
+		int position = b.position();
+		int savedLimit = b.limit();
+		b.limit(limit);
+		b.position(offset + HEADER_SIZE);
+		try {
+			return getVarint(b);
+		} finally {
+			b.limit(savedLimit);
+			b.position(position);
+		}
+	}
+
+	/*
+	 * Number of fragments a body of length bytes is sent in.
+	 */
+	public static int fragmentCount(int bodyLength) {
+		return Math.max(1, (bodyLength + FRAGMENT_DATA_SIZE - 1) / FRAGMENT_DATA_SIZE);
+	}
+
+	public static void putVarint(ByteBuffer b, int value) {
+		while ((value & ~0x7f) != 0) {
+			b.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	/*
+	 * Read a varint at the position of b, advancing the position.  Returns -1
+	 * if the varint is truncated or does not fit in a non-negative int.
+	 */
+	public static int getVarint(ByteBuffer b) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (!b.hasRemaining()) {
+				return -1;
+			}
+			byte next = b.get();
+			value |= (next & 0x7f) << shift;
+			if (next >= 0) {
+				return value < 0 ? -1 : value;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Number of bytes in the UTF-8 encoding of s.
+	 */
+	public static int utf8Length(String s) {
+		int length = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/*
+	 * Write the UTF-8 encoding of s at the position of b.  Unpaired surrogates
+	 * are written as '?', as String.getBytes does.
+	 */
+	public static void putUtf8(ByteBuffer b, String s) {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b.put((byte) c);
+			} else if (c < 0x800) {
+				b.put((byte) (0xc0 | (c >> 6)));
+				b.put((byte) (0x80 | (c & 0x3f)));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				if (Character.isHighSurrogate(c) && i + 1 < n
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b.put((byte) (0xf0 | (cp >> 18)));
+					b.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+					b.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+					b.put((byte) (0x80 | (cp & 0x3f)));
+				} else {
+					b.put((byte) '?');
+				}
+			} else {
+				b.put((byte) (0xe0 | (c >> 12)));
+				b.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				b.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/*
+	 * Length-prefixed UTF-8 string.
+	 */
+	public static void putString(ByteBuffer b, String s) {
+		int length = utf8Length(s);
+		putVarint(b, length);
+		if (b.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+		putUtf8(b, s);
+	}
+
+}
@@ -0,0 +1,166 @@
+/*********************************************************************
+
+    Benchmarks for encoding and decoding chat datagrams.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stevens.cs522.chat.service.FragmentReassembler;
+import edu.stevens.cs522.chat.service.MessageDecoder;
+import edu.stevens.cs522.chat.service.MessageEncoder;
+import edu.stevens.cs522.chat.service.MessageInfo;
+import edu.stevens.cs522.chat.service.WireFormat;
+
+/*
+ * Messages are words drawn at random from a small vocabulary, so longer
+ * ones compress about as well as real chat does.  Run with -prof gc to see
+ * the allocation per operation as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	private static final String[] WORDS = { "hey", "are", "you", "going", "to",
+		"the", "lecture", "tomorrow", "I", "think", "we", "should", "meet", "at",
+		"library", "after", "class", "and", "work", "on", "project" };
+
+	/*
+	 * Length of the message text, in characters.
+	 */
+	@Param({ "16", "256", "4096" })
+	public int messageLength;
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final MessageInfo info = new MessageInfo();
+	private final FragmentReassembler reassembler = new FragmentReassembler();
+
+	private final ByteBuffer out = ByteBuffer.allocateDirect(WireFormat.MAX_MESSAGE_SIZE);
+	private final ByteBuffer fragment = ByteBuffer.allocateDirect(WireFormat.MAX_DATAGRAM_SIZE);
+
+	private String message;
+	private ByteBuffer binary;
+	private ByteBuffer text;
+	private ByteBuffer[] fragments;
+	private InetAddress address;
+	private InetSocketAddress source;
+
+	private int messageId;
+
+	@Setup
+	public void setUp() throws UnknownHostException {
+		Random random = new Random(messageLength);
+		StringBuilder s = new StringBuilder();
+		while (s.length() < messageLength) {
+			s.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		s.setLength(messageLength);
+		message = s.toString();
+		address = InetAddress.getByName("127.0.0.1");
+		source = new InetSocketAddress(address, 4000);
+
+		encoder.encode(out, 1, "alice", 40.7451, -74.0248, message);
+		out.flip();
+		binary = ByteBuffer.allocateDirect(out.remaining());
+		binary.put(out).flip();
+		out.rewind();
+
+		int count = MessageEncoder.datagramCount(out);
+		fragments = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			fragments[i] = ByteBuffer.allocateDirect(WireFormat.MAX_DATAGRAM_SIZE);
+			encoder.encodeFragment(fragments[i], out, 1, i);
+			fragments[i].flip();
+		}
+
+		byte[] legacy = ("alice:40.7451:-74.0248:" + message).getBytes(Charset.forName("UTF-8"));
+		text = ByteBuffer.allocateDirect(legacy.length);
+		text.put(legacy).flip();
+	}
+
+	@Benchmark
+	public int encode() {
+		out.clear();
+		encoder.encode(out, messageId++, "alice", 40.7451, -74.0248, message);
+		return out.position();
+	}
+
+	/*
+	 * Encoding as the sender thread does it: the message, then each of its
+	 * datagrams.
+	 */
+	@Benchmark
+	public int encodeDatagrams() {
+		out.clear();
+		encoder.encode(out, messageId, "alice", 40.7451, -74.0248, message);
+		out.flip();
+		int count = MessageEncoder.datagramCount(out);
+		int bytes = 0;
+		for (int i = 0; count > 1 && i < count; i++) {
+			fragment.clear();
+			encoder.encodeFragment(fragment, out, messageId, i);
+			bytes += fragment.position();
+		}
+		messageId++;
+		return count > 1 ? bytes : out.remaining();
+	}
+
+	@Benchmark
+	public MessageInfo decode() {
+		decoder.decode(binary, address, 4000, info);
+		return info;
+	}
+
+	@Benchmark
+	public MessageInfo decodeLegacyText() {
+		decoder.decode(text, address, 4000, info);
+		return info;
+	}
+
+	/*
+	 * Reassembling and decoding a message from its fragments, as the receive
+	 * thread does.
+	 */
+	@Benchmark
+	public MessageInfo reassembleAndDecode() {
+		if (fragments.length == 1) {
+			return decode();
+		}
+		for (ByteBuffer f : fragments) {
+			ByteBuffer whole = reassembler.add(f, source);
+			if (whole != null) {
+				decoder.decode(whole, address, 4000, info);
+				reassembler.release(whole);
+			}
+		}
+		return info;
+	}
+
+}
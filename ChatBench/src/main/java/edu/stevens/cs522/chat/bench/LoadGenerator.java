@@ -0,0 +1,278 @@
+/*********************************************************************
+
+    Load generator: many simulated peers sending chat datagrams, in the
+    current wire format, to one host and port.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.stevens.cs522.chat.service.MessageEncoder;
+import edu.stevens.cs522.chat.service.WireFormat;
+
+/*
+ * Each simulated peer has a socket of its own.  When the target is on this
+ * host, each socket is bound to a different loopback address (127.1.x.y),
+ * so the receiver sees up to 65536 distinct peers, as it would on a busy
+ * network, rather than one address with thousands of ports.
+ *
+ * Messages are sent in bursts of burst messages, back to back, with the
+ * bursts spaced to give rate messages a second on average.  The text of
+ * each message starts with its sequence number and the System.nanoTime()
+ * it was sent at, so a receiver in the same process can measure latency,
+ * and is padded to size bytes.  Messages are also stamped with their send
+ * time, as the app's are.  A fraction malformed of the datagrams are
+ * corrupted on purpose.
+ *
+ * Usage: LoadGenerator [--host h] [--port p] [--peers n] [--rate r]
+ *                      [--burst b] [--size s] [--malformed f] [--duration secs]
+ */
+public class LoadGenerator {
+
+	public static class Options {
+		public String host = "127.0.0.1";
+		public int port = 4000;
+		public int peers = 1000;
+		public int rate = 10000;
+		public int burst = 1;
+		public int size = 64;
+		public double malformed = 0;
+		public double duration = 10;
+
+		/*
+		 * Set the options named in args, and return the arguments that are
+		 * not generator options.
+		 */
+		public String[] parse(String[] args) {
+			ArrayList<String> rest = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				String name = args[i];
+				if (i + 1 == args.length || !set(name, args[i + 1])) {
+					rest.add(name);
+				} else {
+					i++;
+				}
+			}
+			return rest.toArray(new String[rest.size()]);
+		}
+
+		private boolean set(String name, String value) {
+			if (name.equals("--host")) {
+				host = value;
+			} else if (name.equals("--port")) {
+				port = Integer.parseInt(value);
+			} else if (name.equals("--peers")) {
+				peers = Integer.parseInt(value);
+			} else if (name.equals("--rate")) {
+				rate = Integer.parseInt(value);
+			} else if (name.equals("--burst")) {
+				burst = Integer.parseInt(value);
+			} else if (name.equals("--size")) {
+				size = Integer.parseInt(value);
+			} else if (name.equals("--malformed")) {
+				malformed = Double.parseDouble(value);
+			} else if (name.equals("--duration")) {
+				duration = Double.parseDouble(value);
+			} else {
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "peers=" + peers + " rate=" + rate + "/s burst=" + burst
+					+ " size=" + size + " malformed=" + malformed
+					+ " duration=" + duration + "s";
+		}
+	}
+
+	public static class Report {
+		/*
+		 * Well-formed messages sent, numbered 0 to messages - 1.
+		 */
+		public long messages;
+		public long malformed;
+		public long datagrams;
+		public long bytes;
+		public double seconds;
+
+		@Override
+		public String toString() {
+			return String.format("sent %d messages (%d datagrams, %d bytes) and %d malformed"
+					+ " in %.2f s: %.0f messages/s, %.1f Mbit/s",
+					messages, datagrams, bytes, malformed, seconds,
+					messages / seconds, bytes * 8 / seconds / 1e6);
+		}
+	}
+
+	private final Options options;
+
+	private final InetSocketAddress target;
+
+	private final DatagramChannel[] channels;
+
+	/*
+	 * Next message id for each peer.
+	 */
+	private final int[] messageIds;
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final ByteBuffer message = ByteBuffer.allocateDirect(WireFormat.MAX_MESSAGE_SIZE);
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(WireFormat.MAX_DATAGRAM_SIZE);
+
+	private final Random random = new Random(1);
+
+	private final String padding;
+
+	public LoadGenerator(Options options) throws IOException {
+		this.options = options;
+		InetAddress address = InetAddress.getByName(options.host);
+		target = new InetSocketAddress(address, options.port);
+		channels = new DatagramChannel[options.peers];
+		messageIds = new int[options.peers];
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				channels[i] = DatagramChannel.open();
+				InetAddress local = null;
+				if (address.isLoopbackAddress()) {
+					local = InetAddress.getByAddress(new byte[] { 127, 1,
+							(byte) (i >> 8), (byte) i });
+				}
+				channels[i].socket().bind(new InetSocketAddress(local, 0));
+				messageIds[i] = random.nextInt() & 0x7fffffff;
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < options.size; i++) {
+			s.append((char) ('a' + random.nextInt(26)));
+		}
+		padding = s.toString();
+	}
+
+	public Report run() throws IOException {
+		Report report = new Report();
+		long interval = (long) (1e9 * options.burst / options.rate);
+		long start = System.nanoTime();
+		long end = start + (long) (options.duration * 1e9);
+		long next = start;
+		int peer = 0;
+		while (next < end) {
+			for (int i = 0; i < options.burst; i++) {
+				if (options.malformed > 0 && random.nextDouble() < options.malformed) {
+					sendMalformed(peer, report);
+				} else {
+					send(peer, report);
+				}
+				peer = peer + 1 == channels.length ? 0 : peer + 1;
+			}
+			next += interval;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		report.seconds = (System.nanoTime() - start) / 1e9;
+		return report;
+	}
+
+	private void send(int peer, Report report) throws IOException {
+		String text = report.messages + " " + System.nanoTime() + " ";
+		text += padding.substring(0, Math.max(0, options.size - text.length()));
+		int messageId = nextMessageId(peer);
+
+		message.clear();
+		encoder.encode(message, messageId, System.currentTimeMillis(), "peer" + peer,
+				40.7451, -74.0248, text);
+		message.flip();
+		int count = MessageEncoder.datagramCount(message);
+		if (count == 1) {
+			report.bytes += channels[peer].send(message, target);
+		} else {
+			for (int i = 0; i < count; i++) {
+				datagram.clear();
+				encoder.encodeFragment(datagram, message, messageId, i);
+				datagram.flip();
+				report.bytes += channels[peer].send(datagram, target);
+			}
+		}
+		report.datagrams += count;
+		report.messages++;
+	}
+
+	/*
+	 * A datagram the receiver should reject: a binary message cut short, one
+	 * with flags it does not understand, or text without separators.
+	 */
+	private void sendMalformed(int peer, Report report) throws IOException {
+		datagram.clear();
+		switch (random.nextInt(3)) {
+		case 0:
+			encoder.encode(datagram, nextMessageId(peer), "peer" + peer,
+					40.7451, -74.0248, "cut short");
+			datagram.position(datagram.position() - 3);
+			break;
+		case 1:
+			datagram.put(WireFormat.MAGIC_0).put(WireFormat.MAGIC_1)
+					.put(WireFormat.VERSION).put((byte) 0x80);
+			datagram.put(padding.getBytes("UTF-8"), 0, Math.min(16, options.size));
+			break;
+		default:
+			datagram.put("no separators here".getBytes("UTF-8"));
+			break;
+		}
+		datagram.flip();
+		report.bytes += channels[peer].send(datagram, target);
+		report.datagrams++;
+		report.malformed++;
+	}
+
+	private int nextMessageId(int peer) {
+		int messageId = messageIds[peer];
+		messageIds[peer] = (messageId + 1) & 0x7fffffff;
+		return messageId;
+	}
+
+	public void close() {
+		for (DatagramChannel channel : channels) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					/* Closing anyway. */
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options();
+		String[] rest = options.parse(args);
+		if (rest.length > 0) {
+			System.err.println("Unknown argument: " + rest[0]);
+			System.exit(2);
+		}
+		LoadGenerator generator = new LoadGenerator(options);
+		try {
+			System.out.println(options);
+			System.out.println(generator.run());
+		} finally {
+			generator.close();
+		}
+	}
+
+}
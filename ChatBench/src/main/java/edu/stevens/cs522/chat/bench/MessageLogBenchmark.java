@@ -0,0 +1,152 @@
+/*********************************************************************
+
+    Benchmarks for the message log, and how they scale with the number
+    of messages already stored.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stevens.cs522.chat.service.MessageLog;
+
+/*
+ * Each trial starts from a log of historySize messages in a temporary
+ * file.  Appends go to the same log, so it grows a little during a trial;
+ * reads are of messages that were there from the start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+
+	/*
+	 * Messages read by each of the read benchmarks: about a screenful.
+	 */
+	private static final int PAGE = 50;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int historySize;
+
+	private File file;
+	private MessageLog log;
+
+	private long firstId;
+	private long lastId;
+
+	private final Random random = new Random(1);
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = File.createTempFile("messages", ".log");
+		log = new MessageLog(file);
+		log.open(null);
+		for (int i = 0; i < historySize; i++) {
+			log.append("peer" + (i % 20), "Message number " + i + " of the history");
+		}
+		log.flush();
+		firstId = log.getFirstId();
+		lastId = log.getLastId();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		log.close();
+		file.delete();
+		log.getIndexFile().delete();
+	}
+
+	@Benchmark
+	public long append() throws IOException {
+		return log.append("alice", "Are you going to the lecture tomorrow?");
+	}
+
+	/*
+	 * The newest page of history, as when the message list is first shown.
+	 */
+	@Benchmark
+	public void readNewest(final Blackhole blackhole) throws IOException {
+		log.read(lastId - PAGE + 1, PAGE, new MessageLog.Visitor() {
+			public void visit(long id, String sender, String message) {
+				blackhole.consume(message);
+			}
+		});
+	}
+
+	/*
+	 * The oldest page, as when scrolling all the way back.
+	 */
+	@Benchmark
+	public void readOldest(final Blackhole blackhole) throws IOException {
+		log.read(firstId, PAGE, new MessageLog.Visitor() {
+			public void visit(long id, String sender, String message) {
+				blackhole.consume(message);
+			}
+		});
+	}
+
+	/*
+	 * One message anywhere in the history, as for a MESSAGE_ID query.
+	 */
+	@Benchmark
+	public String readRandom() throws IOException {
+		return log.getMessage(firstId + (long) (random.nextDouble() * (lastId - firstId + 1)));
+	}
+
+	/*
+	 * Opening (and so recovering) the log, as when the provider starts.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 5)
+	public void open() throws IOException {
+		log.flush();
+		MessageLog reopened = new MessageLog(file);
+		reopened.open(null);
+		reopened.close();
+	}
+
+	/*
+	 * Opening the log and reading every message in it.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Measurement(iterations = 5)
+	public void replay(final Blackhole blackhole) throws IOException {
+		log.flush();
+		MessageLog reopened = new MessageLog(file);
+		reopened.open(new MessageLog.Visitor() {
+			public void visit(long id, String sender, String message) {
+				blackhole.consume(message);
+			}
+		});
+		reopened.close();
+	}
+
+}
@@ -0,0 +1,94 @@
+/*********************************************************************
+
+    Benchmarks for looking up and updating peers, as the receive thread
+    does for every message.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stevens.cs522.chat.service.PeerCache;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerCacheBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	public int peerCount;
+
+	private final PeerCache cache = new PeerCache();
+
+	/*
+	 * Names and hosts are built up front, as the receive thread gets them
+	 * from the packet.
+	 */
+	private String[] names;
+	private String[] hosts;
+
+	private int next;
+	private boolean moved;
+
+	@Setup
+	public void setUp() {
+		names = new String[peerCount];
+		hosts = new String[peerCount];
+		for (int i = 0; i < peerCount; i++) {
+			names[i] = "peer" + i;
+			hosts[i] = "10.0." + (i >> 8) + "." + (i & 0xff);
+			cache.update(names[i], hosts[i], 4000, 40.7451, -74.0248);
+		}
+	}
+
+	private int nextPeer() {
+		next = next + 1 == peerCount ? 0 : next + 1;
+		return next;
+	}
+
+	@Benchmark
+	public PeerCache.Peer get() {
+		return cache.get(hosts[nextPeer()], 4000);
+	}
+
+	/*
+	 * A message from a known peer that has not moved: the common case, which
+	 * should not need the peers table written.
+	 */
+	@Benchmark
+	public boolean updateUnchanged() {
+		int i = nextPeer();
+		return cache.update(names[i], hosts[i], 4000, 40.7451, -74.0248);
+	}
+
+	/*
+	 * A message from a known peer that has moved.
+	 */
+	@Benchmark
+	public boolean updateMoved() {
+		int i = nextPeer();
+		if (i == 0) {
+			moved = !moved;
+		}
+		return cache.update(names[i], hosts[i], 4000, moved ? 40.7452 : 40.7451, -74.0248);
+	}
+
+}
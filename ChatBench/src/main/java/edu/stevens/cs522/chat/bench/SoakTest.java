@@ -0,0 +1,280 @@
+/*********************************************************************
+
+    Soak test: the load generator against a headless copy of the
+    service's receive, decode and persist pipeline, in one process.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import edu.stevens.cs522.chat.service.AdmissionControl;
+import edu.stevens.cs522.chat.service.MessageInfo;
+import edu.stevens.cs522.chat.service.MessageLog;
+import edu.stevens.cs522.chat.service.Metrics;
+import edu.stevens.cs522.chat.service.PeerCache;
+import edu.stevens.cs522.chat.service.PeerVersions;
+import edu.stevens.cs522.chat.service.ReceiveEngine;
+import edu.stevens.cs522.chat.service.ReceivePipeline;
+import edu.stevens.cs522.chat.service.ReliableTransport;
+import edu.stevens.cs522.chat.service.WireFormat;
+
+/*
+ * The receiver is the service's own ReceiveEngine and ReceivePipeline;
+ * decoded messages are saved to a MessageLog (flushed after each batch, as
+ * the provider does) and their senders recorded in a PeerCache.  Latency is
+ * from the generator sending a message to the batch holding it being
+ * flushed to the log.  Flushing the log and updating the peer cache are
+ * timed as the service's provider insert and peer upsert.
+ *
+ * Admission control is off unless --app-limits is given, so the test
+ * measures how fast the pipeline itself can go.
+ *
+ * As a regression gate, the test exits with status 1 if fewer than
+ * --min-throughput messages a second were saved, or more than a fraction
+ * --max-drop of the messages sent were lost.
+ *
+ * Usage: SoakTest [LoadGenerator options] [--app-limits] [--rcvbuf bytes]
+ *                 [--min-throughput n] [--max-drop f]
+ */
+public class SoakTest implements ReceivePipeline.Sink {
+
+	/*
+	 * The receiver is taken to have finished once nothing more has arrived
+	 * for this long after the generator stops.
+	 */
+	private static final long QUIET_PERIOD = 500;
+
+	private final MessageLog log;
+	private final PeerCache peers = new PeerCache();
+
+	private final Metrics metrics = new Metrics();
+
+	/*
+	 * Sequence numbers of the messages saved, to count losses (and any
+	 * duplicates that got through).
+	 */
+	private final BitSet seen = new BitSet();
+	private long duplicates;
+
+	/*
+	 * Send times of the messages in the batch not yet flushed, and the
+	 * latencies measured so far, in ns.
+	 */
+	private long[] batch = new long[256];
+	private int batchSize;
+	private long[] latencies = new long[1 << 16];
+	private int latencyCount;
+
+	private volatile long saved;
+	private volatile long malformed;
+	private volatile long rateLimited;
+	private long firstSaved;
+	private long lastSaved;
+	private IOException failure;
+	private RuntimeException error;
+
+	SoakTest(File file) throws IOException {
+		log = new MessageLog(file);
+		log.open(null);
+	}
+
+	public boolean onMessage(MessageInfo message) {
+		String text = message.getMessage();
+		int space = text.indexOf(' ');
+		int secondSpace = text.indexOf(' ', space + 1);
+		if (space < 0 || secondSpace < 0) {
+			malformed++;
+			return true;
+		}
+		int sequence = Integer.parseInt(text.substring(0, space));
+		long sent = Long.parseLong(text.substring(space + 1, secondSpace));
+		if (seen.get(sequence)) {
+			duplicates++;
+		}
+		seen.set(sequence);
+
+		try {
+			log.append(message.getSender(), text);
+		} catch (IOException e) {
+			failure = e;
+		}
+		long start = System.nanoTime();
+		peers.update(message.getSender(), message.getSrcAddr(), message.getSrcPort(),
+				message.getLatitude(), message.getLongitude());
+		metrics.record(Metrics.PEER_UPSERT, System.nanoTime() - start);
+		if (batchSize == batch.length) {
+			batch = Arrays.copyOf(batch, batchSize * 2);
+		}
+		batch[batchSize++] = sent;
+		return true;
+	}
+
+	public void onRateLimited(InetSocketAddress source, int reason) {
+		rateLimited++;
+	}
+
+	public void onMalformed(InetSocketAddress source) {
+		malformed++;
+	}
+
+	public boolean onPacketsDrained() {
+		if (batchSize == 0) {
+			return true;
+		}
+		long start = System.nanoTime();
+		try {
+			log.flush();
+		} catch (IOException e) {
+			failure = e;
+			return false;
+		}
+		long now = System.nanoTime();
+		metrics.record(Metrics.PROVIDER_INSERT, now - start);
+		if (latencyCount + batchSize > latencies.length) {
+			latencies = Arrays.copyOf(latencies,
+					Math.max(latencies.length * 2, latencyCount + batchSize));
+		}
+		for (int i = 0; i < batchSize; i++) {
+			latencies[latencyCount++] = now - batch[i];
+		}
+		if (firstSaved == 0) {
+			firstSaved = now;
+		}
+		lastSaved = now;
+		saved += batchSize;
+		batchSize = 0;
+		return true;
+	}
+
+	public void onFailure(IOException e) {
+		failure = e;
+	}
+
+	public void onError(RuntimeException e) {
+		if (error == null) {
+			error = e;
+		}
+	}
+
+	private static String percentile(long[] sorted, int count, double p) {
+		if (count == 0) {
+			return "-";
+		}
+		int index = (int) Math.min(count - 1, Math.floor(p * count));
+		return String.format("%.0f", sorted[index] / 1e3);
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator.Options options = new LoadGenerator.Options();
+		String[] rest = options.parse(args);
+		boolean appLimits = false;
+		int receiveBuffer = 4 << 20;
+		double minThroughput = 0;
+		double maxDrop = 1;
+		for (int i = 0; i < rest.length; i++) {
+			if (rest[i].equals("--app-limits")) {
+				appLimits = true;
+			} else if (rest[i].equals("--rcvbuf") && i + 1 < rest.length) {
+				receiveBuffer = Integer.parseInt(rest[++i]);
+			} else if (rest[i].equals("--min-throughput") && i + 1 < rest.length) {
+				minThroughput = Double.parseDouble(rest[++i]);
+			} else if (rest[i].equals("--max-drop") && i + 1 < rest.length) {
+				maxDrop = Double.parseDouble(rest[++i]);
+			} else {
+				System.err.println("Unknown argument: " + rest[i]);
+				System.exit(2);
+			}
+		}
+
+		File file = File.createTempFile("soak", ".log");
+		file.deleteOnExit();
+		SoakTest sink = new SoakTest(file);
+		sink.log.getIndexFile().deleteOnExit();
+		AdmissionControl admission = appLimits ? new AdmissionControl()
+				: new AdmissionControl(Double.MAX_VALUE, Double.MAX_VALUE,
+						Double.MAX_VALUE, Double.MAX_VALUE);
+		ReliableTransport transport = new ReliableTransport(new ReliableTransport.Listener() {
+			public void onAcknowledged(Object token) {
+			}
+
+			public void onFailed(Object token, IOException e) {
+			}
+
+			public void onWakeup() {
+			}
+		});
+		ReceivePipeline pipeline = new ReceivePipeline(transport, new PeerVersions(),
+				admission, sink.metrics, sink);
+		ReceiveEngine engine = new ReceiveEngine(pipeline, WireFormat.MAX_DATAGRAM_SIZE);
+		DatagramChannel channel = engine.bind(options.port);
+		channel.socket().setReceiveBufferSize(receiveBuffer);
+		engine.start();
+
+		LoadGenerator generator = new LoadGenerator(options);
+		LoadGenerator.Report sent;
+		try {
+			System.out.println(options + " app-limits=" + appLimits
+					+ " rcvbuf=" + channel.socket().getReceiveBufferSize());
+			sent = generator.run();
+		} finally {
+			generator.close();
+		}
+
+		long count = -1;
+		while (count != sink.saved) {
+			count = sink.saved;
+			Thread.sleep(QUIET_PERIOD);
+		}
+		engine.stop();
+		sink.log.close();
+
+		System.out.println(sent);
+		double seconds = Math.max(1e-9, (sink.lastSaved - sink.firstSaved) / 1e9);
+		double throughput = sink.saved / seconds;
+		long lost = sent.messages - sink.seen.cardinality();
+		double drop = sent.messages == 0 ? 0 : (double) lost / sent.messages;
+		System.out.println(String.format("saved %d messages in %.2f s: %.0f messages/s;"
+				+ " lost %d (%.3f%%), %d duplicates", sink.saved, seconds, throughput,
+				lost, drop * 100, sink.duplicates));
+		System.out.println("rejected " + sink.malformed + " malformed of " + sent.malformed
+				+ " sent; " + sink.rateLimited + " over rate limits; "
+				+ sink.metrics.get(Metrics.DUPLICATES) + " duplicate messages; "
+				+ sink.peers.size() + " peers");
+
+		long[] sorted = Arrays.copyOf(sink.latencies, sink.latencyCount);
+		Arrays.sort(sorted);
+		int n = sink.latencyCount;
+		System.out.println("latency us: p50 " + percentile(sorted, n, 0.5)
+				+ " p90 " + percentile(sorted, n, 0.9)
+				+ " p99 " + percentile(sorted, n, 0.99)
+				+ " p99.9 " + percentile(sorted, n, 0.999)
+				+ " max " + percentile(sorted, n, 1));
+		System.out.println();
+		System.out.print(sink.metrics.snapshot());
+
+		if (sink.failure != null) {
+			System.out.println("FAIL: " + sink.failure);
+			System.exit(1);
+		}
+		if (sink.error != null) {
+			System.out.println("FAIL: " + sink.metrics.get(Metrics.RECEIVE_ERRORS)
+					+ " receive errors, the first " + sink.error);
+			System.exit(1);
+		}
+		if (throughput < minThroughput || drop > maxDrop) {
+			System.out.println("FAIL: below --min-throughput " + minThroughput
+					+ " or above --max-drop " + maxDrop);
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+/*********************************************************************
+
+    Tests for the duplicate filter.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 4000);
+	private static final InetSocketAddress OTHER = new InetSocketAddress("127.0.0.2", 4000);
+
+	private final DuplicateFilter filter = new DuplicateFilter();
+
+	@Test
+	public void copiesWithinWindowAreDropped() {
+		assertTrue(filter.accept(PEER, 100));
+		assertTrue(filter.accept(PEER, 102));
+		assertTrue(filter.isDuplicate(PEER, 100));
+		assertFalse(filter.accept(PEER, 100));
+		assertFalse(filter.isDuplicate(PEER, 101));
+		assertTrue(filter.accept(PEER, 101));
+		assertFalse(filter.accept(PEER, 102));
+		assertEquals(2, filter.getDuplicates());
+	}
+
+	@Test
+	public void peersAreSeparate() {
+		assertTrue(filter.accept(PEER, 7));
+		assertTrue(filter.accept(OTHER, 7));
+		assertFalse(filter.accept(OTHER, 7));
+	}
+
+	/*
+	 * A message resent after its sender has sent 64 or more others (to
+	 * anyone) is behind the window, and must still be delivered.
+	 */
+	@Test
+	public void idsBehindWindowAreAccepted() {
+		assertTrue(filter.accept(PEER, 1000));
+		assertTrue(filter.accept(PEER, 1064));
+		assertFalse(filter.isDuplicate(PEER, 1000));
+		assertTrue(filter.accept(PEER, 1000));
+		assertFalse(filter.isDuplicate(PEER, 999));
+		assertTrue(filter.accept(PEER, 999));
+
+		/*
+		 * Still within the window: a copy is recognized.
+		 */
+		assertTrue(filter.accept(PEER, 1001));
+		assertTrue(filter.isDuplicate(PEER, 1001));
+		assertFalse(filter.accept(PEER, 1001));
+	}
+
+	@Test
+	public void idsWrapAround() {
+		int last = 0x7fffffff;
+		assertTrue(filter.accept(PEER, last - 1));
+		assertTrue(filter.accept(PEER, 0));
+		assertTrue(filter.accept(PEER, 1));
+		assertTrue(filter.isDuplicate(PEER, last - 1));
+		assertFalse(filter.isDuplicate(PEER, last));
+		assertTrue(filter.accept(PEER, last));
+		assertFalse(filter.accept(PEER, last));
+		assertFalse(filter.accept(PEER, 0));
+
+		/*
+		 * Behind the window across the wrap.
+		 */
+		assertTrue(filter.accept(PEER, 80));
+		assertFalse(filter.isDuplicate(PEER, last - 1));
+		assertTrue(filter.accept(PEER, last - 1));
+	}
+
+	@Test
+	public void restartedPeerStartsAgain() {
+		assertTrue(filter.accept(PEER, 5000000));
+		assertTrue(filter.accept(PEER, 5));
+		assertFalse(filter.accept(PEER, 5));
+		assertTrue(filter.accept(PEER, 6));
+	}
+
+}
@@ -0,0 +1,310 @@
+/*********************************************************************
+
+    Tests for the fragment reassembler: fragments out of order, copied,
+    missing or malformed.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FragmentReassemblerTest {
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 4000);
+	private static final InetSocketAddress OTHER = new InetSocketAddress("127.0.0.2", 4000);
+
+	/*
+	 * Matches FragmentReassembler.TIMEOUT.
+	 */
+	private static final long TIMEOUT = 10 * 1000;
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final MessageInfo info = new MessageInfo();
+	private final FragmentReassembler reassembler = new FragmentReassembler();
+
+	private static String text(int length, long seed) {
+		Random random = new Random(seed);
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			b.append((char) ('a' + random.nextInt(26)));
+		}
+		return b.toString();
+	}
+
+	/*
+	 * In version 1, which is never compressed, so the message takes as many
+	 * fragments as its length says.
+	 */
+	private ByteBuffer encode(int messageId, String message) {
+		ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encodeVersion1(b, messageId, "alice", 1, 2, message);
+		b.flip();
+		return b;
+	}
+
+	private List<ByteBuffer> fragment(ByteBuffer message, int messageId) {
+		List<ByteBuffer> fragments = new ArrayList<ByteBuffer>();
+		int count = MessageEncoder.datagramCount(message);
+		for (int i = 0; i < count; i++) {
+			ByteBuffer out = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+			encoder.encodeFragment(out, message, messageId, i);
+			out.flip();
+			fragments.add(out);
+		}
+		return fragments;
+	}
+
+	/*
+	 * Add each fragment in turn, expecting only the last to complete the
+	 * message, and check the message decodes to message.
+	 */
+	private void checkReassembles(List<ByteBuffer> fragments, InetSocketAddress source,
+			long now, String message) {
+		for (int i = 0; i < fragments.size() - 1; i++) {
+			assertNull(reassembler.add(fragments.get(i), source, now));
+			assertFalse(reassembler.wasRejected());
+		}
+		ByteBuffer whole = reassembler.add(fragments.get(fragments.size() - 1), source, now);
+		assertNotNull(whole);
+		assertFalse(WireFormat.isFragment(whole, 0, whole.limit()));
+		assertTrue(decoder.decode(whole, null, 0, info));
+		assertEquals(message, info.getMessage());
+		reassembler.release(whole);
+	}
+
+	@Test
+	public void reassemblesInAnyOrder() {
+		String message = text(5000, 1);
+		ByteBuffer encoded = encode(7, message);
+		List<ByteBuffer> fragments = fragment(encoded, 7);
+		assertEquals(6, fragments.size());
+
+		checkReassembles(fragments, PEER, 0, message);
+
+		List<ByteBuffer> reversed = new ArrayList<ByteBuffer>(fragments);
+		Collections.reverse(reversed);
+		checkReassembles(reversed, PEER, 0, message);
+
+		Random random = new Random(2);
+		for (int i = 0; i < 20; i++) {
+			List<ByteBuffer> shuffled = new ArrayList<ByteBuffer>(fragments);
+			Collections.shuffle(shuffled, random);
+			checkReassembles(shuffled, PEER, 0, message);
+		}
+		assertEquals(0, reassembler.getDropped());
+	}
+
+	/*
+	 * Every number of fragments, up to the largest message there can be,
+	 * each with its last fragment full or one byte short of it.
+	 */
+	@Test
+	public void reassemblesMessagesOfEveryFragmentCount() {
+		int overhead = encode(1, "").remaining() - WireFormat.HEADER_SIZE;
+		for (int count = 2; count <= WireFormat.MAX_FRAGMENTS; count++) {
+			int bodyLength = count * WireFormat.FRAGMENT_DATA_SIZE;
+			String message = text(bodyLength - overhead - 2, count);
+			List<ByteBuffer> fragments = fragment(encode(count, message), count);
+			assertEquals(count, fragments.size());
+			checkReassembles(fragments, PEER, 0, message);
+		}
+	}
+
+	/*
+	 * The version and flags of the message survive fragmenting: here a
+	 * compressed version 3 message with a timestamp.
+	 */
+	@Test
+	public void keepsVersionAndFlags() {
+		String message = text(5000, 3);
+		ByteBuffer encoded = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encode(encoded, 9, 1234L, "bob", 1, 2, message);
+		encoded.flip();
+		assertEquals(WireFormat.VERSION, WireFormat.getVersion(encoded, 0));
+		assertEquals(WireFormat.FLAG_MESSAGE_ID | WireFormat.FLAG_COMPRESSED
+				| WireFormat.FLAG_TIMESTAMP, encoded.get(3));
+		List<ByteBuffer> fragments = fragment(encoded, 9);
+		assertTrue(fragments.size() > 1);
+		for (int i = 0; i < fragments.size() - 1; i++) {
+			assertNull(reassembler.add(fragments.get(i), PEER, 0));
+		}
+		ByteBuffer whole = reassembler.add(fragments.get(fragments.size() - 1), PEER, 0);
+		assertEquals(encoded, whole);
+		assertEquals(9, WireFormat.getMessageId(whole, 0, whole.limit()));
+		assertTrue(decoder.decode(whole, null, 0, info));
+		assertEquals(message, info.getMessage());
+		assertEquals(1234L, info.getTimestamp());
+		reassembler.release(whole);
+	}
+
+	@Test
+	public void copiesAreIgnored() {
+		String message = text(2000, 4);
+		List<ByteBuffer> fragments = fragment(encode(1, message), 1);
+		assertEquals(3, fragments.size());
+		assertNull(reassembler.add(fragments.get(0), PEER, 0));
+		assertNull(reassembler.add(fragments.get(0), PEER, 0));
+		assertFalse(reassembler.wasRejected());
+		assertNull(reassembler.add(fragments.get(2), PEER, 0));
+		assertNull(reassembler.add(fragments.get(2), PEER, 0));
+		ByteBuffer whole = reassembler.add(fragments.get(1), PEER, 0);
+		assertNotNull(whole);
+		reassembler.release(whole);
+	}
+
+	/*
+	 * Messages are told apart by sender as well as id, so fragments of two
+	 * messages may interleave.
+	 */
+	@Test
+	public void sendersAreSeparate() {
+		String first = text(2000, 5);
+		String second = text(2500, 6);
+		List<ByteBuffer> a = fragment(encode(1, first), 1);
+		List<ByteBuffer> b = fragment(encode(1, second), 1);
+		assertNull(reassembler.add(a.get(0), PEER, 0));
+		assertNull(reassembler.add(b.get(2), OTHER, 0));
+		assertNull(reassembler.add(a.get(1), PEER, 0));
+		assertNull(reassembler.add(b.get(0), OTHER, 0));
+
+		ByteBuffer whole = reassembler.add(a.get(2), PEER, 0);
+		assertTrue(decoder.decode(whole, null, 0, info));
+		assertEquals(first, info.getMessage());
+		reassembler.release(whole);
+
+		whole = reassembler.add(b.get(1), OTHER, 0);
+		assertTrue(decoder.decode(whole, null, 0, info));
+		assertEquals(second, info.getMessage());
+		reassembler.release(whole);
+	}
+
+	/*
+	 * A message with a fragment missing is never delivered, and is dropped
+	 * once it times out; the missing fragment arriving after that starts it
+	 * over.
+	 */
+	@Test
+	public void missingFragmentTimesOut() {
+		String message = text(3000, 7);
+		List<ByteBuffer> fragments = fragment(encode(1, message), 1);
+		for (int i = 1; i < fragments.size(); i++) {
+			assertNull(reassembler.add(fragments.get(i), PEER, 0));
+		}
+		assertNull(reassembler.add(fragments.get(1), PEER, TIMEOUT - 1));
+		assertEquals(0, reassembler.getDropped());
+
+		assertNull(reassembler.add(fragments.get(0), PEER, TIMEOUT));
+		assertFalse(reassembler.wasRejected());
+		assertEquals(1, reassembler.getDropped());
+
+		for (int i = 1; i < fragments.size() - 1; i++) {
+			assertNull(reassembler.add(fragments.get(i), PEER, TIMEOUT));
+		}
+		ByteBuffer whole = reassembler.add(fragments.get(fragments.size() - 1), PEER,
+				TIMEOUT);
+		assertNotNull(whole);
+		reassembler.release(whole);
+	}
+
+	/*
+	 * Partial messages that are never finished displace each other rather
+	 * than taking more memory; the newest can still be completed.
+	 */
+	@Test
+	public void unfinishedMessagesAreBounded() {
+		List<ByteBuffer> last = null;
+		for (int id = 1; id <= 300; id++) {
+			last = fragment(encode(id, text(60000, id % 10)), id);
+			assertNull(reassembler.add(last.get(0), PEER, 0));
+		}
+		assertTrue(reassembler.getDropped() > 250);
+		for (int i = 1; i < last.size() - 1; i++) {
+			assertNull(reassembler.add(last.get(i), PEER, 0));
+		}
+		ByteBuffer whole = reassembler.add(last.get(last.size() - 1), PEER, 0);
+		assertNotNull(whole);
+		reassembler.release(whole);
+	}
+
+	/*
+	 * Malformed fragments are ignored, so the message they seem to belong to
+	 * is reassembled from its good fragments alone.
+	 */
+	@Test
+	public void malformedFragmentsAreRejected() {
+		String message = text(3000, 8);
+		List<ByteBuffer> fragments = fragment(encode(1, message), 1);
+		ByteBuffer first = fragments.get(0);
+
+		/*
+		 * Short of its data, or with data to spare.
+		 */
+		ByteBuffer cut = first.duplicate();
+		cut.limit(cut.limit() - 1);
+		assertNull(reassembler.add(cut, PEER, 0));
+		assertTrue(reassembler.wasRejected());
+		ByteBuffer longer = ByteBuffer.allocate(first.limit() + 1);
+		longer.put(first.duplicate()).put((byte) 0).flip();
+		assertNull(reassembler.add(longer, PEER, 0));
+		assertTrue(reassembler.wasRejected());
+
+		/*
+		 * Header fields: message id, index, count, body length.
+		 */
+		int countAt = WireFormat.HEADER_SIZE + 2;
+		ByteBuffer badCount = copy(first);
+		badCount.put(countAt, (byte) (badCount.get(countAt) + 1));
+		assertNull(reassembler.add(badCount, PEER, 0));
+		assertTrue(reassembler.wasRejected());
+		ByteBuffer badIndex = copy(first);
+		badIndex.put(countAt - 1, badIndex.get(countAt));
+		assertNull(reassembler.add(badIndex, PEER, 0));
+		assertTrue(reassembler.wasRejected());
+		ByteBuffer tooMany = copy(first);
+		tooMany.put(countAt, (byte) (WireFormat.MAX_FRAGMENTS + 1));
+		assertNull(reassembler.add(tooMany, PEER, 0));
+		assertTrue(reassembler.wasRejected());
+
+		/*
+		 * A fragment that disagrees with those already kept of its message.
+		 */
+		assertNull(reassembler.add(fragments.get(0), PEER, 0));
+		assertFalse(reassembler.wasRejected());
+		List<ByteBuffer> other = fragment(encode(1, text(5000, 9)), 1);
+		assertNull(reassembler.add(other.get(1), PEER, 0));
+		assertTrue(reassembler.wasRejected());
+
+		for (int i = 1; i < fragments.size() - 1; i++) {
+			assertNull(reassembler.add(fragments.get(i), PEER, 0));
+		}
+		ByteBuffer whole = reassembler.add(fragments.get(fragments.size() - 1), PEER, 0);
+		assertTrue(decoder.decode(whole, null, 0, info));
+		assertEquals(message, info.getMessage());
+		reassembler.release(whole);
+		assertEquals(0, reassembler.getDropped());
+	}
+
+	private static ByteBuffer copy(ByteBuffer b) {
+		ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+		copy.put(b.duplicate()).flip();
+		return copy;
+	}
+
+}
@@ -0,0 +1,288 @@
+/*********************************************************************
+
+    Tests for the message encoder and decoder: round trips in every
+    combination of the optional fields, and malformed datagrams.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MessageCodecTest {
+
+	private static final String SENDER = "alicé";
+	private static final double LATITUDE = 40.744986;
+	private static final double LONGITUDE = -74.025837;
+	private static final String SHORT = "Meet at the library: 3pm?";
+	private static final long TIMESTAMP = 1349712000123L;
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final MessageInfo info = new MessageInfo();
+
+	private final InetAddress source;
+
+	public MessageCodecTest() throws UnknownHostException {
+		source = InetAddress.getByName("127.0.0.1");
+	}
+
+	private static String longMessage() {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			b.append("See you at the meeting tonight, ").append(i).append(". ");
+		}
+		return b.toString();
+	}
+
+	private ByteBuffer encode(byte version, long timestamp, String message) {
+		ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		if (version == WireFormat.VERSION_1) {
+			encoder.encodeVersion1(b, 300, SENDER, LATITUDE, LONGITUDE, message);
+		} else {
+			encoder.encode(b, 300, timestamp, SENDER, LATITUDE, LONGITUDE, message);
+		}
+		b.flip();
+		return b;
+	}
+
+	/*
+	 * The datagram without its message id, as a sender that does not number
+	 * its messages would send it.
+	 */
+	private static ByteBuffer withoutMessageId(ByteBuffer b) {
+		ByteBuffer copy = b.duplicate();
+		copy.position(WireFormat.HEADER_SIZE);
+		WireFormat.getVarint(copy);
+		ByteBuffer out = ByteBuffer.allocate(b.remaining());
+		out.put(b.get(0)).put(b.get(1)).put(b.get(2));
+		out.put((byte) (b.get(3) & ~WireFormat.FLAG_MESSAGE_ID));
+		out.put(copy);
+		out.flip();
+		return out;
+	}
+
+	private void checkDecodes(ByteBuffer b, String message, long timestamp) {
+		int position = b.position();
+		assertTrue(decoder.decode(b, source, 4000, info));
+		assertEquals(position, b.position());
+		assertEquals(SENDER, info.getSender());
+		assertEquals("127.0.0.1", info.getSrcAddr());
+		assertEquals(4000, info.getSrcPort());
+		assertEquals(LATITUDE, info.getLatitude(), 0);
+		assertEquals(LONGITUDE, info.getLongitude(), 0);
+		assertEquals(message, info.getMessage());
+		assertEquals(timestamp, info.getTimestamp());
+	}
+
+	/*
+	 * Every combination of message id, timestamp and compression that
+	 * version 3 has, and the message id version 1 has, decodes to what was
+	 * encoded, and has just the flags expected.
+	 */
+	@Test
+	public void roundTripsEveryCombination() {
+		String[] messages = { SHORT, longMessage(), "" };
+		long[] timestamps = { -1, TIMESTAMP };
+		for (String message : messages) {
+			boolean compressible = message.length() >= Compression.THRESHOLD;
+			for (long timestamp : timestamps) {
+				long expected = timestamp < 0 ? MessageInfo.NO_TIMESTAMP : timestamp;
+				ByteBuffer b = encode(WireFormat.VERSION, timestamp, message);
+				int flags = WireFormat.FLAG_MESSAGE_ID;
+				if (timestamp >= 0) {
+					flags |= WireFormat.FLAG_TIMESTAMP;
+				}
+				if (compressible) {
+					flags |= WireFormat.FLAG_COMPRESSED;
+				}
+				assertEquals(WireFormat.VERSION, WireFormat.getVersion(b, 0));
+				assertEquals(flags, b.get(3));
+				assertEquals(300, WireFormat.getMessageId(b, 0, b.limit()));
+				checkDecodes(b, message, expected);
+
+				ByteBuffer anonymous = withoutMessageId(b);
+				assertEquals(flags & ~WireFormat.FLAG_MESSAGE_ID, anonymous.get(3));
+				assertEquals(-1, WireFormat.getMessageId(anonymous, 0, anonymous.limit()));
+				checkDecodes(anonymous, message, expected);
+			}
+
+			ByteBuffer b = encode(WireFormat.VERSION_1, -1, message);
+			assertEquals(WireFormat.FLAG_MESSAGE_ID, b.get(3));
+			checkDecodes(b, message, MessageInfo.NO_TIMESTAMP);
+			checkDecodes(withoutMessageId(b), message, MessageInfo.NO_TIMESTAMP);
+		}
+	}
+
+	/*
+	 * A datagram need not start at the beginning of its buffer, nor be
+	 * backed by an array.
+	 */
+	@Test
+	public void decodesAtOffsetAndFromDirectBuffer() {
+		ByteBuffer[] buffers = { ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE + 10),
+				ByteBuffer.allocateDirect(WireFormat.MAX_MESSAGE_SIZE + 10) };
+		for (ByteBuffer b : buffers) {
+			for (String message : new String[] { SHORT, longMessage() }) {
+				b.clear();
+				b.position(7);
+				encoder.encode(b, 1, TIMESTAMP, SENDER, LATITUDE, LONGITUDE, message);
+				b.limit(b.position());
+				b.position(7);
+				checkDecodes(b, message, TIMESTAMP);
+			}
+		}
+	}
+
+	@Test
+	public void decodesLegacyText() throws Exception {
+		byte[] text = (SENDER + ":40.744986:-74.025837:" + SHORT).getBytes("UTF-8");
+		checkDecodes(ByteBuffer.wrap(text), SHORT, MessageInfo.NO_TIMESTAMP);
+		checkDecodes(directCopy(text), SHORT, MessageInfo.NO_TIMESTAMP);
+
+		assertFalse(decoder.decode(ByteBuffer.wrap("alice:40.7:-74.0".getBytes("UTF-8")),
+				source, 4000, info));
+		assertFalse(decoder.decode(ByteBuffer.wrap("alice:north:-74.0:hi".getBytes("UTF-8")),
+				source, 4000, info));
+		assertFalse(decoder.decode(ByteBuffer.wrap(new byte[0]), source, 4000, info));
+	}
+
+	private static ByteBuffer directCopy(byte[] bytes) {
+		ByteBuffer b = ByteBuffer.allocateDirect(bytes.length);
+		b.put(bytes);
+		b.flip();
+		return b;
+	}
+
+	/*
+	 * Flags that belong to the transport, or that this build does not
+	 * know, are not accepted on a message, nor are versions it does not
+	 * know.
+	 */
+	@Test
+	public void rejectsUnknownVersionsAndFlags() {
+		ByteBuffer b = encode(WireFormat.VERSION, TIMESTAMP, SHORT);
+		byte flags = b.get(3);
+		int[] foreign = { WireFormat.FLAG_FRAGMENT, WireFormat.FLAG_RELIABLE,
+				WireFormat.FLAG_ACK, 0x40, 0x80 };
+		for (int flag : foreign) {
+			b.put(3, (byte) (flags | flag));
+			assertFalse(decoder.decode(b, source, 4000, info));
+		}
+		b.put(3, flags);
+		byte[] versions = { 0, WireFormat.VERSION + 1, 0x7f, (byte) 0xff };
+		for (byte version : versions) {
+			b.put(2, version);
+			assertFalse(decoder.decode(b, source, 4000, info));
+		}
+		b.put(2, WireFormat.VERSION);
+		checkDecodes(b, SHORT, TIMESTAMP);
+
+		ByteBuffer compressed = encode(WireFormat.VERSION, -1, longMessage());
+		compressed.put(2, WireFormat.VERSION_1);
+		assertFalse(decoder.decode(compressed, source, 4000, info));
+		compressed.put(2, WireFormat.VERSION_2);
+		checkDecodes(compressed, longMessage(), MessageInfo.NO_TIMESTAMP);
+	}
+
+	/*
+	 * Cut short anywhere, an uncompressed datagram is rejected.  A
+	 * compressed one is either rejected or, if all that was lost was the
+	 * end of the deflate stream, decodes to the whole message.
+	 */
+	@Test
+	public void rejectsTruncatedDatagrams() {
+		ByteBuffer plain = encode(WireFormat.VERSION, TIMESTAMP, SHORT);
+		for (int length = 0; length < plain.limit(); length++) {
+			ByteBuffer cut = plain.duplicate();
+			cut.limit(length);
+			assertFalse("Cut to " + length, decoder.decode(cut, source, 4000, info));
+		}
+
+		String message = longMessage();
+		ByteBuffer compressed = encode(WireFormat.VERSION, TIMESTAMP, message);
+		assertTrue((compressed.get(3) & WireFormat.FLAG_COMPRESSED) != 0);
+		for (int length = 0; length < compressed.limit(); length++) {
+			ByteBuffer cut = compressed.duplicate();
+			cut.limit(length);
+			if (decoder.decode(cut, source, 4000, info)) {
+				assertEquals("Cut to " + length, message, info.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Lengths that claim more, or less, than the datagram holds.
+	 */
+	@Test
+	public void rejectsInconsistentLengths() {
+		ByteBuffer b = encode(WireFormat.VERSION, -1, SHORT);
+		int senderLengthAt = WireFormat.HEADER_SIZE + 2;
+		assertEquals(WireFormat.utf8Length(SENDER), b.get(senderLengthAt));
+		b.put(senderLengthAt, (byte) 100);
+		assertFalse(decoder.decode(b, source, 4000, info));
+		b.put(senderLengthAt, (byte) 0x80);
+		assertFalse(decoder.decode(b, source, 4000, info));
+		b.put(senderLengthAt, (byte) WireFormat.utf8Length(SENDER));
+
+		ByteBuffer longer = ByteBuffer.allocate(b.limit() + 1);
+		longer.put(b.duplicate()).put((byte) 0).flip();
+		assertFalse(decoder.decode(longer, source, 4000, info));
+
+		ByteBuffer compressed = encode(WireFormat.VERSION, -1, longMessage());
+		int inflatedLengthAt = WireFormat.HEADER_SIZE + 2;
+		compressed.put(inflatedLengthAt, (byte) (compressed.get(inflatedLengthAt) + 1));
+		assertFalse(decoder.decode(compressed, source, 4000, info));
+	}
+
+	/*
+	 * Random damage to a datagram never makes the decoder throw, and random
+	 * bytes after a binary header are rejected or decoded, never more.
+	 */
+	@Test
+	public void survivesCorruption() {
+		Random random = new Random(1);
+		ByteBuffer[] originals = { encode(WireFormat.VERSION, TIMESTAMP, SHORT),
+				encode(WireFormat.VERSION, TIMESTAMP, longMessage()),
+				encode(WireFormat.VERSION_1, -1, SHORT) };
+		for (ByteBuffer original : originals) {
+			byte[] bytes = new byte[original.limit()];
+			for (int i = 0; i < 2000; i++) {
+				original.duplicate().get(bytes);
+				int changes = 1 + random.nextInt(3);
+				for (int j = 0; j < changes; j++) {
+					bytes[WireFormat.HEADER_SIZE
+							+ random.nextInt(bytes.length - WireFormat.HEADER_SIZE)] = (byte) random
+							.nextInt();
+				}
+				decoder.decode(ByteBuffer.wrap(bytes), source, 4000, info);
+			}
+		}
+
+		byte[] garbage = new byte[200];
+		for (int i = 0; i < 2000; i++) {
+			random.nextBytes(garbage);
+			garbage[0] = WireFormat.MAGIC_0;
+			garbage[1] = WireFormat.MAGIC_1;
+			garbage[2] = WireFormat.VERSION;
+			garbage[3] = (byte) (random.nextInt() & (WireFormat.FLAG_MESSAGE_ID
+					| WireFormat.FLAG_COMPRESSED | WireFormat.FLAG_TIMESTAMP));
+			ByteBuffer b = ByteBuffer.wrap(garbage, 0, 1 + random.nextInt(garbage.length));
+			decoder.decode(b, source, 4000, info);
+		}
+
+		checkDecodes(originals[1], longMessage(), TIMESTAMP);
+	}
+
+}
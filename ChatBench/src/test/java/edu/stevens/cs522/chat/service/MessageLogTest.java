@@ -0,0 +1,281 @@
+/*********************************************************************
+
+    Tests for the message log: reads through the index, and recovery
+    after a crash.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageLogTest {
+
+	/*
+	 * Enough to fill several chunks of the segment, so some records cross
+	 * from one chunk to the next.
+	 */
+	private static final int MESSAGES = 20000;
+
+	private File file;
+	private MessageLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("messages", ".log");
+		log = new MessageLog(file);
+		log.open(null);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		log.close();
+		file.delete();
+		log.getIndexFile().delete();
+	}
+
+	private static String sender(long id) {
+		return "peer" + (id % 7);
+	}
+
+	private static String text(long id) {
+		return "Message é number " + id;
+	}
+
+	private void fill(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			long id = log.append(sender(log.getLastId() + 1), text(log.getLastId() + 1));
+			assertEquals(log.getLastId(), id);
+		}
+		log.flush();
+	}
+
+	private void reopen() throws IOException {
+		log.close();
+		log = new MessageLog(file);
+		log.open(null);
+	}
+
+	/*
+	 * Once closed, the index has just one entry for each of count records.
+	 */
+	private void checkClosedLength(long count) throws IOException {
+		log.close();
+		assertEquals(count * 8, log.getIndexFile().length());
+		log = new MessageLog(file);
+		log.open(null);
+	}
+
+	private void checkAll() throws IOException {
+		for (long id = log.getFirstId(); id <= log.getLastId(); id++) {
+			assertEquals(sender(id), log.getSender(id));
+			assertEquals(text(id), log.getMessage(id));
+		}
+	}
+
+	@Test
+	public void readsByIdAfterReopen() throws IOException {
+		fill(MESSAGES);
+		reopen();
+		assertEquals(1, log.getFirstId());
+		assertEquals(MESSAGES, log.getLastId());
+		checkAll();
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			long id = 1 + random.nextInt(MESSAGES);
+			assertTrue(log.isFrom(id, sender(id).getBytes("UTF-8")));
+			assertFalse(log.isFrom(id, "peer9".getBytes("UTF-8")));
+		}
+	}
+
+	/*
+	 * A reader following the tail sees each record as soon as it is
+	 * appended, flushed or not.
+	 */
+	@Test
+	public void readsTailWhileAppending() throws IOException {
+		for (int i = 1; i <= MESSAGES; i++) {
+			log.append(sender(i), text(i));
+			assertEquals(text(i), log.getMessage(i));
+		}
+		checkAll();
+	}
+
+	@Test
+	public void visitsEveryRecordOnOpen() throws IOException {
+		fill(100);
+		log.close();
+		log = new MessageLog(file);
+		final int[] visited = new int[1];
+		log.open(new MessageLog.Visitor() {
+			public void visit(long id, String sender, String message) {
+				assertEquals(visited[0] + 1, id);
+				assertEquals(text(id), message);
+				visited[0]++;
+			}
+		});
+		assertEquals(100, visited[0]);
+	}
+
+	@Test
+	public void dropsTruncatedTailRecord() throws IOException {
+		fill(100);
+		log.close();
+		RandomAccessFile segment = new RandomAccessFile(file, "rw");
+		long length = segment.length();
+		segment.setLength(length - 3);
+		segment.close();
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(99, log.getLastId());
+		checkAll();
+		assertEquals(100, log.append(sender(100), text(100)));
+		reopen();
+		assertEquals(100, log.getLastId());
+		checkAll();
+	}
+
+	@Test
+	public void dropsCorruptedTailRecord() throws IOException {
+		fill(100);
+		log.close();
+		RandomAccessFile segment = new RandomAccessFile(file, "rw");
+		segment.seek(segment.length() - 1);
+		segment.write('?');
+		segment.close();
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(99, log.getLastId());
+		checkAll();
+	}
+
+	/*
+	 * A crash after the records were written but before their index
+	 * entries were, with a partial record after them.
+	 */
+	@Test
+	public void indexesRecordsMissingFromIndex() throws IOException {
+		fill(100);
+		log.close();
+		RandomAccessFile index = new RandomAccessFile(log.getIndexFile(), "rw");
+		index.setLength(index.length() - 5 * 8 - 3);
+		index.close();
+		RandomAccessFile segment = new RandomAccessFile(file, "rw");
+		segment.seek(segment.length());
+		segment.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+		segment.close();
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(100, log.getLastId());
+		checkAll();
+		checkClosedLength(100);
+	}
+
+	@Test
+	public void rebuildsCorruptIndex() throws IOException {
+		fill(1000);
+		log.close();
+		RandomAccessFile index = new RandomAccessFile(log.getIndexFile(), "rw");
+		index.seek(index.length() - 8);
+		index.writeLong(12345);
+		index.close();
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(1000, log.getLastId());
+		checkAll();
+	}
+
+	@Test
+	public void indexesLogWithoutIndex() throws IOException {
+		fill(1000);
+		log.close();
+		assertTrue(log.getIndexFile().delete());
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(1000, log.getLastId());
+		checkAll();
+		checkClosedLength(1000);
+	}
+
+	/*
+	 * Files left by a process killed with the log open, so with the zeros
+	 * each was extended with still after the last record and entry.
+	 */
+	@Test
+	public void recoversLogLeftOpen() throws IOException {
+		fill(1000);
+		assertTrue(log.getIndexFile().length() > 1000 * 8);
+		File copy = File.createTempFile("messages", ".log");
+		MessageLog recovered = new MessageLog(copy);
+		try {
+			Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.copy(log.getIndexFile().toPath(), recovered.getIndexFile().toPath());
+			recovered.open(null);
+			assertEquals(1, recovered.getFirstId());
+			assertEquals(1000, recovered.getLastId());
+			for (long id = 1; id <= 1000; id++) {
+				assertEquals(text(id), recovered.getMessage(id));
+			}
+			assertEquals(1001, recovered.append(sender(1001), text(1001)));
+			recovered.close();
+			assertEquals(1001 * 8, recovered.getIndexFile().length());
+		} finally {
+			copy.delete();
+			recovered.getIndexFile().delete();
+		}
+	}
+
+	/*
+	 * While a cursor is open, closing the log leaves the files their mapped
+	 * length; the next open cuts the zeros off.
+	 */
+	@Test
+	public void closeWithReaderLeavesFilesMapped() throws IOException {
+		fill(1000);
+		long allocated = log.getIndexFile().length();
+		assertTrue(allocated > 1000 * 8);
+		log.addReader();
+		log.close();
+		assertEquals(allocated, log.getIndexFile().length());
+		log.removeReader();
+
+		log = new MessageLog(file);
+		log.open(null);
+		assertEquals(1000, log.getLastId());
+		checkAll();
+		checkClosedLength(1000);
+	}
+
+	@Test
+	public void emptyLog() throws IOException {
+		assertEquals(0, log.getFirstId());
+		assertEquals(0, log.getLastId());
+		reopen();
+		assertEquals(0, log.getLastId());
+		assertEquals(1, log.append("a", "b"));
+		reopen();
+		assertEquals(1, log.getFirstId());
+		assertEquals("b", log.getMessage(1));
+	}
+
+}
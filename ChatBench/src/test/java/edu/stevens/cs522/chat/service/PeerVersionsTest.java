@@ -0,0 +1,262 @@
+/*********************************************************************
+
+    Tests for sending each peer the version of the wire format it reads.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeerVersionsTest {
+
+	private DatagramChannel channel;
+
+	/*
+	 * A peer, read directly.
+	 */
+	private DatagramSocket peer;
+	private InetSocketAddress peerAddress;
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final MessageDecoder decoder = new MessageDecoder();
+	private final MessageInfo info = new MessageInfo();
+
+	@Before
+	public void setUp() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(loopback, 0));
+		channel.configureBlocking(false);
+		peer = new DatagramSocket(0, loopback);
+		peer.setSoTimeout(5000);
+		peerAddress = new InetSocketAddress(loopback, peer.getLocalPort());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		channel.close();
+		peer.close();
+	}
+
+	private ByteBuffer receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[WireFormat.MAX_DATAGRAM_SIZE],
+				WireFormat.MAX_DATAGRAM_SIZE);
+		peer.receive(packet);
+		return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			b.append(s);
+		}
+		return b.toString();
+	}
+
+	@Test
+	public void decoderKnowsFlagsByVersion() {
+		ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encode(b, 1, 1234L, "alice", 1, 2, "hi");
+		b.flip();
+		assertTrue(decoder.decode(b, null, 0, info));
+		assertEquals(1234L, info.getTimestamp());
+
+		/*
+		 * Timestamps are new in version 3.
+		 */
+		b.put(2, WireFormat.VERSION_1);
+		assertFalse(decoder.decode(b, null, 0, info));
+		b.put(2, WireFormat.VERSION_2);
+		assertFalse(decoder.decode(b, null, 0, info));
+
+		b.put(2, (byte) (WireFormat.VERSION + 1));
+		assertFalse(decoder.decode(b, null, 0, info));
+
+		b.clear();
+		encoder.encodeVersion1(b, 1, "alice", 1, 2, "hi");
+		b.flip();
+		assertEquals(WireFormat.VERSION_1, WireFormat.getVersion(b, 0));
+		assertEquals(WireFormat.FLAG_MESSAGE_ID, b.get(3));
+		assertTrue(decoder.decode(b, null, 0, info));
+		assertEquals(MessageInfo.NO_TIMESTAMP, info.getTimestamp());
+	}
+
+	@Test
+	public void version1IsNeverCompressed() {
+		String text = repeat("the quick brown fox ", 100);
+		ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encodeVersion1(b, 1, "alice", 1, 2, text);
+		b.flip();
+		assertEquals(0, b.get(3) & WireFormat.FLAG_COMPRESSED);
+
+		/*
+		 * Fragments keep the version of the message.
+		 */
+		ByteBuffer fragment = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+		encoder.encodeFragment(fragment, b, 1, 0);
+		fragment.flip();
+		assertEquals(WireFormat.VERSION_1, WireFormat.getVersion(fragment, 0));
+	}
+
+	@Test
+	public void versionIsKnownUntilTimeout() {
+		PeerVersions versions = new PeerVersions();
+		assertEquals(WireFormat.VERSION_1, versions.getVersion(peerAddress, 0));
+		versions.heard(peerAddress, WireFormat.VERSION_1, 0);
+		assertEquals(WireFormat.VERSION_1, versions.getVersion(peerAddress, 0));
+		versions.heard(peerAddress, WireFormat.VERSION_2, 0);
+		assertEquals(WireFormat.VERSION_2, versions.getVersion(peerAddress, 0));
+		versions.heard(peerAddress, WireFormat.VERSION, 0);
+		assertEquals(WireFormat.VERSION, versions.getVersion(peerAddress, 0));
+
+		/*
+		 * An earlier version, or a later one than ours, leaves it at ours.
+		 */
+		versions.heard(peerAddress, WireFormat.VERSION_2, 1);
+		versions.heard(peerAddress, WireFormat.VERSION + 1, 1);
+		assertEquals(WireFormat.VERSION,
+				versions.getVersion(peerAddress, PeerVersions.TIMEOUT));
+		assertEquals(WireFormat.VERSION_1,
+				versions.getVersion(peerAddress, PeerVersions.TIMEOUT + 1));
+
+		assertTrue(versions.announce(peerAddress, 0));
+		assertFalse(versions.announce(peerAddress, PeerVersions.ANNOUNCE_INTERVAL - 1));
+		assertTrue(versions.announce(peerAddress, PeerVersions.ANNOUNCE_INTERVAL));
+	}
+
+	/*
+	 * A peer not known to read a later version is sent version 1, which
+	 * peers that predate it read; once it is known to, it is sent the
+	 * latest one it reads.
+	 */
+	@Test
+	public void sendQueueSendsVersionPeerReads() throws Exception {
+		SendQueue queue = new SendQueue(channel, new Metrics(), "alice", 0, 0);
+		queue.start();
+		try {
+			queue.enqueue("127.0.0.1", peerAddress.getPort(), "first", false, null)
+					.get();
+			ByteBuffer first = receive();
+			assertEquals(WireFormat.VERSION_1, WireFormat.getVersion(first, 0));
+			assertTrue(decoder.decode(first, null, 0, info));
+			assertEquals("first", info.getMessage());
+			assertEquals(MessageInfo.NO_TIMESTAMP, info.getTimestamp());
+
+			queue.getPeerVersions().heard(peerAddress, WireFormat.VERSION_2,
+					System.currentTimeMillis());
+			queue.enqueue("127.0.0.1", peerAddress.getPort(), "second", false, null)
+					.get();
+			ByteBuffer second = receive();
+			assertEquals(WireFormat.VERSION_2, WireFormat.getVersion(second, 0));
+			assertTrue(decoder.decode(second, null, 0, info));
+			assertEquals("second", info.getMessage());
+			assertEquals(MessageInfo.NO_TIMESTAMP, info.getTimestamp());
+
+			queue.getPeerVersions().heard(peerAddress, WireFormat.VERSION,
+					System.currentTimeMillis());
+			queue.enqueue("127.0.0.1", peerAddress.getPort(), "third", false, null)
+					.get();
+			ByteBuffer third = receive();
+			assertEquals(WireFormat.VERSION, WireFormat.getVersion(third, 0));
+			assertTrue(decoder.decode(third, null, 0, info));
+			assertEquals("third", info.getMessage());
+			assertTrue(info.getTimestamp() != MessageInfo.NO_TIMESTAMP);
+		} finally {
+			queue.stop();
+		}
+	}
+
+	/*
+	 * A peer that sends version 1 is told, once in a while, which version
+	 * is read here; an announcement from a peer marks it as reading it.
+	 */
+	@Test
+	public void pipelineAnnouncesToVersion1Senders() throws IOException {
+		final List<String> delivered = new ArrayList<String>();
+		final int[] malformed = new int[1];
+		PeerVersions versions = new PeerVersions();
+		ReceivePipeline pipeline = new ReceivePipeline(
+				new ReliableTransport(new ReliableTransport.Listener() {
+					public void onAcknowledged(Object token) {
+					}
+
+					public void onFailed(Object token, IOException e) {
+					}
+
+					public void onWakeup() {
+					}
+				}), versions, new AdmissionControl(Double.MAX_VALUE, Double.MAX_VALUE,
+						Double.MAX_VALUE, Double.MAX_VALUE), new Metrics(),
+				new ReceivePipeline.Sink() {
+					public boolean onMessage(MessageInfo message) {
+						delivered.add(message.getMessage());
+						return true;
+					}
+
+					public void onRateLimited(InetSocketAddress source, int reason) {
+					}
+
+					public void onMalformed(InetSocketAddress source) {
+						malformed[0]++;
+					}
+
+					public boolean onPacketsDrained() {
+						return true;
+					}
+
+					public void onFailure(IOException e) {
+					}
+
+					public void onError(RuntimeException e) {
+					}
+				});
+
+		ByteBuffer b = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encodeVersion1(b, 1, "bob", 1, 2, "old");
+		b.flip();
+		pipeline.onPacket(channel, b.duplicate(), peerAddress);
+		ByteBuffer announcement = receive();
+		assertTrue(WireFormat.isAnnouncement(announcement, 0, announcement.limit()));
+
+		b.put(4, (byte) 2);
+		pipeline.onPacket(channel, b.duplicate(), peerAddress);
+		peer.setSoTimeout(200);
+		try {
+			receive();
+			fail("Announced twice in a row");
+		} catch (SocketTimeoutException e) {
+			/* Expected. */
+		}
+		assertEquals(2, delivered.size());
+
+		assertEquals(WireFormat.VERSION_1,
+				versions.getVersion(peerAddress, System.currentTimeMillis()));
+		pipeline.onPacket(channel, announcement, peerAddress);
+		assertEquals(WireFormat.VERSION,
+				versions.getVersion(peerAddress, System.currentTimeMillis()));
+		assertEquals(2, delivered.size());
+		assertEquals(0, malformed[0]);
+	}
+
+}
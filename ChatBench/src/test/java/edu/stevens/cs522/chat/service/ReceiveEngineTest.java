@@ -0,0 +1,102 @@
+/*********************************************************************
+
+    Tests for the receive engine: a listener that throws loses just the
+    packet it was handling.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ReceiveEngineTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+	private final List<RuntimeException> errors = new ArrayList<RuntimeException>();
+
+	/*
+	 * Throws on packets reading "throw", and from onPacketsDrained after a
+	 * packet reading "drain".
+	 */
+	private final ReceiveEngine.Listener listener = new ReceiveEngine.Listener() {
+		private boolean throwOnDrain;
+
+		public void onPacket(DatagramChannel channel, ByteBuffer packet,
+				InetSocketAddress source) {
+			byte[] bytes = new byte[packet.remaining()];
+			packet.get(bytes);
+			String text = new String(bytes);
+			if (text.equals("throw")) {
+				throw new IllegalStateException(text);
+			}
+			if (text.equals("drain")) {
+				throwOnDrain = true;
+			}
+			received.add(text);
+		}
+
+		public void onPacketsDrained() {
+			if (throwOnDrain) {
+				throwOnDrain = false;
+				throw new IllegalStateException("drained");
+			}
+		}
+
+		public void onFailure(IOException e) {
+		}
+
+		public void onError(RuntimeException e) {
+			synchronized (errors) {
+				errors.add(e);
+			}
+			throw new IllegalStateException("from onError");
+		}
+	};
+
+	@Test
+	public void listenerExceptionsAreCountedAndSurvived() throws Exception {
+		ReceiveEngine engine = new ReceiveEngine(listener, WireFormat.MAX_DATAGRAM_SIZE);
+		DatagramChannel channel = engine.bind(0);
+		InetSocketAddress target = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+				channel.socket().getLocalPort());
+		engine.start();
+		DatagramChannel out = DatagramChannel.open();
+		try {
+			out.send(ByteBuffer.wrap("throw".getBytes()), target);
+			out.send(ByteBuffer.wrap("first".getBytes()), target);
+			assertEquals("first", received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+			out.send(ByteBuffer.wrap("drain".getBytes()), target);
+			assertEquals("drain", received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+			out.send(ByteBuffer.wrap("last".getBytes()), target);
+			assertEquals("last", received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			out.close();
+			engine.stop();
+		}
+		assertEquals(2, engine.getErrors());
+		synchronized (errors) {
+			assertEquals(2, errors.size());
+			assertEquals("throw", errors.get(0).getMessage());
+			assertEquals("drained", errors.get(1).getMessage());
+		}
+		assertTrue(received.isEmpty());
+	}
+
+}
@@ -0,0 +1,278 @@
+/*********************************************************************
+
+    Tests for the receive pipeline, with reliable delivery: what is
+    delivered, and what is acknowledged.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * A sender's transport and a receiver's pipeline, with datagrams passed
+ * between them by hand, so a test decides which are lost.  The receiver
+ * times its ACKs by the real clock, so the tests do too.
+ */
+public class ReceivePipelineTest {
+
+	private static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.1", 4000);
+	private static final InetSocketAddress RECEIVER = new InetSocketAddress("127.0.0.2", 4000);
+
+	private final List<Object> acknowledged = new ArrayList<Object>();
+	private final List<Object> failed = new ArrayList<Object>();
+
+	private final ReliableTransport.Listener senderListener = new ReliableTransport.Listener() {
+		public void onAcknowledged(Object token) {
+			acknowledged.add(token);
+		}
+
+		public void onFailed(Object token, IOException e) {
+			failed.add(token);
+		}
+
+		public void onWakeup() {
+		}
+	};
+
+	private final ReliableTransport.Listener receiverListener = new ReliableTransport.Listener() {
+		public void onAcknowledged(Object token) {
+		}
+
+		public void onFailed(Object token, IOException e) {
+		}
+
+		public void onWakeup() {
+		}
+	};
+
+	private final List<String> delivered = new ArrayList<String>();
+	private int malformed;
+
+	/*
+	 * Set to have the sink refuse messages, as one whose batch is full of
+	 * messages it could not save does; or fail to save them, as one whose
+	 * provider is failing does.
+	 */
+	private boolean full;
+	private boolean failing;
+
+	private final ReceivePipeline.Sink sink = new ReceivePipeline.Sink() {
+		public boolean onMessage(MessageInfo message) {
+			if (full) {
+				return false;
+			}
+			delivered.add(message.getMessage());
+			return true;
+		}
+
+		public void onRateLimited(InetSocketAddress source, int reason) {
+		}
+
+		public void onMalformed(InetSocketAddress source) {
+			malformed++;
+		}
+
+		public boolean onPacketsDrained() {
+			return !failing;
+		}
+
+		public void onFailure(IOException e) {
+		}
+
+		public void onError(RuntimeException e) {
+		}
+	};
+
+	private final ReliableTransport sender = new ReliableTransport(senderListener);
+	private final ReliableTransport receiver = new ReliableTransport(receiverListener);
+	private final Metrics metrics = new Metrics();
+	private final ReceivePipeline pipeline = new ReceivePipeline(receiver, new PeerVersions(),
+			new AdmissionControl(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+					Double.MAX_VALUE), metrics, sink);
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final ByteBuffer out = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+
+	private ByteBuffer encode(int messageId, String text) {
+		ByteBuffer message = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encode(message, messageId, "alice", 40.7, -74.0, text);
+		message.flip();
+		return message;
+	}
+
+	/*
+	 * A copy of the datagram in out, as the receiver would get it.
+	 */
+	private ByteBuffer copy(ByteBuffer datagram) {
+		ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+		copy.put(datagram.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/*
+	 * Pass the datagram through the pipeline as one round of packets.
+	 */
+	private void deliver(ByteBuffer datagram) {
+		pipeline.onPacket(null, copy(datagram), SENDER);
+		pipeline.onPacketsDrained();
+	}
+
+	/*
+	 * Pass whatever ACK the receiver has due back to the sender.
+	 */
+	private boolean returnAck(long now) {
+		InetSocketAddress target = receiver.poll(out, now);
+		if (target == null) {
+			return false;
+		}
+		assertEquals(SENDER, target);
+		sender.receive(copy(out), RECEIVER);
+		return true;
+	}
+
+	/*
+	 * The sender numbers messages to all its peers from one counter, so the
+	 * retransmission of a lost message can come long after the ids the
+	 * receiver has since seen.  It must be delivered, and acknowledged.
+	 */
+	@Test
+	public void retransmissionBehindDuplicateWindowIsDelivered() {
+		long now = System.currentTimeMillis();
+		Object lost = "lost";
+		assertNotNull(sender.prepare(RECEIVER, encode(500, "first"), lost, out, now));
+
+		Object next = "next";
+		ByteBuffer datagram = sender.prepare(RECEIVER, encode(600, "second"), next, out, now);
+		deliver(datagram);
+		assertEquals(1, delivered.size());
+		assertTrue(returnAck(now + 1000));
+		assertEquals(1, acknowledged.size());
+		assertEquals(next, acknowledged.get(0));
+
+		/*
+		 * Past any retransmission timeout.
+		 */
+		long later = now + 10000;
+		assertEquals(RECEIVER, sender.poll(out, later));
+		ByteBuffer resent = copy(out);
+		deliver(resent);
+		assertEquals(2, delivered.size());
+		assertEquals("first", delivered.get(1));
+		assertTrue(returnAck(later + 1000));
+		assertEquals(2, acknowledged.size());
+		assertEquals(lost, acknowledged.get(1));
+
+		/*
+		 * A further copy is dropped, but acknowledged again.
+		 */
+		deliver(resent);
+		assertEquals(2, delivered.size());
+		assertTrue(returnAck(later + 2000));
+	}
+
+	@Test
+	public void malformedReliableDatagramIsNotAcknowledged() {
+		long now = System.currentTimeMillis();
+		ByteBuffer message = encode(1, "hello");
+		/*
+		 * Cut the message text short.
+		 */
+		message.limit(message.limit() - 2);
+		ByteBuffer datagram = sender.prepare(RECEIVER, message, "bad", out, now);
+		deliver(datagram);
+		assertEquals(0, delivered.size());
+		assertEquals(1, malformed);
+		assertNull(receiver.poll(out, now + 1000));
+		assertEquals(0, acknowledged.size());
+	}
+
+	/*
+	 * A message the sink has no room for is counted as dropped, and is
+	 * neither acknowledged nor remembered as seen, so the copy the sender
+	 * resends is delivered.
+	 */
+	@Test
+	public void refusedMessageIsResentAndDelivered() {
+		long now = System.currentTimeMillis();
+		full = true;
+		ByteBuffer datagram = copy(sender.prepare(RECEIVER, encode(1, "hello"), "hello", out,
+				now));
+		deliver(datagram);
+		assertEquals(0, delivered.size());
+		assertEquals(1, metrics.get(Metrics.MESSAGES_DROPPED));
+		assertEquals(0, metrics.get(Metrics.MESSAGES_RECEIVED));
+		assertNull(receiver.poll(out, now + 1000));
+
+		full = false;
+		assertEquals(RECEIVER, sender.poll(out, now + 10000));
+		deliver(out);
+		assertEquals(1, delivered.size());
+		assertEquals(0, metrics.get(Metrics.DUPLICATES));
+		assertEquals(1, metrics.get(Metrics.MESSAGES_RECEIVED));
+		assertTrue(returnAck(now + 11000));
+		assertEquals(1, acknowledged.size());
+	}
+
+	/*
+	 * A message taken but not saved is not acknowledged; once the sink
+	 * saves it, at a later round, it is.
+	 */
+	@Test
+	public void unsavedMessageIsNotAcknowledged() {
+		long now = System.currentTimeMillis();
+		failing = true;
+		deliver(sender.prepare(RECEIVER, encode(1, "hello"), "hello", out, now));
+		assertEquals(1, delivered.size());
+		assertNull(receiver.poll(out, now + 1000));
+
+		failing = false;
+		pipeline.onPacketsDrained();
+		assertTrue(returnAck(now + 1000));
+		assertEquals(1, acknowledged.size());
+	}
+
+	/*
+	 * Each fragment is acknowledged once it is kept; a copy of a whole
+	 * message delivered already is acknowledged but not delivered again.
+	 */
+	@Test
+	public void fragmentsAreAcknowledgedAsKept() {
+		long now = System.currentTimeMillis();
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(1);
+		for (int i = 0; i < 3000; i++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		ByteBuffer message = encode(9, text.toString());
+		int count = MessageEncoder.datagramCount(message);
+		assertTrue(count > 1);
+		ByteBuffer fragment = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+		for (int i = 0; i < count; i++) {
+			fragment.clear();
+			encoder.encodeFragment(fragment, message, 9, i);
+			fragment.flip();
+			deliver(sender.prepare(RECEIVER, fragment, "fragment" + i, out, now));
+		}
+		assertEquals(1, delivered.size());
+		assertEquals(text.toString(), delivered.get(0));
+		assertTrue(returnAck(now + 1000));
+		assertEquals(count, acknowledged.size());
+	}
+
+}
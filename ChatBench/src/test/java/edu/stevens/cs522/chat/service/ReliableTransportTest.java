@@ -0,0 +1,336 @@
+/*********************************************************************
+
+    Tests for the reliable transport: retransmission, the timeout and
+    its backoff, and the window.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/*
+ * Two transports, with datagrams passed between them by hand, so a test
+ * decides which are lost.  The sender's timeouts run on the times the test
+ * gives it; the receiver times its ACKs, and the sender its round trips, by
+ * the real clock, so tests that measure round trips use it too.
+ */
+public class ReliableTransportTest {
+
+	private static final InetSocketAddress SENDER = new InetSocketAddress("127.0.0.1", 4000);
+	private static final InetSocketAddress RECEIVER = new InetSocketAddress("127.0.0.2", 4000);
+
+	/*
+	 * Match the constants of ReliableTransport.
+	 */
+	private static final int WINDOW = 32;
+	private static final int MAX_RETRIES = 6;
+	private static final long INITIAL_RTO = 1000;
+	private static final long MIN_RTO = 200;
+	private static final long MAX_RTO = 8000;
+	private static final long ACK_DELAY = 20;
+
+	private final List<Object> acknowledged = new ArrayList<Object>();
+	private final List<Object> failed = new ArrayList<Object>();
+
+	private final ReliableTransport.Listener senderListener = new ReliableTransport.Listener() {
+		public void onAcknowledged(Object token) {
+			acknowledged.add(token);
+		}
+
+		public void onFailed(Object token, IOException e) {
+			failed.add(token);
+		}
+
+		public void onWakeup() {
+		}
+	};
+
+	private final ReliableTransport.Listener receiverListener = new ReliableTransport.Listener() {
+		public void onAcknowledged(Object token) {
+		}
+
+		public void onFailed(Object token, IOException e) {
+		}
+
+		public void onWakeup() {
+		}
+	};
+
+	private final ReliableTransport sender = new ReliableTransport(senderListener);
+	private final ReliableTransport receiver = new ReliableTransport(receiverListener);
+
+	private final MessageEncoder encoder = new MessageEncoder();
+	private final ByteBuffer out = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+
+	private ByteBuffer encode(int messageId, String text) {
+		ByteBuffer message = ByteBuffer.allocate(WireFormat.MAX_MESSAGE_SIZE);
+		encoder.encode(message, messageId, "alice", 40.7, -74.0, text);
+		message.flip();
+		return message;
+	}
+
+	private static ByteBuffer copy(ByteBuffer datagram) {
+		ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+		copy.put(datagram.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/*
+	 * Pass a datagram to the receiver, and take and save it as the pipeline
+	 * would if it gets through.  Returns whether it got through.
+	 */
+	private boolean deliver(ByteBuffer datagram) {
+		ByteBuffer packet = copy(datagram);
+		if (!receiver.receive(packet, SENDER)) {
+			return false;
+		}
+		receiver.accepted();
+		receiver.commit();
+		return true;
+	}
+
+	/*
+	 * Pass whatever ACK the receiver has due back to the sender.
+	 */
+	private boolean returnAck() {
+		InetSocketAddress target = receiver.poll(out,
+				System.currentTimeMillis() + ACK_DELAY);
+		if (target == null) {
+			return false;
+		}
+		assertEquals(SENDER, target);
+		assertFalse(sender.receive(copy(out), RECEIVER));
+		return true;
+	}
+
+	/*
+	 * The receiver gets the datagram as it was before the sender added the
+	 * transport fields.
+	 */
+	@Test
+	public void deliversDatagramUnchanged() {
+		ByteBuffer message = encode(1, "hello");
+		ByteBuffer datagram = sender.prepare(RECEIVER, message, "hello", out,
+				System.currentTimeMillis());
+		assertTrue((datagram.get(3) & WireFormat.FLAG_RELIABLE) != 0);
+		ByteBuffer packet = copy(datagram);
+		assertTrue(receiver.receive(packet, SENDER));
+		assertEquals(message, packet);
+		receiver.accepted();
+		receiver.commit();
+
+		assertTrue(returnAck());
+		assertEquals(1, acknowledged.size());
+		assertEquals("hello", acknowledged.get(0));
+		assertEquals(-1, sender.getDelay(System.currentTimeMillis()));
+	}
+
+	/*
+	 * A datagram taken is not acknowledged until it is committed, and a
+	 * copy that arrives meanwhile is taken again, not acknowledged at once.
+	 */
+	@Test
+	public void acknowledgesOnlyOnceCommitted() {
+		long now = System.currentTimeMillis();
+		ByteBuffer datagram = copy(sender.prepare(RECEIVER, encode(1, "held"), "held", out,
+				now));
+		assertTrue(receiver.receive(copy(datagram), SENDER));
+		receiver.accepted();
+		assertEquals(-1, receiver.getDelay(now));
+		assertNull(receiver.poll(out, now + 1000));
+
+		assertTrue(receiver.receive(copy(datagram), SENDER));
+		receiver.accepted();
+		assertNull(receiver.poll(out, now + 1000));
+
+		receiver.commit();
+		assertTrue(returnAck());
+		assertEquals(1, acknowledged.size());
+		assertFalse(receiver.receive(copy(datagram), SENDER));
+	}
+
+	/*
+	 * A datagram never acknowledged is resent after the timeout, which
+	 * doubles with each retry up to MAX_RTO, and fails after MAX_RETRIES.
+	 */
+	@Test
+	public void retransmitsWithBackoffThenFails() {
+		ByteBuffer first = copy(sender.prepare(RECEIVER, encode(1, "lost"), "lost", out, 0));
+		assertEquals(INITIAL_RTO, sender.getDelay(0));
+
+		long now = 0;
+		long deadline = INITIAL_RTO;
+		for (int retry = 1; retry <= MAX_RETRIES; retry++) {
+			assertNull(sender.poll(out, deadline - 1));
+			now = deadline;
+			assertEquals(RECEIVER, sender.poll(out, now));
+			assertEquals("Retry " + retry, first, out);
+			deadline = now + Math.min(MAX_RTO, INITIAL_RTO << retry);
+			assertEquals(deadline - now, sender.getDelay(now));
+		}
+		assertTrue(failed.isEmpty());
+		assertNull(sender.poll(out, deadline - 1));
+		assertNull(sender.poll(out, deadline));
+		assertEquals(1, failed.size());
+		assertEquals("lost", failed.get(0));
+		assertEquals(-1, sender.getDelay(deadline));
+		assertTrue(acknowledged.isEmpty());
+	}
+
+	/*
+	 * A lost datagram is resent, and a copy of one already received is
+	 * dropped, but acknowledged again in case the ACK was what was lost.
+	 */
+	@Test
+	public void recoversLostDatagramAndLostAck() {
+		long now = System.currentTimeMillis();
+		sender.prepare(RECEIVER, encode(1, "first"), "first", out, now);
+		assertEquals(RECEIVER, sender.poll(out, now + INITIAL_RTO));
+		ByteBuffer resent = copy(out);
+		assertTrue(deliver(resent));
+
+		/*
+		 * The ACK is lost: the sender resends again.
+		 */
+		assertNotNull(receiver.poll(out, System.currentTimeMillis() + ACK_DELAY));
+		assertEquals(RECEIVER, sender.poll(out, now + 3 * INITIAL_RTO));
+		assertFalse(deliver(out));
+		assertTrue(returnAck());
+		assertEquals(1, acknowledged.size());
+		assertTrue(failed.isEmpty());
+	}
+
+	/*
+	 * A gap is acknowledged at once, and the ACK's bitmap spares the
+	 * datagram after the gap from being resent.
+	 */
+	@Test
+	public void gapIsAcknowledgedSelectively() {
+		long now = System.currentTimeMillis();
+		sender.prepare(RECEIVER, encode(1, "lost"), "lost", out, now);
+		ByteBuffer second = copy(sender.prepare(RECEIVER, encode(2, "second"), "second",
+				out, now));
+		assertTrue(deliver(second));
+		assertEquals(0, receiver.getDelay(System.currentTimeMillis()));
+		assertTrue(returnAck());
+		assertEquals(1, acknowledged.size());
+		assertEquals("second", acknowledged.get(0));
+
+		assertEquals(RECEIVER, sender.poll(out, now + INITIAL_RTO));
+		assertTrue(deliver(out));
+		assertNull(sender.poll(out, now + INITIAL_RTO));
+		assertTrue(returnAck());
+		assertEquals(2, acknowledged.size());
+		assertEquals("lost", acknowledged.get(1));
+	}
+
+	/*
+	 * Fast round trips bring the timeout down to MIN_RTO; an ACK for a
+	 * datagram that was resent is not used to measure one, as it cannot be
+	 * told which copy it answers.
+	 */
+	@Test
+	public void timeoutAdaptsToRoundTrips() {
+		assertEquals(INITIAL_RTO, sender.getRto(RECEIVER));
+		sender.prepare(RECEIVER, encode(1, "slow"), "slow", out, 0);
+		assertEquals(RECEIVER, sender.poll(out, INITIAL_RTO));
+		assertTrue(deliver(out));
+		assertTrue(returnAck());
+		assertEquals(INITIAL_RTO, sender.getRto(RECEIVER));
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(deliver(sender.prepare(RECEIVER, encode(2 + i, "fast"), "fast", out,
+					System.currentTimeMillis())));
+			assertTrue(returnAck());
+		}
+		assertEquals(MIN_RTO, sender.getRto(RECEIVER));
+		assertEquals(101, acknowledged.size());
+
+		long now = System.currentTimeMillis();
+		sender.prepare(RECEIVER, encode(200, "lost"), "lost", out, now);
+		assertEquals(MIN_RTO, sender.getDelay(now));
+		assertEquals(RECEIVER, sender.poll(out, now + MIN_RTO));
+		assertEquals(2 * MIN_RTO, sender.getDelay(now + MIN_RTO));
+	}
+
+	/*
+	 * No more than WINDOW datagrams are unacknowledged at once; the rest
+	 * wait, and are sent as ACKs make room.
+	 */
+	@Test
+	public void windowHoldsBackTheRest() {
+		long now = System.currentTimeMillis();
+		List<ByteBuffer> sent = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < WINDOW + 8; i++) {
+			ByteBuffer datagram = sender.prepare(RECEIVER, encode(i, "m" + i), "m" + i, out,
+					now);
+			if (i < WINDOW) {
+				assertNotNull(datagram);
+				sent.add(copy(datagram));
+			} else {
+				assertNull(datagram);
+			}
+		}
+		assertNull(sender.poll(out, now));
+
+		for (ByteBuffer datagram : sent) {
+			assertTrue(deliver(datagram));
+		}
+		assertTrue(returnAck());
+		assertEquals(WINDOW, acknowledged.size());
+
+		for (int i = 0; i < 8; i++) {
+			assertEquals(0, sender.getDelay(now));
+			assertEquals(RECEIVER, sender.poll(out, now));
+			assertTrue(deliver(out));
+		}
+		assertNull(sender.poll(out, now));
+		assertTrue(returnAck());
+		assertEquals(WINDOW + 8, acknowledged.size());
+		for (int i = 0; i < WINDOW + 8; i++) {
+			assertTrue(acknowledged.contains("m" + i));
+		}
+		assertTrue(failed.isEmpty());
+	}
+
+	/*
+	 * An unreliable datagram carries a due ACK, and nothing more.
+	 */
+	@Test
+	public void ackRidesOnUnreliableDatagram() {
+		long now = System.currentTimeMillis();
+		assertTrue(deliver(sender.prepare(RECEIVER, encode(1, "ping"), "ping", out, now)));
+
+		ByteBuffer reply = encode(7, "pong");
+		ByteBuffer datagram = receiver.prepare(SENDER, reply, null, out, now);
+		assertEquals(WireFormat.FLAG_ACK, datagram.get(3) & (WireFormat.FLAG_ACK
+				| WireFormat.FLAG_RELIABLE));
+		ByteBuffer packet = copy(datagram);
+		assertTrue(sender.receive(packet, RECEIVER));
+		assertEquals(reply, packet);
+		assertEquals(1, acknowledged.size());
+		assertNull(receiver.poll(out, now + ACK_DELAY));
+
+		/*
+		 * With no ACK due, it is sent as it is.
+		 */
+		assertTrue(receiver.prepare(SENDER, reply, null, out, now) == reply);
+	}
+
+}
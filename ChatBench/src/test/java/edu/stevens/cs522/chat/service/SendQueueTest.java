@@ -0,0 +1,160 @@
+/*********************************************************************
+
+    Tests for the send queue.
+
+    Copyright (c) 2012 Stevens Institute of Technology
+
+ **********************************************************************/
+
+package edu.stevens.cs522.chat.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SendQueueTest {
+
+	private DatagramChannel channel;
+
+	/*
+	 * Bound, but never read (but to see that a message has been sent), so
+	 * nothing sent to it is acknowledged.
+	 */
+	private DatagramChannel silent;
+
+	private final Metrics metrics = new Metrics();
+
+	@Before
+	public void setUp() throws IOException {
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		channel.configureBlocking(false);
+		silent = DatagramChannel.open();
+		silent.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		channel.close();
+		silent.close();
+	}
+
+	/*
+	 * A reliable message sent but not yet acknowledged when the queue stops
+	 * must fail, not be left waiting for ever.
+	 */
+	@Test
+	public void stopFailsUnacknowledgedMessages() throws Exception {
+		SendQueue queue = new SendQueue(channel, metrics, "alice", 0, 0);
+		queue.start();
+		final CountDownLatch completed = new CountDownLatch(1);
+		final Exception[] error = new Exception[1];
+		Future<Void> future = queue.enqueue("127.0.0.1", silent.socket().getLocalPort(),
+				"hello", true, new SendQueue.Callback() {
+			public void onComplete(Exception e) {
+				error[0] = e;
+				completed.countDown();
+			}
+		});
+
+		silent.socket().setSoTimeout(5000);
+		silent.socket().receive(new DatagramPacket(new byte[WireFormat.MAX_DATAGRAM_SIZE],
+				WireFormat.MAX_DATAGRAM_SIZE));
+		assertFalse(future.isDone());
+		assertEquals(0, metrics.get(Metrics.MESSAGES_SENT));
+
+		queue.stop();
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		assertTrue(error[0] instanceof IOException);
+		assertEquals("Chat service stopped", error[0].getMessage());
+		assertEquals(0, metrics.get(Metrics.MESSAGES_SENT));
+		assertEquals(1, metrics.get(Metrics.SEND_FAILURES));
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("Delivery succeeded after stop");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	/*
+	 * A message sent best-effort counts as sent once it is handed to the
+	 * network.  Every message queued completes, sent or failed, when the
+	 * queue stops.  Stopping the queue leaves the channel, which the receive
+	 * engine shares, open.
+	 */
+	@Test
+	public void stopLeavesChannelOpen() throws Exception {
+		SendQueue queue = new SendQueue(channel, metrics, "alice", 0, 0);
+		queue.start();
+		final CountDownLatch first = new CountDownLatch(1);
+		final Exception[] error = new Exception[1];
+		queue.enqueue("127.0.0.1", silent.socket().getLocalPort(), "hello",
+				new SendQueue.Callback() {
+			public void onComplete(Exception e) {
+				error[0] = e;
+				first.countDown();
+			}
+		});
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		assertNull(error[0]);
+		assertEquals(1, metrics.get(Metrics.MESSAGES_SENT));
+
+		final CountDownLatch completed = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++) {
+			queue.enqueue("127.0.0.1", silent.socket().getLocalPort(), "message " + i,
+					new SendQueue.Callback() {
+				public void onComplete(Exception e) {
+					completed.countDown();
+				}
+			});
+		}
+		queue.stop();
+		assertTrue(channel.isOpen());
+		assertEquals(0, completed.getCount());
+		assertEquals(101, metrics.get(Metrics.MESSAGES_SENT)
+				+ metrics.get(Metrics.SEND_FAILURES));
+	}
+
+	/*
+	 * Our own messages, as they come back from the multicast group, are
+	 * recognized by id; the same message from another instance, numbering
+	 * from its own start, is not.
+	 */
+	@Test
+	public void recognizesOwnDatagrams() throws Exception {
+		SendQueue queue = new SendQueue(channel, metrics, "alice", 0, 0);
+		SendQueue other = new SendQueue(channel, metrics, "alice", 0, 0);
+		queue.start();
+		try {
+			queue.enqueue("127.0.0.1", silent.socket().getLocalPort(), "hello", null)
+					.get(5, TimeUnit.SECONDS);
+		} finally {
+			queue.stop();
+		}
+		ByteBuffer packet = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM_SIZE);
+		silent.receive(packet);
+		packet.flip();
+		assertTrue(queue.isOwnDatagram(packet));
+		assertFalse(other.isOwnDatagram(packet));
+		assertFalse(queue.isOwnDatagram(ByteBuffer.wrap("hello".getBytes("UTF-8"))));
+	}
+
+}